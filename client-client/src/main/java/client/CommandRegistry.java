@@ -31,6 +31,7 @@ import client.commands.reserve.ReserveRoomCommand;
 import client.commands.transactions.AbortCommand;
 import client.commands.transactions.PrepareCommand;
 import client.commands.transactions.StartCommand;
+import client.commands.transactions.StartReadOnlyCommand;
 
 public class CommandRegistry {
 
@@ -65,6 +66,7 @@ public class CommandRegistry {
 		COMMANDS.put("itinerary", new ReserveItineraryCommand());
 
 		COMMANDS.put("start", new StartCommand());
+		COMMANDS.put("startreadonly", new StartReadOnlyCommand());
 		COMMANDS.put("prepare", new PrepareCommand());
 		COMMANDS.put("abort", new AbortCommand());
 
@@ -0,0 +1,36 @@
+package client.commands.transactions;
+
+import java.util.List;
+
+import client.commands.Command;
+import middleware.Middleware;
+
+public class StartReadOnlyCommand extends Command {
+
+	@Override
+	public int minArgs() {
+		return 0;
+	}
+
+	@Override
+	public void execute(Middleware middleware, List<String> arguments) throws Exception {
+		int id = middleware.startReadOnly();
+		System.out.println("Started read-only transaction with id " + id);
+	}
+
+	@Override
+	public String description() {
+		return "Start a read-only transaction";
+	}
+
+	@Override
+	public String purpose() {
+		return "Get a transaction id for queries that read a snapshot of the data without waiting for locks. The transaction cannot modify anything.";
+	}
+
+	@Override
+	public String argsDescription() {
+		return "";
+	}
+
+}
@@ -68,7 +68,7 @@ if [ $# -gt 1 ]; then
 		# Run the app
 		cd $DIR
 		export CLASSPATH=$classpath
-		until java -Djava.security.policy=$policy -Djava.rmi.server.codebase="$codebase" ${APPS[$dirname]} ${@:3}; do
+		until java $JAVA_OPTS -Djava.security.policy=$policy -Djava.rmi.server.codebase="$codebase" ${APPS[$dirname]} ${@:3}; do
 			if [ $1 == 'server' ]; then
 				printf "\nRestarting...\n"
 				sleep 1
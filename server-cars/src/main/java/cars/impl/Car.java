@@ -21,7 +21,9 @@ public class Car extends ReservableItem {
 
 	@Override
 	public RMResource copy() {
-		return new Car(getLocation(), getCount(), getPrice());
+		Car copy = new Car(getLocation(), getCount(), getPrice());
+		copy.setReserved(0, getReserved());
+		return copy;
 	}
 
 }
@@ -46,7 +46,7 @@ public class CarManagerImpl extends ReservationManager<Car> implements CarManage
 	}
 
 	public CarManagerImpl() {
-		super("cars");
+		super("cars", Car::new);
 	}
 
 	@Override
@@ -86,7 +86,7 @@ public class CarManagerImpl extends ReservationManager<Car> implements CarManage
 	}
 
 	@Override
-	public boolean prepare(int id) {
+	public Vote prepare(int id) {
 		return prepareCommit(id);
 	}
 
@@ -100,6 +100,16 @@ public class CarManagerImpl extends ReservationManager<Car> implements CarManage
 		return abortTransaction(id);
 	}
 
+	@Override
+	public boolean setLockTimeout(int id, long timeout) {
+		return setTransactionLockTimeout(id, timeout);
+	}
+
+	@Override
+	public boolean setReadOnly(int id) {
+		return setTransactionReadOnly(id);
+	}
+
 	@Override
 	public boolean shutdown() throws RemoteException {
 		return shutdownManager();
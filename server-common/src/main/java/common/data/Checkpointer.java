@@ -0,0 +1,136 @@
+package common.data;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import common.data.StorageEngine.PendingCheckpoint;
+
+/**
+ * Makes the checkpoints of a {@link RMHashtable} in the background, so that
+ * the transactions writing to the table do not wait for them. The table only
+ * waits for the start of a checkpoint, which switches its engine to a new
+ * generation of the log; the engine then saves the table while it keeps being
+ * written, and deletes the log that the checkpoint replaces.
+ *
+ * The checkpointers of all the tables share a single thread, as an RM may have
+ * many small tables. Each one keeps the metrics of the checkpoints of its
+ * table.
+ */
+public class Checkpointer {
+
+	private static final ExecutorService THREAD = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "checkpointer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private RMHashtable<?, ?> table;
+	private String name;
+	private AtomicBoolean requested;
+
+	private volatile long checkpoints;
+	private volatile long lastDuration;
+	private volatile long lastBytes;
+	private volatile long bytesWritten;
+
+	Checkpointer(RMHashtable<?, ?> table, String name) {
+		this.table = table;
+		this.name = name;
+		this.requested = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Makes a checkpoint in the background, unless one is already waiting to
+	 * start.
+	 */
+	void request() {
+		if (requested.compareAndSet(false, true)) {
+			THREAD.execute(() -> run(false));
+		}
+	}
+
+	/**
+	 * Makes a checkpoint, and waits until it is on disk. Returns false if it
+	 * could not be written.
+	 */
+	public boolean checkpoint() {
+		try {
+			return THREAD.submit(() -> run(true)).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the number of checkpoints made since the table was loaded.
+	 */
+	public long getCheckpoints() {
+		return checkpoints;
+	}
+
+	/**
+	 * Returns the duration of the last checkpoint, in milliseconds.
+	 */
+	public long getLastDuration() {
+		return lastDuration;
+	}
+
+	/**
+	 * Returns the number of bytes written by the last checkpoint.
+	 */
+	public long getLastBytes() {
+		return lastBytes;
+	}
+
+	/**
+	 * Returns the number of bytes written by all the checkpoints.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the size in bytes of the log that would be replayed on restart.
+	 */
+	public long getLogLength() {
+		return table.logLength();
+	}
+
+	/**
+	 * Makes a checkpoint if the table still needs one, or if it is forced.
+	 */
+	private boolean run(boolean force) {
+		requested.set(false);
+		long start = System.nanoTime();
+
+		try {
+			PendingCheckpoint checkpoint = table.startCheckpoint(force);
+
+			if (checkpoint == null) {
+				return true;
+			}
+
+			long bytes = checkpoint.finish();
+			lastDuration = (System.nanoTime() - start) / 1000000;
+			lastBytes = bytes;
+			bytesWritten += bytes;
+			checkpoints++;
+
+			log("Checkpoint of " + name + ": " + lastDuration + " ms, " + bytes / 1024 + " KB written, log of "
+					+ getLogLength() / 1024 + " KB");
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			log("Unable to write the checkpoint of " + name);
+			return false;
+		}
+	}
+
+	private void log(String message) {
+		System.out.println("[Checkpointer] " + message);
+	}
+}
@@ -0,0 +1,110 @@
+package common.data;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.files.BinaryInput;
+import common.files.BinaryOutput;
+import common.files.Codec;
+
+/**
+ * Record of the log of a {@link StorageEngine}. The value is null if the key
+ * does not exist.
+ */
+public class LogRecord<K, V> implements Serializable {
+
+	private static final long serialVersionUID = -1203349271651368218L;
+
+	/**
+	 * Kinds of records: the new value of a key, the value of a key before a
+	 * transaction wrote it, and the end of a transaction.
+	 */
+	public static enum Type {
+		VALUE, BEFORE, END
+	}
+
+	private Type type;
+	private int id;
+	private K key;
+	private V value;
+
+	public LogRecord(Type type, int id, K key, V value) {
+		this.type = type;
+		this.id = id;
+		this.key = key;
+		this.value = value;
+	}
+
+	/**
+	 * Returns a codec for the records of a table, given the codecs of its keys
+	 * and values, or null if one of them is null: the records are then written
+	 * with Java serialization.
+	 */
+	public static <K, V> Codec<LogRecord<K, V>> codec(Codec<K> keys, Codec<V> values) {
+		if (keys == null || values == null) {
+			return null;
+		}
+
+		return new Codec<LogRecord<K, V>>() {
+			@Override
+			public void write(BinaryOutput out, LogRecord<K, V> record) {
+				out.writeByte(record.type.ordinal());
+				out.writeInt(record.id);
+				out.writeNullable(keys, record.key);
+				out.writeNullable(values, record.value);
+			}
+
+			@Override
+			public LogRecord<K, V> read(BinaryInput in) throws IOException {
+				int type = in.readByte();
+
+				if (type < 0 || type >= Type.values().length) {
+					throw new IOException("Unknown type of record " + type);
+				}
+
+				return new LogRecord<>(Type.values()[type], in.readInt(), in.readNullable(keys),
+						in.readNullable(values));
+			}
+		};
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public K getKey() {
+		return key;
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	/**
+	 * Applies the record to a table and to the values saved for its unfinished
+	 * transactions.
+	 */
+	public void replay(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) {
+		switch (type) {
+		case VALUE:
+			if (value == null) {
+				data.remove(key);
+			} else {
+				data.put(key, value);
+			}
+			break;
+		case BEFORE:
+			snapshots.computeIfAbsent(id, i -> new HashMap<>()).put(key, value);
+			break;
+		case END:
+			snapshots.remove(id);
+			break;
+		}
+	}
+}
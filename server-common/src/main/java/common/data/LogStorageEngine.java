@@ -0,0 +1,160 @@
+package common.data;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import common.files.Codec;
+import common.files.LogFile;
+
+/**
+ * Saves a table as an append-only log of its changes, without any other file.
+ * When most of the records of the log are outdated, the log is compacted in
+ * the background: the changes written from then on go to a new generation of
+ * the log, while the values the table had, and the values saved for the
+ * unfinished transactions, are written to the generation before it. Once they
+ * are on disk, the older generations are deleted.
+ *
+ * On startup, every generation is replayed in order. A compaction that did not
+ * finish leaves the generations it replaces: the records it wrote hold the
+ * values those generations end with, so replaying them changes nothing.
+ */
+class LogStorageEngine<K, V extends RMResource> implements StorageEngine<K, V> {
+
+	private static final int COMPACTION_MIN_RECORDS = 1000;
+
+	private LogFile<LogRecord<K, V>> log;
+	private LogFile<LogRecord<K, V>> compacted;
+	private long generation;
+
+	LogStorageEngine(String rm, String name, Codec<K> keys, Codec<V> values) {
+		this.log = new LogFile<>(rm, name + "_log", LogRecord.codec(keys, values));
+		this.compacted = new LogFile<>(rm, name + "_log", LogRecord.codec(keys, values));
+		this.generation = 0;
+	}
+
+	@Override
+	public int load(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException, ClassNotFoundException {
+		List<Long> generations = log.generations();
+		int replayed = 0;
+
+		if (generations.isEmpty()) {
+			generations.add(generation);
+		}
+
+		// Appends to the last generation
+		for (long g : generations) {
+			List<LogRecord<K, V>> records = log.read(g);
+			for (LogRecord<K, V> record : records) {
+				record.replay(data, snapshots);
+			}
+
+			generation = g;
+			replayed += records.size();
+		}
+
+		return replayed;
+	}
+
+	@Override
+	public long write(int id, K key, V value) throws IOException {
+		return log.append(new LogRecord<>(LogRecord.Type.VALUE, id, key, value));
+	}
+
+	@Override
+	public long writeBefore(int id, K key, V value) throws IOException {
+		return log.append(new LogRecord<>(LogRecord.Type.BEFORE, id, key, value));
+	}
+
+	@Override
+	public long end(int id) throws IOException {
+		return log.append(new LogRecord<>(LogRecord.Type.END, id, null, null));
+	}
+
+	@Override
+	public void force(long position) throws IOException {
+		log.force(position);
+	}
+
+	/**
+	 * Compacting writes one record per key: it is worth it once at least half of
+	 * the records are outdated.
+	 */
+	@Override
+	public boolean needsCheckpoint(int size) {
+		return log.records() > Math.max(COMPACTION_MIN_RECORDS, 2L * size);
+	}
+
+	/**
+	 * Compacts the log.
+	 */
+	@Override
+	public long checkpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		return startCheckpoint(data, snapshots).finish();
+	}
+
+	/**
+	 * Copies the values saved for the unfinished transactions, and leaves a
+	 * generation of the log free for the compaction, before the one the changes
+	 * go to from now on.
+	 */
+	@Override
+	public PendingCheckpoint startCheckpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots)
+			throws IOException {
+		Map<Integer, Map<K, V>> snapshotsCopy = new HashMap<>();
+		for (Entry<Integer, Map<K, V>> snapshot : snapshots.entrySet()) {
+			snapshotsCopy.put(snapshot.getKey(), new HashMap<>(snapshot.getValue()));
+		}
+
+		long compaction = generation + 1;
+		log.start(generation + 2);
+		generation += 2;
+
+		return () -> compact(compaction, data, snapshotsCopy);
+	}
+
+	@Override
+	public long logLength() {
+		return log.length();
+	}
+
+	@Override
+	public void saveAll(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		checkpoint(data, snapshots);
+	}
+
+	/**
+	 * Writes the values of the table to the given generation, and deletes the
+	 * generations before it once they are on disk.
+	 */
+	private long compact(long compaction, Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		synchronized (compacted) {
+			compacted.start(compaction);
+			long position = 0;
+
+			for (Entry<K, V> entry : data.entrySet()) {
+				position = compacted
+						.append(new LogRecord<>(LogRecord.Type.VALUE, 0, entry.getKey(), entry.getValue()));
+			}
+
+			for (Entry<Integer, Map<K, V>> snapshot : snapshots.entrySet()) {
+				for (Entry<K, V> entry : snapshot.getValue().entrySet()) {
+					position = compacted.append(
+							new LogRecord<>(LogRecord.Type.BEFORE, snapshot.getKey(), entry.getKey(), entry.getValue()));
+				}
+			}
+
+			compacted.force(position);
+
+			for (long g : compacted.generations()) {
+				if (g < compaction) {
+					compacted.delete(g);
+				}
+			}
+
+			return compacted.length();
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package common.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import common.files.Codec;
+import common.files.LogFile;
+import common.files.SaveFile;
+
+/**
+ * Saves a table in a memory-mapped file of fixed-size records, one per key,
+ * and in a log of the changes made since the records were last written. A
+ * checkpoint only writes the records of the keys changed since the previous
+ * one, in place, so that its cost does not depend on the size of the table.
+ *
+ * The file starts with a header holding the size of the records and the
+ * generation of the log that follows them. Each record holds the length of the
+ * key and value, written as a {@link LogRecord}, or 0 if it is free, followed
+ * by their bytes. A key and value too long for one record are split over a
+ * chain of records: each one holds the index of the next one before its bytes,
+ * and the records after the first one are marked as continued instead of
+ * holding a length. The records are written before the header points to the
+ * new generation of the log: if a checkpoint is interrupted, the records are
+ * replayed again from the previous generation, which overwrites the values
+ * already written.
+ */
+class MappedStorageEngine<K, V extends RMResource> implements StorageEngine<K, V> {
+
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 512;
+	private static final int INLINE_BYTES = RECORD_SIZE - 4;
+	private static final int CHAINED_BYTES = RECORD_SIZE - 8;
+	private static final int CONTINUED = -1;
+	private static final int INITIAL_RECORDS = 64;
+	private static final int CHECKPOINT_MIN_RECORDS = 1000;
+
+	private File file;
+	private LogFile<LogRecord<K, V>> redoLog;
+	private long generation;
+	private long savedRecords;
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private Map<K, Integer> index;
+	private ArrayDeque<Integer> free;
+	private Set<K> dirty;
+	private Codec<LogRecord<K, V>> codec;
+
+	MappedStorageEngine(String rm, String name, Codec<K> keys, Codec<V> values) {
+		this.codec = LogRecord.codec(keys, values);
+		this.file = new File(SaveFile.SAVE_FOLDER + "/" + rm + "/" + name + ".records");
+		this.redoLog = new LogFile<>(rm, name + "_records", codec);
+		this.generation = 0;
+
+		this.index = new HashMap<>();
+		this.free = new ArrayDeque<>();
+		this.dirty = new HashSet<>();
+	}
+
+	/**
+	 * Reads the records of the file, and replays the log that follows them.
+	 */
+	@Override
+	public int load(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException, ClassNotFoundException {
+		if (channel != null) {
+			channel.close();
+		}
+
+		index.clear();
+		free.clear();
+		dirty.clear();
+		savedRecords = 0;
+
+		file.getParentFile().mkdirs();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+
+		if (channel.size() < HEADER_SIZE) {
+			map(INITIAL_RECORDS);
+			buffer.putInt(0, RECORD_SIZE);
+			buffer.putLong(8, generation);
+		} else {
+			map((int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE));
+			if (buffer.getInt(0) != RECORD_SIZE) {
+				throw new IOException("The records of " + file + " are not " + RECORD_SIZE + " bytes long");
+			}
+			generation = buffer.getLong(8);
+		}
+
+		boolean[] used = new boolean[capacity];
+		for (int record = 0; record < capacity; record++) {
+			if (buffer.getInt(offset(record)) <= 0) {
+				continue;
+			}
+
+			try {
+				List<Integer> chain = new ArrayList<>();
+				LogRecord<K, V> entry = deserialize(read(record, chain, used));
+				data.put(entry.getKey(), entry.getValue());
+				index.put(entry.getKey(), record);
+
+				for (int r : chain) {
+					used[r] = true;
+				}
+			} catch (IOException e) {
+				// Torn by an interrupted checkpoint: its key is replayed from the log
+			}
+		}
+
+		for (int record = capacity - 1; record >= 0; record--) {
+			if (!used[record]) {
+				free.push(record);
+			}
+		}
+
+		List<LogRecord<K, V>> records = redoLog.read(generation);
+		for (LogRecord<K, V> record : records) {
+			record.replay(data, snapshots);
+			dirty.add(record.getKey());
+		}
+		dirty.remove(null);
+
+		return records.size();
+	}
+
+	@Override
+	public long write(int id, K key, V value) throws IOException {
+		dirty.add(key);
+		return redoLog.append(new LogRecord<>(LogRecord.Type.VALUE, id, key, value));
+	}
+
+	@Override
+	public long writeBefore(int id, K key, V value) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.BEFORE, id, key, value));
+	}
+
+	@Override
+	public long end(int id) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.END, id, null, null));
+	}
+
+	@Override
+	public void force(long position) throws IOException {
+		redoLog.force(position);
+	}
+
+	/**
+	 * A checkpoint writes at most one record per replayed record: it keeps the
+	 * log short without depending on the size of the table. The records saved
+	 * for the unfinished transactions are not counted, so that a long
+	 * transaction does not trigger a checkpoint at each write.
+	 */
+	@Override
+	public boolean needsCheckpoint(int size) {
+		return redoLog.records() - savedRecords > Math.max(CHECKPOINT_MIN_RECORDS, savedRecords);
+	}
+
+	/**
+	 * Writes the records of the changed keys, and starts a new generation of the
+	 * log, holding the values saved for the unfinished transactions.
+	 */
+	@Override
+	public long checkpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		long bytes = 0;
+
+		for (K key : dirty) {
+			bytes += writeRecord(key, data.get(key));
+		}
+		buffer.force();
+
+		redoLog.start(generation + 1);
+		long position = 0;
+
+		for (Entry<Integer, Map<K, V>> snapshot : snapshots.entrySet()) {
+			for (Entry<K, V> entry : snapshot.getValue().entrySet()) {
+				position = redoLog.append(
+						new LogRecord<>(LogRecord.Type.BEFORE, snapshot.getKey(), entry.getKey(), entry.getValue()));
+			}
+		}
+		redoLog.force(position);
+		savedRecords = redoLog.records();
+
+		buffer.putLong(8, generation + 1);
+		buffer.force();
+		redoLog.delete(generation);
+		generation++;
+		dirty.clear();
+		return bytes + redoLog.length();
+	}
+
+	@Override
+	public long logLength() {
+		return redoLog.length();
+	}
+
+	/**
+	 * Rewrites the records of every key, and frees the records of the keys that
+	 * are not in the table anymore.
+	 */
+	@Override
+	public void saveAll(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		dirty.addAll(index.keySet());
+		dirty.addAll(data.keySet());
+		checkpoint(data, snapshots);
+	}
+
+	/**
+	 * Writes the value of a key in its records, and returns the number of bytes
+	 * written. The first record is written last, so that the value is only
+	 * complete once it holds its length.
+	 */
+	private long writeRecord(K key, V value) throws IOException {
+		Integer record = index.get(key);
+		List<Integer> records = record == null ? new ArrayList<>() : chain(record);
+
+		if (value == null) {
+			for (int r : records) {
+				buffer.putInt(offset(r), 0);
+				free.push(r);
+			}
+			index.remove(key);
+			return 0;
+		}
+
+		byte[] bytes = serialize(new LogRecord<>(LogRecord.Type.VALUE, 0, key, value));
+		int needed = bytes.length <= INLINE_BYTES ? 1 : (bytes.length + CHAINED_BYTES - 1) / CHAINED_BYTES;
+
+		while (records.size() > needed) {
+			int r = records.remove(records.size() - 1);
+			buffer.putInt(offset(r), 0);
+			free.push(r);
+		}
+		while (records.size() < needed) {
+			if (free.isEmpty()) {
+				grow();
+			}
+			records.add(free.pop());
+		}
+		index.put(key, records.get(0));
+
+		if (needed == 1) {
+			buffer.position(offset(records.get(0)) + 4);
+			buffer.put(bytes);
+		} else {
+			for (int i = needed - 1; i >= 0; i--) {
+				int r = records.get(i);
+				int from = i * CHAINED_BYTES;
+
+				buffer.putInt(offset(r) + 4, i + 1 < needed ? records.get(i + 1) : CONTINUED);
+				buffer.position(offset(r) + 8);
+				buffer.put(bytes, from, Math.min(CHAINED_BYTES, bytes.length - from));
+
+				if (i > 0) {
+					buffer.putInt(offset(r), CONTINUED);
+				}
+			}
+		}
+
+		buffer.putInt(offset(records.get(0)), bytes.length);
+		return (long) needed * RECORD_SIZE;
+	}
+
+	/**
+	 * Reads the key and value starting at the given record, and adds the records
+	 * holding them to the chain. Throws an IOException if a record of the chain
+	 * is missing or used by another key.
+	 */
+	private byte[] read(int record, List<Integer> chain, boolean[] used) throws IOException {
+		byte[] bytes = new byte[buffer.getInt(offset(record))];
+		chain.add(record);
+
+		if (bytes.length <= INLINE_BYTES) {
+			buffer.position(offset(record) + 4);
+			buffer.get(bytes);
+			return bytes;
+		}
+
+		for (int from = 0; from < bytes.length; from += CHAINED_BYTES) {
+			int next = buffer.getInt(offset(record) + 4);
+			buffer.position(offset(record) + 8);
+			buffer.get(bytes, from, Math.min(CHAINED_BYTES, bytes.length - from));
+
+			if (from + CHAINED_BYTES < bytes.length) {
+				if (next < 0 || next >= capacity || used[next] || chain.contains(next)
+						|| buffer.getInt(offset(next)) != CONTINUED) {
+					throw new IOException("The chain of record " + chain.get(0) + " is broken");
+				}
+
+				record = next;
+				chain.add(record);
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Returns the records holding the value of a key, starting with the given
+	 * first one.
+	 */
+	private List<Integer> chain(int record) {
+		List<Integer> records = new ArrayList<>();
+		records.add(record);
+
+		if (buffer.getInt(offset(record)) > INLINE_BYTES) {
+			int next = buffer.getInt(offset(record) + 4);
+
+			while (next != CONTINUED) {
+				records.add(next);
+				next = buffer.getInt(offset(next) + 4);
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Doubles the number of records of the file.
+	 */
+	private void grow() throws IOException {
+		if (capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE / 2) {
+			throw new IOException("The file " + file + " cannot hold more records");
+		}
+
+		int previous = capacity;
+		map(2 * capacity);
+
+		for (int record = capacity - 1; record >= previous; record--) {
+			free.push(record);
+		}
+	}
+
+	private void map(int records) throws IOException {
+		capacity = records;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset(records));
+	}
+
+	private static int offset(int record) {
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	private byte[] serialize(LogRecord<K, V> entry) throws IOException {
+		if (codec != null) {
+			return codec.encode(entry);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(entry);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a record, written by the codec or with Java serialization. The
+	 * records written before they held a {@link LogRecord} hold an array of the
+	 * key and the value.
+	 */
+	@SuppressWarnings("unchecked")
+	private LogRecord<K, V> deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		if (Codec.isEncoded(bytes, 0, bytes.length)) {
+			if (codec == null) {
+				throw new IOException("The record was written by a codec");
+			}
+			return codec.decode(bytes, 0, bytes.length);
+		}
+
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			Object entry = ois.readObject();
+
+			if (entry instanceof Object[]) {
+				return new LogRecord<>(LogRecord.Type.VALUE, 0, (K) ((Object[]) entry)[0], (V) ((Object[]) entry)[1]);
+			}
+			return (LogRecord<K, V>) entry;
+		}
+	}
+}
@@ -1,44 +1,149 @@
 package common.data;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-
-import common.files.SaveFile;
-
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.data.StorageEngine.Type;
+import common.files.Codec;
+
+/**
+ * Hash table of a resource manager, saved to disk by a {@link StorageEngine}.
+ *
+ * Every change is saved with the new value of the changed key. When a
+ * transaction prepares or commits, the values of the keys it wrote are saved
+ * again, as the values can also be modified in place, and forced to disk. When
+ * restarting from the saved changes would take too long, the {@link Checkpointer}
+ * of the table makes a checkpoint in the background.
+ *
+ * The first time a transaction writes a key, the value it had before is saved,
+ * so that the transaction can be aborted, even after a restart.
+ * Reading a key copies nothing: a value modified in place must be obtained
+ * through {@link #getForUpdate(int, Object)}, which gives the transaction its
+ * own copy. The committed values are therefore never modified.
+ *
+ * Reads do not take the monitor of the table, so that readers never wait for
+ * each other or for a writer saving its changes. Isolating the transactions is
+ * left to the locks of the resource manager.
+ *
+ * Read-only transactions can read a snapshot of the table instead, without
+ * locks: each commit stamps the values it wrote with a commit timestamp, and
+ * keeps the previous versions as long as a snapshot may read them. A snapshot
+ * sees the versions committed before its first read.
+ *
+ * A checkpoint reads the table the same way, through an {@link Image} of the
+ * table as it started, while the transactions keep writing.
+ */
 public class RMHashtable<K, V extends RMResource> implements Serializable {
 
 	private static final long serialVersionUID = -3672016922396332114L;
 
+	/**
+	 * Id of the snapshot kept open by a checkpoint, which no transaction has.
+	 */
+	private static final int CHECKPOINT = -1;
+
+	/**
+	 * Change saved by the storage engine. Returns its position.
+	 */
+	private static interface Change {
+		long save() throws IOException;
+	}
+
+	/**
+	 * Committed value of a key, and the version committed before it. The value
+	 * is null if the key does not exist.
+	 */
+	private static class Version<V> {
+
+		private long timestamp;
+		private V value;
+		private volatile Version<V> previous;
+
+		Version(long timestamp, V value, Version<V> previous) {
+			this.timestamp = timestamp;
+			this.value = value;
+			this.previous = previous;
+		}
+	}
+
 	private String rm;
 	private String name;
 
 	private Map<K, V> data;
 	private Map<Integer, Map<K, V>> snapshots;
 
-	private SaveFile<Map<K, V>> dataFile;
-	private SaveFile<Map<Integer, Map<K, V>>> snapshotsFile;
+	private Type storageType;
+	private transient StorageEngine<K, V> storage;
+	private transient Checkpointer checkpointer;
+	private transient Set<Integer> transactions;
+	private transient Set<Integer> prepared;
+
+	private transient ConcurrentHashMap<K, Version<V>> versions;
+	private transient Map<K, Integer> writers;
+	private transient ConcurrentHashMap<Integer, Long> readers;
+	private transient volatile long clock;
 
+	/**
+	 * Builds a table saved by the storage engine chosen for the RM.
+	 * 
+	 * @see Type#of(String)
+	 */
 	public RMHashtable(String rm, String name) {
+		this(rm, name, Type.of(rm));
+	}
+
+	public RMHashtable(String rm, String name, Type storageType) {
+		this(rm, name, StorageEngine.create(storageType, rm, name));
+		this.storageType = storageType;
+	}
+
+	/**
+	 * Builds a table saved by the storage engine chosen for the RM, which writes
+	 * the keys and values with the given codecs instead of Java serialization.
+	 */
+	public RMHashtable(String rm, String name, Codec<K> keys, Codec<V> values) {
+		this(rm, name, StorageEngine.create(Type.of(rm), rm, name, keys, values));
+	}
+
+	/**
+	 * Builds a table saved by the given engine. If the table is serialized, it
+	 * is restored with the engine chosen for the RM.
+	 */
+	public RMHashtable(String rm, String name, StorageEngine<K, V> storage) {
 		this.rm = rm;
 		this.name = name;
 
-		this.data = new Hashtable<>();
+		this.data = storage.newTable();
 		this.snapshots = new Hashtable<>();
 
-		this.dataFile = new SaveFile<>(rm, name + "_data");
-		this.snapshotsFile = new SaveFile<>(rm, name + "_snapshots");
+		this.storage = storage;
+		this.checkpointer = new Checkpointer(this, rm + "/" + name);
+		this.transactions = ConcurrentHashMap.newKeySet();
+		this.prepared = new HashSet<>();
+
+		this.versions = new ConcurrentHashMap<>();
+		this.writers = new HashMap<>();
+		this.readers = new ConcurrentHashMap<>();
+		this.clock = 0;
 
 		loadSave();
 	}
 
 	@SuppressWarnings("unchecked")
 	public RMHashtable(RMHashtable<K, V> other) {
-		this(other.rm, other.name);
+		this(other.rm, other.name, other.storageType);
 
 		for (Entry<K, V> entry : other.data.entrySet()) {
 			data.put(entry.getKey(), (V) entry.getValue().copy());
@@ -46,28 +151,79 @@ public class RMHashtable<K, V extends RMResource> implements Serializable {
 	}
 
 	public synchronized V put(int id, K key, V value) {
-		createSnapshot(id);
+		createSnapshot(id, key);
 		V result = data.put(key, value);
 
-		saveData();
+		logValue(id, key);
 		return result;
 	}
 
-	public synchronized V get(int id, Object key) {
-		createSnapshot(id);
+	public V get(int id, Object key) {
+		addTransaction(id);
 		return data.get(key);
 	}
 
+	/**
+	 * Returns the value of a key that the transaction is going to modify in
+	 * place. The first time, the committed value is saved, so that the
+	 * modification can be undone, and the transaction gets a copy of it.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V getForUpdate(int id, Object key) {
+		V value = data.get(key);
+
+		// The committed value is kept unchanged for the snapshots
+		if (createSnapshot(id, key) && value != null) {
+			value = (V) value.copy();
+			data.put((K) key, value);
+		}
+
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
 	public synchronized V remove(int id, Object key) {
-		createSnapshot(id);
+		createSnapshot(id, key);
 		V result = data.remove(key);
 
-		saveData();
+		logValue(id, (K) key);
 		return result;
 	}
 
-	public synchronized boolean containsKey(int id, Object key) {
-		createSnapshot(id);
+	/**
+	 * Returns the value of a key in the snapshot of a read-only transaction,
+	 * without waiting for the writers. The snapshot is taken at the first read of
+	 * the transaction in this table. The transaction must not write to the table.
+	 */
+	public V getSnapshot(int id, Object key) {
+		return read(key, snapshotTimestamp(id));
+	}
+
+	/**
+	 * Returns all the values of the snapshot of a read-only transaction.
+	 *
+	 * @see #getSnapshot(int, Object)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<K, V> getSnapshot(int id) {
+		long timestamp = snapshotTimestamp(id);
+		Set<Object> keys = new HashSet<>(versions.keySet());
+		keys.addAll(data.keySet());
+		Map<K, V> values = new HashMap<>();
+
+		for (Object key : keys) {
+			V value = read(key, timestamp);
+
+			if (value != null) {
+				values.put((K) key, value);
+			}
+		}
+
+		return values;
+	}
+
+	public boolean containsKey(int id, Object key) {
+		addTransaction(id);
 		return data.containsKey(key);
 	}
 
@@ -75,7 +231,7 @@ public class RMHashtable<K, V extends RMResource> implements Serializable {
 		return data.containsValue(value);
 	}
 
-	public synchronized boolean isEmpty(int id) {
+	public boolean isEmpty(int id) {
 		return data.isEmpty();
 	}
 
@@ -87,36 +243,165 @@ public class RMHashtable<K, V extends RMResource> implements Serializable {
 		return data.entrySet();
 	}
 
-	public boolean prepare(int id) {
+	/**
+	 * Returns true if the transaction wrote some keys that it has not committed or
+	 * aborted yet.
+	 */
+	public synchronized boolean hasWritten(int id) {
 		return snapshots.containsKey(id);
 	}
 
+	/**
+	 * Saves the values of the keys written by the transaction, and waits until
+	 * they are on disk. A transaction that only read has nothing to save. Returns
+	 * false if the transaction is unknown, or if the values could not be saved.
+	 */
+	public boolean prepare(int id) {
+		long position;
+
+		synchronized (this) {
+			Map<K, V> snapshot = snapshots.get(id);
+
+			if (snapshot == null) {
+				return transactions.contains(id);
+			}
+
+			position = logValues(id, snapshot.keySet());
+			prepared.add(id);
+		}
+
+		return position >= 0 && force(position);
+	}
+
+	/**
+	 * Makes the changes of a transaction durable, and forgets the values saved
+	 * for it. The values of a prepared transaction are already on disk.
+	 */
 	public boolean commit(int id) {
-		snapshots.remove(id);
+		long position;
+
+		synchronized (this) {
+			transactions.remove(id);
+			endSnapshot(id);
+			Map<K, V> snapshot = snapshots.remove(id);
+
+			if (snapshot == null) {
+				return true;
+			}
+
+			publishVersions(snapshot.keySet());
+			position = prepared.remove(id) ? 0 : logValues(id, snapshot.keySet());
+
+			if (position >= 0) {
+				position = append(() -> storage.end(id));
+			}
+		}
+
+		return position >= 0 && force(position);
+	}
+
+	/**
+	 * Restores the keys written by the given transaction to the values they had
+	 * before. The other keys are left untouched, as they may have been modified by
+	 * concurrent transactions. The changes are not forced: if the restored values
+	 * are lost, the transaction is still unfinished after a restart, and is
+	 * aborted again.
+	 */
+	public synchronized boolean abort(int id) {
+		transactions.remove(id);
+		prepared.remove(id);
+		endSnapshot(id);
+		Map<K, V> snapshot = snapshots.remove(id);
+
+		if (snapshot == null) {
+			return false;
+		}
+
+		for (Entry<K, V> entry : snapshot.entrySet()) {
+			if (entry.getValue() == null) {
+				data.remove(entry.getKey());
+			} else {
+				data.put(entry.getKey(), entry.getValue());
+			}
+			writers.remove(entry.getKey());
+		}
+
+		collectVersions(snapshot.keySet());
+
+		if (logValues(id, snapshot.keySet()) >= 0) {
+			append(() -> storage.end(id));
+		}
+
 		return true;
 	}
 
-	public boolean abort(int id) {
-		if (snapshots.containsKey(id)) {
-			data = snapshots.remove(id);
-			return true;
+	/**
+	 * Returns the keys written by each transaction that has not committed or
+	 * aborted yet, sorted by transaction id.
+	 */
+	public synchronized Map<Integer, Set<K>> writtenKeys() {
+		Map<Integer, Set<K>> keys = new TreeMap<>();
+
+		for (Entry<Integer, Map<K, V>> entry : snapshots.entrySet()) {
+			keys.put(entry.getKey(), entry.getValue().keySet());
 		}
 
-		return false;
+		return keys;
+	}
+
+	public Checkpointer getCheckpointer() {
+		return checkpointer;
 	}
 
 	/**
-	 * Restores the state of the {@link RMHashtable} from the save files. If they do
-	 * not exist yet, creates them.
+	 * Adds entries outside of any transaction, and saves the whole table. Used to
+	 * build large tables without saving every key separately.
 	 */
-	public boolean loadSave() {
+	synchronized void load(Map<K, V> entries) {
+		data.putAll(entries);
+
 		try {
-			data = dataFile.read();
-			snapshots = snapshotsFile.read();
-			return true;
+			storage.saveAll(data, snapshots);
+		} catch (IOException e) {
+			e.printStackTrace();
+			log("Unable to write to disk");
+		}
+	}
+
+	/**
+	 * Restores the state of the {@link RMHashtable} from its storage engine.
+	 */
+	public synchronized boolean loadSave() {
+		try {
+			long start = System.currentTimeMillis();
+			Map<K, V> loaded = storage.newTable();
+			Map<Integer, Map<K, V>> loadedSnapshots = new Hashtable<>();
+			int records = storage.load(loaded, loadedSnapshots);
+			long read = System.currentTimeMillis();
+
+			data = loaded;
+			snapshots = loadedSnapshots;
+			transactions.addAll(snapshots.keySet());
+
+			// The values written by the unfinished transactions are not committed
+			versions.clear();
+			writers.clear();
+			for (Entry<Integer, Map<K, V>> snapshot : snapshots.entrySet()) {
+				for (Entry<K, V> entry : snapshot.getValue().entrySet()) {
+					versions.put(entry.getKey(), new Version<>(0, entry.getValue(), null));
+					writers.put(entry.getKey(), snapshot.getKey());
+				}
+			}
 
+			if (records > 0) {
+				log("Replayed " + records + " records of " + name + ": read in " + (read - start)
+						+ " ms, unfinished transactions restored in " + (System.currentTimeMillis() - read) + " ms");
+			}
+			return true;
 		} catch (IOException | ClassNotFoundException e) {
-			return saveData() && saveSnapshots();
+			e.printStackTrace();
+			log("Unable to read the saved table " + name);
+			return false;
 		}
 	}
 
@@ -126,26 +411,208 @@ public class RMHashtable<K, V extends RMResource> implements Serializable {
 	}
 
 	/**
-	 * Saves the data to disk.
+	 * Starts a checkpoint of the table, if it needs one or if it is forced.
+	 * Returns the rest of the checkpoint, made without the monitor, or null if
+	 * there is nothing to do. The table is not copied: the checkpoint reads an
+	 * image of it, whose versions are kept until the checkpoint is finished.
 	 */
-	private boolean saveData() {
+	synchronized StorageEngine.PendingCheckpoint startCheckpoint(boolean force) throws IOException {
+		if (!force && !storage.needsCheckpoint(data.size())) {
+			return null;
+		}
+
+		readers.put(CHECKPOINT, clock);
+		StorageEngine.PendingCheckpoint checkpoint;
+
 		try {
-			dataFile.save(data);
-			return true;
+			checkpoint = storage.startCheckpoint(new Image(clock), snapshots);
+		} catch (IOException e) {
+			endSnapshot(CHECKPOINT);
+			throw e;
+		}
+
+		return () -> {
+			try {
+				return checkpoint.finish();
+			} finally {
+				synchronized (this) {
+					endSnapshot(CHECKPOINT);
+				}
+			}
+		};
+	}
+
+	long logLength() {
+		return storage.logLength();
+	}
+
+	/**
+	 * Returns the timestamp of the snapshot of a transaction, and takes it if this
+	 * is its first read. Taking it under the monitor keeps the versions it may
+	 * read from being collected.
+	 */
+	private long snapshotTimestamp(int id) {
+		Long timestamp = readers.get(id);
+
+		if (timestamp == null) {
+			synchronized (this) {
+				transactions.add(id);
+				timestamp = readers.computeIfAbsent(id, i -> clock);
+			}
+		}
+
+		return timestamp;
+	}
+
+	/**
+	 * Returns the last value of a key committed at the given timestamp. The value
+	 * is read before the versions: a writer creates the first version of a key
+	 * before replacing its value.
+	 */
+	private V read(Object key, long timestamp) {
+		V value = data.get(key);
+		Version<V> version = versions.get(key);
+
+		if (version == null) {
+			return value;
+		}
+
+		while (version != null && version.timestamp > timestamp) {
+			version = version.previous;
+		}
+
+		return version == null ? null : version.value;
+	}
+
+	/**
+	 * Stamps the values written by a committing transaction with a new commit
+	 * timestamp. The snapshots taken from now on see them.
+	 */
+	private void publishVersions(Collection<K> keys) {
+		long timestamp = clock + 1;
+
+		for (K key : keys) {
+			versions.put(key, new Version<>(timestamp, data.get(key), versions.get(key)));
+			writers.remove(key);
+		}
+
+		clock = timestamp;
+		collectVersions(keys);
+	}
+
+	/**
+	 * Forgets the snapshot of a transaction. If it was the oldest one, or the
+	 * last one, the versions it kept can now be collected.
+	 */
+	private void endSnapshot(int id) {
+		Long timestamp = readers.remove(id);
+
+		if (timestamp != null && (readers.isEmpty() || timestamp < oldestSnapshot())) {
+			collectVersions(new ArrayList<>(versions.keySet()));
+		}
+	}
+
+	/**
+	 * Removes the versions of the given keys that no snapshot can read anymore:
+	 * the ones older than the last version visible to the oldest snapshot. A key
+	 * whose last version is visible to every snapshot, and that is not being
+	 * written, does not need versions at all once there is no snapshot: a
+	 * snapshot may have read the value of an aborted writer just before, and
+	 * finds the committed value in the version.
+	 */
+	private void collectVersions(Collection<K> keys) {
+		long oldest = oldestSnapshot();
+
+		for (K key : keys) {
+			Version<V> head = versions.get(key);
+			Version<V> version = head;
+
+			while (version != null && version.timestamp > oldest) {
+				version = version.previous;
+			}
+
+			if (version != null) {
+				version.previous = null;
+
+				if (version == head && !writers.containsKey(key) && readers.isEmpty()) {
+					versions.remove(key);
+				}
+			}
+		}
+	}
+
+	private long oldestSnapshot() {
+		long oldest = clock;
+
+		for (long timestamp : readers.values()) {
+			oldest = Math.min(oldest, timestamp);
+		}
+
+		return oldest;
+	}
+
+	/**
+	 * Remembers that the transaction used the table. Checking first spares the
+	 * readers a write to the shared set on every read.
+	 */
+	private void addTransaction(int id) {
+		if (!transactions.contains(id)) {
+			transactions.add(id);
+		}
+	}
+
+	/**
+	 * Saves the current value of a key.
+	 */
+	private long logValue(int id, K key) {
+		V value = data.get(key);
+		return append(() -> storage.write(id, key, value));
+	}
+
+	/**
+	 * Saves the current values of several keys. Returns the position of the last
+	 * one, or -1 if one of them could not be written.
+	 */
+	private long logValues(int id, Collection<K> keys) {
+		long position = 0;
+
+		for (K key : keys) {
+			position = logValue(id, key);
+
+			if (position < 0) {
+				return -1;
+			}
+		}
+
+		return position;
+	}
+
+	/**
+	 * Saves a change, without waiting for the disk. Returns the position of the
+	 * change, or -1 if it could not be written.
+	 */
+	private long append(Change change) {
+		try {
+			long position = change.save();
+
+			if (storage.needsCheckpoint(data.size())) {
+				checkpointer.request();
+			}
+
+			return position;
 		} catch (IOException e) {
 			e.printStackTrace();
 			log("Unable to write to disk");
-			return false;
+			return -1;
 		}
 	}
 
 	/**
-	 * Saves the snapshots to disk.
+	 * Waits until the changes are on disk up to the given position.
 	 */
-	private boolean saveSnapshots() {
+	private boolean force(long position) {
 		try {
-			log("Saving data to disk...");
-			snapshotsFile.save(snapshots);
+			storage.force(position);
 			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -155,25 +622,112 @@ public class RMHashtable<K, V extends RMResource> implements Serializable {
 	}
 
 	/**
-	 * Creates a "snapshot" of the {@link RMHashtable}. meaning a deep copy at the
-	 * time where this method is called. If the given transaction already have a
+	 * Adds the given key to the "snapshot" of the transaction, meaning its value
+	 * before the transaction writes it, and saves it. A key that does not exist is
+	 * stored with a <code>null</code> value. The value also becomes the first
+	 * version of the key, if it has none. If the key is already part of the
 	 * snapshot, nothing happens.
-	 * 
+	 *
 	 * @param id
 	 *            the transaction id
+	 * @param key
+	 *            the written key
+	 * @return true if the key was added to the snapshot
 	 */
 	@SuppressWarnings("unchecked")
-	private void createSnapshot(int id) {
-		if (!snapshots.containsKey(id)) {
-			Map<K, V> snapshot = new Hashtable<>();
+	private boolean createSnapshot(int id, Object key) {
+		transactions.add(id);
+		Map<K, V> snapshot = snapshots.get(id);
 
-			for (Entry<K, V> entry : data.entrySet()) {
-				snapshot.put(entry.getKey(), (V) entry.getValue().copy());
+		if (snapshot == null) {
+			// HashMap supports null values, used for keys that do not exist yet
+			snapshot = new HashMap<>();
+			snapshots.put(id, snapshot);
+		}
+
+		if (snapshot.containsKey(key)) {
+			return false;
+		}
+
+		V value = data.get(key);
+		versions.putIfAbsent((K) key, new Version<>(0, value, null));
+		writers.put((K) key, id);
+
+		snapshot.put((K) key, value);
+		append(() -> storage.writeBefore(id, (K) key, value));
+		return true;
+	}
+
+	/**
+	 * Values the table had when a checkpoint started, read from the versions
+	 * while the table keeps being written. The values of the keys that were
+	 * being written then are not committed, and have no version: they are kept
+	 * aside when the image is created. The other values are read the way a
+	 * snapshot reads them, the first time the whole image is read.
+	 */
+	private class Image extends AbstractMap<K, V> {
+
+		private long timestamp;
+		private Map<K, V> written;
+		private Map<K, V> values;
+
+		/**
+		 * Must be called while synchronized on the table.
+		 */
+		Image(long timestamp) {
+			this.timestamp = timestamp;
+			this.written = new HashMap<>();
+
+			for (K key : writers.keySet()) {
+				written.put(key, data.get(key));
+			}
+		}
+
+		@Override
+		public V get(Object key) {
+			return written.containsKey(key) ? written.get(key) : read(key, timestamp);
+		}
+
+		@Override
+		public Set<Entry<K, V>> entrySet() {
+			if (values == null) {
+				values = new HashMap<>();
+				addValues(written.keySet());
+				addValues(versions.keySet());
+				addValues(data.keySet());
 			}
 
-			snapshots.put(id, snapshot);
-			saveSnapshots();
+			return values.entrySet();
+		}
+
+		private void addValues(Collection<K> keys) {
+			for (K key : keys) {
+				if (!values.containsKey(key)) {
+					V value = get(key);
+
+					if (value != null) {
+						values.put(key, value);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The storage engine is not saved with the table.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (storageType == null) {
+			this.storageType = Type.of(rm);
 		}
+		this.storage = StorageEngine.create(storageType, rm, name);
+		this.checkpointer = new Checkpointer(this, rm + "/" + name);
+		this.transactions = ConcurrentHashMap.newKeySet();
+		this.prepared = new HashSet<>();
+		this.versions = new ConcurrentHashMap<>();
+		this.writers = new HashMap<>();
+		this.readers = new ConcurrentHashMap<>();
 	}
 
 	private void log(String message) {
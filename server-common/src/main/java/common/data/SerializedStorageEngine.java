@@ -0,0 +1,220 @@
+package common.data;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import common.files.BinaryInput;
+import common.files.BinaryOutput;
+import common.files.Codec;
+import common.files.LogFile;
+import common.files.SaveFile;
+
+/**
+ * Saves a table in two parts: a checkpoint of the whole table, serialized
+ * with Java serialization, and a log of the changes made since. When the log
+ * grows larger than the table, a new checkpoint is saved, and the log starts
+ * over.
+ *
+ * A checkpoint starts a new generation of the log, and saves a copy of the
+ * table in the background. Until the copy is on disk, the previous checkpoint
+ * is replayed with both generations.
+ */
+class SerializedStorageEngine<K, V extends RMResource> implements StorageEngine<K, V> {
+
+	private static final int CHECKPOINT_MIN_RECORDS = 1000;
+
+	/**
+	 * Copy of the table and of the values saved for the unfinished transactions,
+	 * and the generation of the log that follows it.
+	 */
+	private static class Checkpoint<K, V> implements Serializable {
+
+		private static final long serialVersionUID = 4617285916318937734L;
+		private long generation;
+		private Map<K, V> data;
+		private Map<Integer, Map<K, V>> snapshots;
+
+		Checkpoint(long generation, Map<K, V> data, Map<Integer, Map<K, V>> snapshots) {
+			this.generation = generation;
+			this.data = data;
+			this.snapshots = snapshots;
+		}
+
+		/**
+		 * Returns a codec for the checkpoints, or null if a codec is null.
+		 */
+		static <K, V> Codec<Checkpoint<K, V>> codec(Codec<K> keys, Codec<V> values) {
+			if (keys == null || values == null) {
+				return null;
+			}
+
+			Codec<Map<K, V>> data = Codec.map(keys, values);
+			Codec<Map<Integer, Map<K, V>>> snapshots = Codec.map(Codec.INTEGERS, data);
+
+			return new Codec<Checkpoint<K, V>>() {
+				@Override
+				public void write(BinaryOutput out, Checkpoint<K, V> checkpoint) {
+					out.writeLong(checkpoint.generation);
+					data.write(out, checkpoint.data);
+					snapshots.write(out, checkpoint.snapshots);
+				}
+
+				@Override
+				public Checkpoint<K, V> read(BinaryInput in) throws IOException {
+					return new Checkpoint<>(in.readLong(), data.read(in), snapshots.read(in));
+				}
+			};
+		}
+	}
+
+	private String name;
+	private SaveFile<Checkpoint<K, V>> checkpointFile;
+	private LogFile<LogRecord<K, V>> redoLog;
+	private long generation;
+	private long savedGeneration;
+
+	SerializedStorageEngine(String rm, String name, Codec<K> keys, Codec<V> values) {
+		this.name = name;
+		this.checkpointFile = new SaveFile<>(rm, name + "_checkpoint", Checkpoint.codec(keys, values));
+		this.redoLog = new LogFile<>(rm, name, LogRecord.codec(keys, values));
+		this.generation = 0;
+		this.savedGeneration = 0;
+	}
+
+	/**
+	 * Reads the last checkpoint, and replays the logs that follow it. If the
+	 * checkpoint is damaged, the previous one is read and replayed with the log
+	 * kept after it. If there is no checkpoint yet, creates it.
+	 */
+	@Override
+	public int load(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException, ClassNotFoundException {
+		if (!checkpointFile.exists()) {
+			checkpoint(data, snapshots);
+			return 0;
+		}
+
+		long start = System.currentTimeMillis();
+		Checkpoint<K, V> checkpoint = checkpointFile.read();
+		data.putAll(checkpoint.data);
+		snapshots.putAll(checkpoint.snapshots);
+		generation = checkpoint.generation;
+		savedGeneration = checkpoint.generation;
+
+		List<Long> generations = redoLog.generations();
+		generations.removeIf(g -> g <= checkpoint.generation);
+		generations.add(0, checkpoint.generation);
+		int replayed = 0;
+		long read = System.currentTimeMillis();
+
+		for (long g : generations) {
+			List<LogRecord<K, V>> records = redoLog.read(g);
+			for (LogRecord<K, V> record : records) {
+				record.replay(data, snapshots);
+			}
+
+			generation = g;
+			replayed += records.size();
+		}
+
+		log("Loaded " + name + ": checkpoint of " + checkpoint.data.size() + " keys read in " + (read - start) + " ms, "
+				+ replayed + " records replayed in " + (System.currentTimeMillis() - read) + " ms");
+		return replayed;
+	}
+
+	@Override
+	public long write(int id, K key, V value) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.VALUE, id, key, value));
+	}
+
+	@Override
+	public long writeBefore(int id, K key, V value) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.BEFORE, id, key, value));
+	}
+
+	@Override
+	public long end(int id) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.END, id, null, null));
+	}
+
+	@Override
+	public void force(long position) throws IOException {
+		redoLog.force(position);
+	}
+
+	/**
+	 * Saving the table costs as much as replaying as many records.
+	 */
+	@Override
+	public boolean needsCheckpoint(int size) {
+		return redoLog.records() > Math.max(CHECKPOINT_MIN_RECORDS, size);
+	}
+
+	@Override
+	public long checkpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		return startCheckpoint(data, snapshots).finish();
+	}
+
+	/**
+	 * Copies the values saved for the unfinished transactions, and starts a new
+	 * generation of the log. The table is copied from its image by the thread
+	 * finishing the checkpoint. The values are not copied: the committed ones
+	 * are never modified, and the ones modified in place by the unfinished
+	 * transactions are saved again when they end.
+	 */
+	@Override
+	public PendingCheckpoint startCheckpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots)
+			throws IOException {
+		Map<Integer, Map<K, V>> snapshotsCopy = new HashMap<>();
+		for (Entry<Integer, Map<K, V>> snapshot : snapshots.entrySet()) {
+			snapshotsCopy.put(snapshot.getKey(), new HashMap<>(snapshot.getValue()));
+		}
+
+		long checkpointGeneration = generation + 1;
+		redoLog.start(checkpointGeneration);
+		generation++;
+
+		return () -> save(new Checkpoint<>(checkpointGeneration, new HashMap<>(data), snapshotsCopy));
+	}
+
+	@Override
+	public long logLength() {
+		return redoLog.length();
+	}
+
+	/**
+	 * Saves a checkpoint, unless a later one was saved first. The log that
+	 * follows the previous checkpoint is kept, in case the new one is damaged.
+	 */
+	private long save(Checkpoint<K, V> checkpoint) throws IOException {
+		synchronized (checkpointFile) {
+			if (checkpoint.generation <= savedGeneration) {
+				return 0;
+			}
+
+			long bytes = checkpointFile.save(checkpoint);
+			long previous = savedGeneration;
+			savedGeneration = checkpoint.generation;
+
+			for (long g : redoLog.generations()) {
+				if (g < previous) {
+					redoLog.delete(g);
+				}
+			}
+
+			return bytes;
+		}
+	}
+
+	@Override
+	public void saveAll(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException {
+		checkpoint(data, snapshots);
+	}
+
+	private void log(String message) {
+		System.out.println("[SerializedStorageEngine] " + message);
+	}
+}
@@ -0,0 +1,160 @@
+package common.data;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.files.Codec;
+
+/**
+ * Saves the contents of a {@link RMHashtable} to disk. The table keeps its
+ * values in memory, and tells its engine about every change: the new value of
+ * a key, the value a key had before a transaction wrote it, and the end of a
+ * transaction. On startup, the engine gives the table back its values, and the
+ * values saved for the transactions that were not finished.
+ *
+ * Except for {@link #force(long)} and the end of a checkpoint started by
+ * {@link #startCheckpoint(Map, Map)}, the methods are called by one thread at a
+ * time.
+ *
+ * The engine of an RM is chosen at startup with the system property
+ * <code>storage.&lt;rm&gt;</code>, e.g. <code>-Dstorage.flights=mapped</code>.
+ */
+public interface StorageEngine<K, V extends RMResource> {
+
+	/**
+	 * Kinds of engines.
+	 * 
+	 * <ul>
+	 * <li>SERIALIZED: the whole table is serialized in a checkpoint, and the
+	 * changes since then are appended to a log.</li>
+	 * <li>LOG: the changes are only appended to a log, which is compacted when
+	 * most of its records are outdated.</li>
+	 * <li>MAPPED: the values are stored in the fixed-size records of a
+	 * memory-mapped file, updated in place from the log.</li>
+	 * </ul>
+	 */
+	public static enum Type {
+		SERIALIZED, LOG, MAPPED;
+
+		/**
+		 * Returns the type of engine chosen for an RM, {@link #SERIALIZED} by
+		 * default.
+		 */
+		public static Type of(String rm) {
+			String type = System.getProperty("storage." + rm);
+			return type == null ? SERIALIZED : valueOf(type.toUpperCase());
+		}
+	}
+
+	/**
+	 * Rest of a checkpoint, made while the table keeps being written.
+	 */
+	public static interface PendingCheckpoint {
+
+		/**
+		 * Finishes the checkpoint, and returns the number of bytes written.
+		 */
+		long finish() throws IOException;
+	}
+
+	/**
+	 * Creates an engine saving the table with the given name of an RM, with Java
+	 * serialization.
+	 */
+	public static <K, V extends RMResource> StorageEngine<K, V> create(Type type, String rm, String name) {
+		return create(type, rm, name, null, null);
+	}
+
+	/**
+	 * Creates an engine saving the keys and values of the table with the given
+	 * codecs, or with Java serialization if they are null.
+	 */
+	public static <K, V extends RMResource> StorageEngine<K, V> create(Type type, String rm, String name,
+			Codec<K> keys, Codec<V> values) {
+		switch (type) {
+		case LOG:
+			return new LogStorageEngine<>(rm, name, keys, values);
+		case MAPPED:
+			return new MappedStorageEngine<>(rm, name, keys, values);
+		default:
+			return new SerializedStorageEngine<>(rm, name, keys, values);
+		}
+	}
+
+	/**
+	 * Returns an empty map to hold the values of the table. The map must
+	 * support reads concurrent with a write.
+	 */
+	public default Map<K, V> newTable() {
+		return new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Reads the saved table into the given maps, which are empty: the values of
+	 * the keys, and the values saved before the unfinished transactions wrote
+	 * them. Returns the number of records of the log that were replayed.
+	 */
+	public int load(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Saves the new value of a key, or null if the key was removed. Returns the
+	 * position to force for the value to be on disk.
+	 */
+	public long write(int id, K key, V value) throws IOException;
+
+	/**
+	 * Saves the value of a key before the transaction writes it, or null if the
+	 * key did not exist.
+	 */
+	public long writeBefore(int id, K key, V value) throws IOException;
+
+	/**
+	 * Saves the end of a transaction: its previous values are not needed
+	 * anymore.
+	 */
+	public long end(int id) throws IOException;
+
+	/**
+	 * Waits until everything up to the given position is on disk.
+	 */
+	public void force(long position) throws IOException;
+
+	/**
+	 * Returns true if restarting from the saved records would take longer than
+	 * a checkpoint of the table.
+	 */
+	public boolean needsCheckpoint(int size);
+
+	/**
+	 * Saves the table, so that the records written so far are not needed
+	 * anymore. Returns the number of bytes written.
+	 */
+	public long checkpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException;
+
+	/**
+	 * Starts a checkpoint of the table as it is now. The changes written from
+	 * now on are saved after the checkpoint, while the returned checkpoint is
+	 * finished by another thread. The data is an image of the table, which keeps
+	 * the values it has now while the table is written, so that it can be read
+	 * by that thread. The values saved for the unfinished transactions are read
+	 * now. By default, the whole checkpoint is made now.
+	 */
+	public default PendingCheckpoint startCheckpoint(Map<K, V> data, Map<Integer, Map<K, V>> snapshots)
+			throws IOException {
+		long bytes = checkpoint(data, snapshots);
+		return () -> bytes;
+	}
+
+	/**
+	 * Returns the size in bytes of the records that would be replayed on
+	 * restart.
+	 */
+	public long logLength();
+
+	/**
+	 * Saves the whole table, including the values that were not written
+	 * through this engine.
+	 */
+	public void saveAll(Map<K, V> data, Map<Integer, Map<K, V>> snapshots) throws IOException;
+}
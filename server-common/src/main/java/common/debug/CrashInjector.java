@@ -1,7 +1,15 @@
 package common.debug;
 
+import java.util.Timer;
+import java.util.TimerTask;
+
 public class CrashInjector {
 
+	/**
+	 * Time left to send the vote before crashing after it.
+	 */
+	private static final long VOTE_DELAY = 100;
+
 	public static enum When {
 		BEFORE, AFTER
 	}
@@ -40,6 +48,21 @@ public class CrashInjector {
 		}
 	}
 
+	/**
+	 * Crashes once the vote is sent, if a crash is injected there. The timer
+	 * is only started then, not at every vote.
+	 */
+	public void afterVoteSent() {
+		if (when == When.AFTER && operation == Operation.VOTE) {
+			new Timer().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					afterVote();
+				}
+			}, VOTE_DELAY);
+		}
+	}
+
 	public void beforeSave() {
 		if (when == When.BEFORE && operation == Operation.SAVE) {
 			crash();
@@ -0,0 +1,87 @@
+package common.files;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bytes that {@link Codec}s read from, written by a {@link BinaryOutput}.
+ */
+public class BinaryInput {
+
+	private byte[] bytes;
+	private int position;
+	private int end;
+
+	public BinaryInput(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	public BinaryInput(byte[] bytes, int offset, int length) {
+		this.bytes = bytes;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	public int readByte() throws IOException {
+		if (position >= end) {
+			throw new IOException("Unexpected end of the data");
+		}
+
+		return bytes[position++];
+	}
+
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	public int readInt() throws IOException {
+		long l = readUnsigned();
+		return (int) (l >>> 1) ^ -(int) (l & 1);
+	}
+
+	public long readLong() throws IOException {
+		long l = readUnsigned();
+		return (l >>> 1) ^ -(l & 1);
+	}
+
+	public String readString() throws IOException {
+		long length = readUnsigned();
+
+		if (length > end - position) {
+			throw new IOException("Unexpected end of the data");
+		}
+
+		String s = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+		position += length;
+		return s;
+	}
+
+	/**
+	 * Reads a value written by {@link BinaryOutput#writeNullable(Codec, Object)}.
+	 */
+	public <T> T readNullable(Codec<T> codec) throws IOException {
+		return readBoolean() ? codec.read(this) : null;
+	}
+
+	/**
+	 * Returns true if all the bytes were read.
+	 */
+	public boolean isEmpty() {
+		return position == end;
+	}
+
+	private long readUnsigned() throws IOException {
+		long l = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			l |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return l;
+			}
+		}
+
+		throw new IOException("Invalid variable-length integer");
+	}
+}
@@ -0,0 +1,86 @@
+package common.files;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffer that {@link Codec}s write to. Integers are written as variable-length
+ * integers: 7 bits per byte, after a zigzag encoding so that small negative
+ * values are short too. Strings are written as their length followed by their
+ * UTF-8 bytes.
+ */
+public class BinaryOutput {
+
+	private byte[] bytes;
+	private int size;
+
+	public BinaryOutput() {
+		this.bytes = new byte[64];
+		this.size = 0;
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		bytes[size++] = (byte) b;
+	}
+
+	public void writeBoolean(boolean b) {
+		writeByte(b ? 1 : 0);
+	}
+
+	public void writeInt(int i) {
+		writeUnsigned(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+	}
+
+	public void writeLong(long l) {
+		writeUnsigned((l << 1) ^ (l >> 63));
+	}
+
+	public void writeString(String s) {
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		writeUnsigned(utf8.length);
+		write(utf8, 0, utf8.length);
+	}
+
+	public void write(byte[] b, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(b, offset, bytes, size, length);
+		size += length;
+	}
+
+	/**
+	 * Writes a value that may be null.
+	 */
+	public <T> void writeNullable(Codec<T> codec, T value) {
+		writeBoolean(value != null);
+
+		if (value != null) {
+			codec.write(this, value);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	private void writeUnsigned(long l) {
+		ensureCapacity(10);
+
+		while ((l & ~0x7FL) != 0) {
+			bytes[size++] = (byte) ((l & 0x7F) | 0x80);
+			l >>>= 7;
+		}
+
+		bytes[size++] = (byte) l;
+	}
+
+	private void ensureCapacity(int length) {
+		if (size + length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + length));
+		}
+	}
+}
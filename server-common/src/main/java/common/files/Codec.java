@@ -0,0 +1,116 @@
+package common.files;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Writes values of a type in a compact binary format, instead of Java
+ * serialization: no class descriptors, and variable-length integers.
+ *
+ * The data encoded by a codec starts with the version of the format, which is
+ * never the first byte of a Java serialization stream (0xAC), so that files
+ * written by both can be told apart.
+ */
+public interface Codec<T> {
+
+	/**
+	 * Version of the format, written before the encoded data.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	public static final Codec<String> STRINGS = new Codec<String>() {
+		@Override
+		public void write(BinaryOutput out, String value) {
+			out.writeString(value);
+		}
+
+		@Override
+		public String read(BinaryInput in) throws IOException {
+			return in.readString();
+		}
+	};
+
+	public static final Codec<Integer> INTEGERS = new Codec<Integer>() {
+		@Override
+		public void write(BinaryOutput out, Integer value) {
+			out.writeInt(value);
+		}
+
+		@Override
+		public Integer read(BinaryInput in) throws IOException {
+			return in.readInt();
+		}
+	};
+
+	public void write(BinaryOutput out, T value);
+
+	public T read(BinaryInput in) throws IOException;
+
+	/**
+	 * Returns the encoded value, after the version of the format.
+	 */
+	public default byte[] encode(T value) {
+		BinaryOutput out = new BinaryOutput();
+		out.writeByte(FORMAT_VERSION);
+		write(out, value);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads a value returned by {@link #encode(Object)}.
+	 */
+	public default T decode(byte[] bytes, int offset, int length) throws IOException {
+		BinaryInput in = new BinaryInput(bytes, offset, length);
+
+		if (in.readByte() != FORMAT_VERSION) {
+			throw new IOException("Unknown format version " + bytes[offset]);
+		}
+
+		T value = read(in);
+		if (!in.isEmpty()) {
+			throw new IOException("Unexpected data after the value");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns true if the bytes were written by a codec, and not by Java
+	 * serialization.
+	 */
+	public static boolean isEncoded(byte[] bytes, int offset, int length) {
+		return length > 0 && bytes[offset] == FORMAT_VERSION;
+	}
+
+	/**
+	 * Returns a codec for maps, read back as {@link HashMap}s. The values may be
+	 * null.
+	 */
+	public static <K, V> Codec<Map<K, V>> map(Codec<K> keys, Codec<V> values) {
+		return new Codec<Map<K, V>>() {
+			@Override
+			public void write(BinaryOutput out, Map<K, V> map) {
+				out.writeInt(map.size());
+
+				for (Entry<K, V> entry : map.entrySet()) {
+					keys.write(out, entry.getKey());
+					out.writeNullable(values, entry.getValue());
+				}
+			}
+
+			@Override
+			public Map<K, V> read(BinaryInput in) throws IOException {
+				int size = in.readInt();
+				Map<K, V> map = new HashMap<>();
+
+				for (int i = 0; i < size; i++) {
+					map.put(keys.read(in), in.readNullable(values));
+				}
+
+				return map;
+			}
+		};
+	}
+}
@@ -0,0 +1,370 @@
+package common.files;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records, stored next to the save files of a resource
+ * manager. Each record is written with its length and a checksum, so that a
+ * record torn by a crash is detected and dropped when the log is read.
+ *
+ * Appending a record writes it to the file right away, but does not wait for
+ * the disk. {@link #force(long)} waits until the records are on disk. The
+ * threads forcing the log at the same time share the same sync (group commit):
+ * while the disk is busy, the records appended by the other threads wait to be
+ * synced together by the next one.
+ *
+ * The log is split in generations. Once its records are saved elsewhere, e.g.
+ * in a checkpoint, the log starts a new generation and deletes the previous
+ * one.
+ *
+ * The records are written with the {@link Codec} of the log if it has one, and
+ * with Java serialization otherwise. Both formats are read, whatever the codec.
+ * A large generation is read in parallel partitions, which keep the order of
+ * the records.
+ */
+public class LogFile<T extends Serializable> {
+
+	private static final int HEADER_SIZE = 8;
+	private static final int PARTITION_MIN_RECORDS = 10000;
+
+	private File folder;
+	private String key;
+	private long generation;
+	private FileOutputStream out;
+	private long records;
+	private long length;
+	private long appended;
+	private long synced;
+	private boolean syncing;
+	private Codec<T> codec;
+
+	public LogFile(String rm, String key) {
+		this(rm, key, null);
+	}
+
+	public LogFile(String rm, String key, Codec<T> codec) {
+		this.folder = new File(SaveFile.SAVE_FOLDER + "/" + rm);
+		this.key = key;
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the records of a generation, and continues appending to it. A torn
+	 * record at the end of the file, and what follows it, is removed from the
+	 * file.
+	 */
+	public synchronized List<T> read(long generation) throws IOException, ClassNotFoundException {
+		close();
+		this.generation = generation;
+		this.records = 0;
+		this.length = 0;
+
+		List<byte[]> frames = new ArrayList<>();
+		File file = file(generation);
+
+		if (!file.exists()) {
+			return new ArrayList<>();
+		}
+
+		long length = file.length();
+		long valid = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (valid + HEADER_SIZE <= length) {
+				int size = in.readInt();
+				long checksum = in.readInt() & 0xFFFFFFFFL;
+
+				if (size < 0 || valid + HEADER_SIZE + size > length) {
+					break;
+				}
+
+				byte[] bytes = new byte[size];
+				in.readFully(bytes);
+
+				if (checksum(bytes) != checksum) {
+					break;
+				}
+
+				frames.add(bytes);
+				valid += HEADER_SIZE + size;
+			}
+		} catch (EOFException e) {
+			// Torn record
+		}
+
+		if (valid < length) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(valid);
+			}
+		}
+
+		records = frames.size();
+		this.length = valid;
+		return deserialize(frames);
+	}
+
+	/**
+	 * Appends a record, and returns its position in the log.
+	 */
+	public synchronized long append(T record) throws IOException {
+		byte[] bytes = serialize(record);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+		frame.putInt(bytes.length);
+		frame.putInt((int) checksum(bytes));
+		frame.put(bytes);
+
+		if (out == null) {
+			folder.mkdirs();
+			out = new FileOutputStream(file(generation), true);
+		}
+
+		out.write(frame.array());
+		records++;
+		length += frame.capacity();
+		return ++appended;
+	}
+
+	/**
+	 * Waits until the records up to the given position are on disk.
+	 */
+	public void force(long position) throws IOException {
+		FileOutputStream file;
+		long target;
+
+		synchronized (this) {
+			// Another thread is syncing: its sync may include this position
+			while (syncing && synced < position) {
+				waitSync();
+			}
+
+			if (synced >= position) {
+				return;
+			}
+
+			syncing = true;
+			target = appended;
+			file = out;
+		}
+
+		boolean done = false;
+
+		try {
+			if (file != null) {
+				file.getFD().sync();
+			}
+			done = true;
+		} finally {
+			synchronized (this) {
+				syncing = false;
+				if (done) {
+					synced = Math.max(synced, target);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Starts a new generation, and deletes the previous one. The records of the
+	 * previous generation must be saved elsewhere.
+	 */
+	public synchronized void open(long generation) throws IOException {
+		long previous = this.generation;
+		start(generation);
+
+		if (previous != generation) {
+			delete(previous);
+		}
+	}
+
+	/**
+	 * Starts a new generation, and keeps the previous one until it is deleted. A
+	 * file left by an earlier attempt to start the same generation is replaced.
+	 */
+	public synchronized void start(long generation) throws IOException {
+		close();
+		this.generation = generation;
+		this.records = 0;
+		this.length = 0;
+		this.synced = appended;
+
+		file(generation).delete();
+	}
+
+	/**
+	 * Deletes the file of a generation.
+	 */
+	public synchronized void delete(long generation) {
+		file(generation).delete();
+	}
+
+	/**
+	 * Returns the generations that have a file, in increasing order.
+	 */
+	public synchronized List<Long> generations() {
+		List<Long> generations = new ArrayList<>();
+		String[] names = folder.list();
+
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(key + ".") && name.endsWith(".log")) {
+					try {
+						generations.add(Long.parseLong(name.substring(key.length() + 1, name.length() - 4)));
+					} catch (NumberFormatException e) {
+						// Another log whose key starts the same way
+					}
+				}
+			}
+		}
+
+		Collections.sort(generations);
+		return generations;
+	}
+
+	/**
+	 * Returns the number of records of the current generation.
+	 */
+	public synchronized long records() {
+		return records;
+	}
+
+	/**
+	 * Returns the size in bytes of the current generation.
+	 */
+	public synchronized long length() {
+		return length;
+	}
+
+	private void close() throws IOException {
+		while (syncing) {
+			waitSync();
+		}
+
+		if (out != null) {
+			// The records of the generation may still be forced after it ends
+			if (synced < appended) {
+				out.getFD().sync();
+			}
+			out.close();
+			out = null;
+		}
+	}
+
+	private void waitSync() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the log to be synced");
+		}
+	}
+
+	private File file(long generation) {
+		return new File(folder, key + "." + generation + ".log");
+	}
+
+	private static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private byte[] serialize(T record) throws IOException {
+		if (codec != null) {
+			return codec.encode(record);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(record);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads the records of a generation. Each record is read on its own: a
+	 * large generation is split in partitions, read in parallel.
+	 */
+	private List<T> deserialize(List<byte[]> frames) throws IOException, ClassNotFoundException {
+		int partitions = Math.min(Runtime.getRuntime().availableProcessors(),
+				frames.size() / PARTITION_MIN_RECORDS);
+
+		if (partitions <= 1) {
+			return deserializeEach(frames);
+		}
+
+		// Each partition is read by a single task, without being split again
+		List<Future<List<T>>> futures = new ArrayList<>();
+		for (int p = 0; p < partitions; p++) {
+			List<byte[]> partition = frames.subList(p * frames.size() / partitions,
+					(p + 1) * frames.size() / partitions);
+			futures.add(ForkJoinPool.commonPool().submit(() -> deserializeEach(partition)));
+		}
+
+		List<T> list = new ArrayList<>(frames.size());
+
+		try {
+			for (Future<List<T>> future : futures) {
+				list.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while reading the log");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ClassNotFoundException) {
+				throw (ClassNotFoundException) e.getCause();
+			}
+			throw new IOException("Unable to read the log", e.getCause());
+		}
+
+		return list;
+	}
+
+	/**
+	 * Reads records one after the other, in the current thread.
+	 */
+	private List<T> deserializeEach(List<byte[]> frames) throws IOException, ClassNotFoundException {
+		List<T> list = new ArrayList<>(frames.size());
+
+		for (byte[] frame : frames) {
+			list.add(deserialize(frame));
+		}
+
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	private T deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		if (Codec.isEncoded(bytes, 0, bytes.length)) {
+			if (codec == null) {
+				throw new IOException("The record was written by a codec");
+			}
+			return codec.decode(bytes, 0, bytes.length);
+		}
+
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (T) ois.readObject();
+		}
+	}
+}
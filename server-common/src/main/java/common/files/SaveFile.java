@@ -1,19 +1,48 @@
 package common.files;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
 
+/**
+ * File holding one serialized object, replaced as a whole by each save.
+ *
+ * A save never overwrites the file in place: the object is written to a
+ * temporary file, synced, then renamed over the file, which therefore always
+ * exists once something was saved. The file it replaces is kept as the
+ * previous generation, as a hard link made before the rename. The object is
+ * written after a header holding its length and a checksum, so that a file
+ * torn by a crash is detected when it is read, and the previous generation is
+ * read instead.
+ *
+ * The object is written with its {@link Codec} if the file has one, and with
+ * Java serialization otherwise. Both formats are read, whatever the codec.
+ */
 public class SaveFile<T> implements Serializable {
 
 	private static final long serialVersionUID = 8063721852444447972L;
 	public static final String SAVE_FOLDER = "server-data";
 
+	private static final int MAGIC = 0x53415645;
+	private static final int HEADER_SIZE = 16;
+	private static final short SERIALIZATION_MAGIC = (short) 0xACED;
+
 	private File file;
+	private transient Codec<T> codec;
 
 	public SaveFile(String rm, String key) {
 		this(rm, key, "data");
@@ -23,26 +52,186 @@ public class SaveFile<T> implements Serializable {
 		file = new File(SAVE_FOLDER + "/" + rm + "/" + key + "." + extension);
 	}
 
-	public void save(T data) throws IOException {
-		// Create the file if it does not exist
+	public SaveFile(String rm, String key, Codec<T> codec) {
+		this(rm, key);
+		this.codec = codec;
+	}
+
+	/**
+	 * Replaces the saved object. When this returns, the object is on disk, and
+	 * the object saved before is kept as the previous generation. Returns the
+	 * size of the file.
+	 */
+	public long save(T data) throws IOException {
+		byte[] contents;
+
+		if (codec == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(new byte[HEADER_SIZE]);
+
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(data);
+			}
+
+			contents = bytes.toByteArray();
+		} else {
+			byte[] encoded = codec.encode(data);
+			contents = new byte[HEADER_SIZE + encoded.length];
+			System.arraycopy(encoded, 0, contents, HEADER_SIZE, encoded.length);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, HEADER_SIZE, contents.length - HEADER_SIZE);
+		ByteBuffer.wrap(contents).putInt(MAGIC).putInt(contents.length - HEADER_SIZE).putLong(crc.getValue());
+
 		file.getParentFile().mkdirs();
-		file.createNewFile();
+		File temporary = sibling(".tmp");
 
-		FileOutputStream fos = new FileOutputStream(file);
-		ObjectOutputStream oos = new ObjectOutputStream(fos);
-		oos.writeObject(data);
+		try (FileOutputStream fos = new FileOutputStream(temporary)) {
+			fos.write(contents);
+			fos.getFD().sync();
+		}
 
-		oos.close();
+		if (file.exists()) {
+			keepPrevious();
+		}
+		move(temporary, file);
+		syncFolder();
+		return contents.length;
 	}
 
+	/**
+	 * Returns the saved object, or the object saved before it if the file is
+	 * missing or damaged.
+	 *
+	 * @throws FileNotFoundException
+	 *             if nothing was saved yet
+	 */
 	@SuppressWarnings("unchecked")
 	public T read() throws IOException, ClassNotFoundException {
-		FileInputStream fis = new FileInputStream(file);
-		ObjectInputStream ois = new ObjectInputStream(fis);
+		File previous = sibling(".previous");
+
+		if (!file.exists() && !previous.exists()) {
+			throw new FileNotFoundException(file + " was not saved yet");
+		}
+
+		try {
+			return (T) read(file);
+		} catch (IOException e) {
+			if (!previous.exists()) {
+				throw e;
+			}
+
+			log("Unable to read " + file + " (" + e.getMessage() + "), reading the previous generation");
+			return (T) read(previous);
+		}
+	}
+
+	/**
+	 * Returns true if an object was saved.
+	 */
+	public boolean exists() {
+		return file.exists() || sibling(".previous").exists();
+	}
+
+	/**
+	 * Deletes the saved object, and the one saved before it.
+	 */
+	public void delete() {
+		file.delete();
+		sibling(".previous").delete();
+		sibling(".tmp").delete();
+		sibling(".previous.tmp").delete();
+	}
+
+	private Object read(File file) throws IOException, ClassNotFoundException {
+		byte[] contents = Files.readAllBytes(file.toPath());
+
+		if (contents.length >= 2 && ByteBuffer.wrap(contents).getShort() == SERIALIZATION_MAGIC) {
+			// Saved before the files had a header
+			return deserialize(contents, 0, contents.length);
+		}
 
-		T obj = (T) ois.readObject();
-		ois.close();
+		if (contents.length < HEADER_SIZE) {
+			throw new IOException("the header is incomplete");
+		}
+
+		DataInputStream header = new DataInputStream(new ByteArrayInputStream(contents, 0, HEADER_SIZE));
+		if (header.readInt() != MAGIC) {
+			throw new IOException("the header is invalid");
+		}
+
+		int length = header.readInt();
+		long checksum = header.readLong();
+		if (length != contents.length - HEADER_SIZE) {
+			throw new IOException("the file has " + (contents.length - HEADER_SIZE) + " bytes instead of " + length);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(contents, HEADER_SIZE, length);
+		if (crc.getValue() != checksum) {
+			throw new IOException("the checksum does not match");
+		}
+
+		return deserialize(contents, HEADER_SIZE, length);
+	}
+
+	private Object deserialize(byte[] bytes, int offset, int length) throws IOException, ClassNotFoundException {
+		if (Codec.isEncoded(bytes, offset, length)) {
+			if (codec == null) {
+				throw new IOException("the file was written by a codec");
+			}
+			return codec.decode(bytes, offset, length);
+		}
+
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+			return ois.readObject();
+		}
+	}
+
+	/**
+	 * Links the file as the previous generation, or copies it if the file system
+	 * has no hard links. The file itself is left in place.
+	 */
+	private void keepPrevious() throws IOException {
+		File previous = sibling(".previous");
+		Files.deleteIfExists(previous.toPath());
+
+		try {
+			Files.createLink(previous.toPath(), file.toPath());
+		} catch (UnsupportedOperationException | IOException e) {
+			File copy = sibling(".previous.tmp");
+			Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			move(copy, previous);
+		}
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Makes the renames durable. Not every platform can sync a folder, in which
+	 * case the renames are left to the file system.
+	 */
+	private void syncFolder() {
+		try (FileChannel folder = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+			folder.force(true);
+		} catch (IOException e) {
+			// Not supported on this platform
+		}
+	}
+
+	private File sibling(String suffix) {
+		return new File(file.getPath() + suffix);
+	}
 
-		return obj;
+	private void log(String message) {
+		System.out.println("[SaveFile] " + message);
 	}
 }
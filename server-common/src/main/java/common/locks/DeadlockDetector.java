@@ -0,0 +1,176 @@
+package common.locks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.locks.LockManager.VictimPolicy;
+
+/**
+ * Detects deadlocks using a wait-for graph. A transaction waits for the
+ * transactions that hold a conflicting lock on the data item it requested. The
+ * graph is searched each time a transaction starts waiting, which is the only
+ * moment where a new cycle can be created.
+ */
+class DeadlockDetector implements Serializable {
+
+	private static final long serialVersionUID = 4633003232542451339L;
+
+	private LockManager lockManager;
+	private VictimPolicy policy;
+	private AtomicLong deadlocks;
+
+	private transient TPHashTable<LockRequest> waiting;
+	private transient Set<Integer> victims;
+
+	DeadlockDetector(LockManager lockManager, VictimPolicy policy) {
+		this.lockManager = lockManager;
+		this.policy = policy;
+		this.deadlocks = new AtomicLong();
+		this.waiting = new TPHashTable<>();
+		this.victims = ConcurrentHashMap.newKeySet();
+	}
+
+	void setPolicy(VictimPolicy policy) {
+		this.policy = policy;
+	}
+
+	long getDeadlockCount() {
+		return deadlocks.get();
+	}
+
+	/**
+	 * Registers a transaction as waiting for a lock.
+	 */
+	void startWaiting(LockRequest request) {
+		waiting.put(request.getXId(), request);
+	}
+
+	/**
+	 * Unregisters a transaction that obtained its lock or gave up waiting.
+	 */
+	void stopWaiting(int xid) {
+		waiting.remove(xid);
+		victims.remove(xid);
+	}
+
+	/**
+	 * Returns true if the transaction was chosen to be aborted to break a
+	 * deadlock.
+	 */
+	boolean isVictim(int xid) {
+		return victims.contains(xid);
+	}
+
+	/**
+	 * Looks for the cycles in the wait-for graph going through the given
+	 * transaction. A new waiter can close several cycles at once, so the search
+	 * is repeated until none is left. For each cycle, a victim is chosen according
+	 * to the policy, marked as such and woken up. Must be called without holding
+	 * the monitor of any entry.
+	 */
+	void detect(int xid) {
+		List<LockRequest> victimRequests = new ArrayList<>();
+
+		synchronized (this) {
+			List<Integer> cycle = new ArrayList<>();
+
+			// Victims are ignored by the search, so each round breaks at least one cycle
+			while (!victims.contains(xid) && findCycle(xid, xid, new HashSet<>(), cycle)) {
+				deadlocks.incrementAndGet();
+				int victim = chooseVictim(cycle);
+				victims.add(victim);
+				victimRequests.add(waiting.get(victim));
+				log("Deadlock between transactions " + cycle + ", aborting " + victim);
+				cycle.clear();
+			}
+		}
+
+		for (LockRequest request : victimRequests) {
+			if (request != null) {
+				request.wakeUp();
+			}
+		}
+	}
+
+	/**
+	 * Depth-first search of a path from current back to start. The transactions on
+	 * the path are stored in the path list.
+	 */
+	private boolean findCycle(int start, int current, Set<Integer> visited, List<Integer> path) {
+		LockRequest request = waiting.get(current);
+
+		// Victims will give up their request, they cannot be part of a new cycle. A
+		// request handed over is still registered until its thread wakes up.
+		if (request == null || request.isGranted() || victims.contains(current)) {
+			return false;
+		}
+
+		int[] holders;
+		synchronized (request.getEntry()) {
+			// It may have been handed over since, it is then not in the queue anymore
+			if (request.isGranted()) {
+				return false;
+			}
+			holders = request.getEntry().conflictingHolders(request);
+		}
+
+		path.add(current);
+		for (int holder : holders) {
+			if (holder == start) {
+				return true;
+			}
+
+			if (visited.add(holder) && findCycle(start, holder, visited, path)) {
+				return true;
+			}
+		}
+		path.remove(path.size() - 1);
+
+		return false;
+	}
+
+	private int chooseVictim(List<Integer> cycle) {
+		int victim = cycle.get(0);
+
+		for (int xid : cycle) {
+			switch (policy) {
+			case YOUNGEST:
+				// Transaction ids are increasing, the youngest has the largest one
+				if (xid > victim) {
+					victim = xid;
+				}
+				break;
+
+			case FEWEST_LOCKS:
+				int locks = lockManager.countLocks(xid);
+				int victimLocks = lockManager.countLocks(victim);
+				if (locks < victimLocks || (locks == victimLocks && xid > victim)) {
+					victim = xid;
+				}
+				break;
+			}
+		}
+
+		return victim;
+	}
+
+	/**
+	 * Threads waiting before the lock manager was saved do not exist anymore.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.waiting = new TPHashTable<>();
+		this.victims = ConcurrentHashMap.newKeySet();
+	}
+
+	private void log(String message) {
+		System.out.println("[DeadlockDetector] " + message);
+	}
+}
@@ -13,6 +13,15 @@ public class DeadlockException extends Exception {
 		this.xid = xid;
 	}
 
+	/**
+	 * Builds an exception with its own message, for the subclasses giving another
+	 * reason to abort the transaction.
+	 */
+	protected DeadlockException(String message, int xid) {
+		super(message);
+		this.xid = xid;
+	}
+
 	int GetXId() {
 		return xid;
 	}
@@ -0,0 +1,343 @@
+package common.locks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Entry of the lock table. Holds the locks granted on a single data item, and
+ * the queue of the requests waiting for it. Every access to an entry must be
+ * synchronized on the entry itself, so that lock requests on unrelated data
+ * items never wait on the same monitor.
+ *
+ * An item is either a table or a row of a table. Besides READ and WRITE locks,
+ * a table can be locked with the intention of reading or writing some of its
+ * rows. Intention locks are compatible with each other, so that transactions
+ * working on different rows do not wait for each other, but conflict with a
+ * lock on the whole table.
+ *
+ * The granted locks are stored as primitive values: an array of the lock sets
+ * of the holders, with the mode of each one, and the number of holders in each
+ * mode. For each holder, the entry stores the index of the entry in its lock
+ * set, and the lock set stores the position of the holder in the array, so
+ * that a lock is released without searching, however many transactions share
+ * the item. Granting or releasing a lock does not allocate anything.
+ *
+ * Waiting requests are served in FIFO order. When locks are released, the lock
+ * is handed over directly to the requests at the head of the queue that are
+ * compatible with the remaining locks. Only the threads that obtained the lock
+ * are woken up.
+ *
+ * An entry is removed from the lock table when no transaction holds or waits
+ * for the item, and marked as retired: a request that found it in the table
+ * before looks the item up again.
+ */
+class LockEntry implements Serializable {
+
+	private static final long serialVersionUID = -3530468306749339713L;
+	static final int NONE = -1;
+	static final int RETIRED = -2;
+	private static final int SCAN_LIMIT = 4;
+
+	/**
+	 * Lock modes of a table whose rows are locked.
+	 */
+	static final int INTENTION_READ = 2;
+	static final int INTENTION_WRITE = 3;
+
+	/**
+	 * Modes that can be granted together, indexed by the held and the requested
+	 * mode (READ, WRITE, INTENTION_READ, INTENTION_WRITE).
+	 */
+	private static final boolean[][] COMPATIBLE = { { true, false, true, false }, { false, false, false, false },
+			{ true, false, true, true }, { false, false, true, true } };
+
+	/**
+	 * Weakest mode covering both the held and the requested mode. Reading the
+	 * table while writing some rows is covered by a WRITE lock.
+	 */
+	private static final int[][] COMBINED = {
+			{ TrxnObj.READ, TrxnObj.WRITE, TrxnObj.READ, TrxnObj.WRITE },
+			{ TrxnObj.WRITE, TrxnObj.WRITE, TrxnObj.WRITE, TrxnObj.WRITE },
+			{ TrxnObj.READ, TrxnObj.WRITE, INTENTION_READ, INTENTION_WRITE },
+			{ TrxnObj.WRITE, TrxnObj.WRITE, INTENTION_WRITE, INTENTION_WRITE } };
+
+	private String dataName;
+	private LockEntry table;
+	private TxnLocks[] holders;
+	private int[] holderIndexes;
+	private int[] holderModes;
+	private int holderCount;
+	private int[] modeCounts;
+	private transient ArrayDeque<LockRequest> queue;
+	private volatile boolean retired;
+
+	LockEntry(String dataName) {
+		this(dataName, null);
+	}
+
+	/**
+	 * Creates the entry of a row of the given table.
+	 */
+	LockEntry(String dataName, LockEntry table) {
+		this.dataName = dataName;
+		this.table = table;
+		this.holders = new TxnLocks[2];
+		this.holderIndexes = new int[2];
+		this.holderModes = new int[2];
+		this.holderCount = 0;
+		this.modeCounts = new int[4];
+		this.queue = new ArrayDeque<>(2);
+	}
+
+	String getDataName() {
+		return dataName;
+	}
+
+	/**
+	 * Returns the entry of the table of a row, or null if this is not a row.
+	 */
+	LockEntry getTable() {
+		return table;
+	}
+
+	/**
+	 * Returns the weakest mode covering both modes, or the requested mode if
+	 * nothing is held.
+	 */
+	static int combine(int held, int requested) {
+		return held == NONE ? requested : COMBINED[held][requested];
+	}
+
+	/**
+	 * Returns the position of the transaction among the holders, or
+	 * {@link #NONE}. Searches the smallest of the holders of the item and the lock
+	 * set of the transaction.
+	 */
+	int holderPosition(TxnLocks txnLocks) {
+		if (holderCount == 0) {
+			return NONE;
+		}
+
+		if (holderCount <= txnLocks.size()) {
+			for (int i = 0; i < holderCount; i++) {
+				if (holders[i] == txnLocks) {
+					return i;
+				}
+			}
+			return NONE;
+		}
+
+		int index = txnLocks.indexOf(this);
+		return index == NONE ? NONE : txnLocks.getSlot(index);
+	}
+
+	/**
+	 * Returns the mode of the holder at the given position, or {@link #NONE}.
+	 */
+	int modeAt(int position) {
+		return position == NONE ? NONE : holderModes[position];
+	}
+
+	/**
+	 * Returns true if the lock can be granted to a transaction holding the given
+	 * mode, i.e. if no other transaction holds a conflicting lock.
+	 */
+	boolean compatible(int held, int lockType) {
+		for (int mode = 0; mode < modeCounts.length; mode++) {
+			int others = mode == held ? modeCounts[mode] - 1 : modeCounts[mode];
+			if (others > 0 && !COMPATIBLE[mode][lockType]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Grants a lock to a transaction, and records it in the lock set of the
+	 * transaction. If the transaction already holds a lock, its mode is replaced.
+	 *
+	 * @param position the position of the transaction among the holders
+	 */
+	void grant(TxnLocks txnLocks, int position, int lockType) {
+		if (position == NONE) {
+			addHolder(txnLocks, lockType);
+		} else {
+			modeCounts[holderModes[position]]--;
+			modeCounts[lockType]++;
+			holderModes[position] = lockType;
+		}
+	}
+
+	/**
+	 * Releases the lock of a transaction, and hands the item over to the waiting
+	 * requests that can now be granted.
+	 *
+	 * @param index the index of this entry in the lock set of the transaction
+	 */
+	void release(TxnLocks txnLocks, int index) {
+		int position = NONE;
+
+		// Scanning a few holders is cheaper than reading the position in the lock set
+		if (holderCount <= SCAN_LIMIT) {
+			for (int i = 0; i < holderCount; i++) {
+				if (holders[i] == txnLocks) {
+					position = i;
+					break;
+				}
+			}
+		} else {
+			position = txnLocks.getSlot(index);
+		}
+
+		if (position != NONE) {
+			removeHolder(position);
+		}
+
+		grantWaiting();
+	}
+
+	/**
+	 * Returns true if no transaction holds or waits for this item.
+	 */
+	boolean isIdle() {
+		return holderCount == 0 && queue.isEmpty();
+	}
+
+	/**
+	 * Returns true if the entry was removed from the lock table.
+	 */
+	boolean isRetired() {
+		return retired;
+	}
+
+	void retire() {
+		retired = true;
+	}
+
+	/**
+	 * Returns true if some requests are waiting for this item.
+	 */
+	boolean hasWaiting() {
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * Adds a request to the wait queue. A lock conversion (a transaction that
+	 * already has a lock and asks for a stronger one) goes ahead of the other
+	 * requests, as they could not be granted before the held lock is released
+	 * anyway.
+	 */
+	LockRequest enqueue(TxnLocks txnLocks, int lockType, boolean conversion) {
+		LockRequest request = new LockRequest(txnLocks, lockType, this);
+
+		if (conversion) {
+			queue.addFirst(request);
+		} else {
+			queue.addLast(request);
+		}
+
+		return request;
+	}
+
+	/**
+	 * Removes a request that gave up waiting. The requests behind it may now be
+	 * granted.
+	 */
+	void cancel(LockRequest request) {
+		if (queue.remove(request)) {
+			grantWaiting();
+		}
+	}
+
+	/**
+	 * Returns the transactions the given waiting request has to wait for: the
+	 * ones holding a conflicting lock, and the ones ahead of it in the queue with
+	 * a conflicting request.
+	 */
+	int[] conflictingHolders(LockRequest request) {
+		int xid = request.getXId();
+		int[] conflicting = new int[holderCount + queue.size()];
+		int count = 0;
+
+		for (int i = 0; i < holderCount; i++) {
+			if (holders[i].getXId() != xid && !COMPATIBLE[holderModes[i]][request.getLockType()]) {
+				conflicting[count++] = holders[i].getXId();
+			}
+		}
+
+		for (LockRequest ahead : queue) {
+			if (ahead == request) {
+				break;
+			}
+
+			if (ahead.getXId() != xid && !COMPATIBLE[ahead.getLockType()][request.getLockType()]) {
+				conflicting[count++] = ahead.getXId();
+			}
+		}
+
+		return Arrays.copyOf(conflicting, count);
+	}
+
+	/**
+	 * Grants the requests at the head of the queue, until one of them conflicts
+	 * with the granted locks. Stopping at the first conflict keeps the FIFO order,
+	 * so that a WRITE request is not starved by a stream of READ requests.
+	 */
+	private void grantWaiting() {
+		while (!queue.isEmpty()) {
+			LockRequest request = queue.peekFirst();
+			int position = holderPosition(request.getTxnLocks());
+
+			if (!compatible(modeAt(position), request.getLockType())) {
+				return;
+			}
+
+			queue.pollFirst();
+			grant(request.getTxnLocks(), position, request.getLockType());
+			request.grant();
+		}
+	}
+
+	private void addHolder(TxnLocks txnLocks, int lockType) {
+		if (holderCount == holders.length) {
+			holders = Arrays.copyOf(holders, holders.length * 2);
+			holderIndexes = Arrays.copyOf(holderIndexes, holderIndexes.length * 2);
+			holderModes = Arrays.copyOf(holderModes, holderModes.length * 2);
+		}
+
+		holders[holderCount] = txnLocks;
+		holderIndexes[holderCount] = txnLocks.add(this, holderCount);
+		holderModes[holderCount] = lockType;
+		modeCounts[lockType]++;
+		holderCount++;
+	}
+
+	/**
+	 * Removes a holder, and moves the last one to its position. The position of
+	 * the removed holder is left in its lock set, which forgets the entry.
+	 */
+	private void removeHolder(int position) {
+		modeCounts[holderModes[position]]--;
+		holderCount--;
+
+		if (position != holderCount) {
+			holders[position] = holders[holderCount];
+			holderIndexes[position] = holderIndexes[holderCount];
+			holderModes[position] = holderModes[holderCount];
+			holders[position].setSlot(holderIndexes[position], position);
+		}
+		holders[holderCount] = null;
+	}
+
+	/**
+	 * Requests waiting before the lock manager was saved do not exist anymore.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.queue = new ArrayDeque<>(2);
+	}
+}
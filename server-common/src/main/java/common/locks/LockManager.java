@@ -1,8 +1,11 @@
 package common.locks;
 
 import java.io.Serializable;
-import java.util.BitSet;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class LockManager implements Serializable {
 
@@ -12,17 +15,51 @@ public class LockManager implements Serializable {
 
 	private static int TABLE_SIZE = 2039;
 	private static int DEADLOCK_TIMEOUT = 10000;
+	private static int ESCALATION_THRESHOLD = 1000;
 
-	private TPHashTable lockTable;
-	private TPHashTable stampTable;
-	private TPHashTable waitTable;
+	/**
+	 * Waiting time of the requests that wait until the deadlock timeout.
+	 */
+	private static final long DEFAULT_WAIT = -1;
+
+	/**
+	 * Policy used to choose the transaction to abort when there is a deadlock.
+	 */
+	public static enum VictimPolicy {
+		YOUNGEST, FEWEST_LOCKS
+	}
+
+	private ConcurrentHashMap<String, LockEntry> lockTable;
+	private volatile int sweepThreshold;
+	private AtomicBoolean sweeping;
+	private TPHashTable<TxnLocks> trxnTable;
+	private DeadlockDetector detector;
+	private int escalationThreshold;
+	private AtomicLong escalations;
+	private AtomicLong deferredEscalations;
+	private AtomicLong escalatedRows;
 
 	public LockManager() {
-		this.lockTable = new TPHashTable(LockManager.TABLE_SIZE);
-		this.stampTable = new TPHashTable(LockManager.TABLE_SIZE);
-		this.waitTable = new TPHashTable(LockManager.TABLE_SIZE);
+		this(VictimPolicy.YOUNGEST);
 	}
 
+	public LockManager(VictimPolicy policy) {
+		this.lockTable = new ConcurrentHashMap<>(LockManager.TABLE_SIZE);
+		this.sweepThreshold = LockManager.TABLE_SIZE;
+		this.sweeping = new AtomicBoolean();
+		this.trxnTable = new TPHashTable<>();
+		this.detector = new DeadlockDetector(this, policy);
+		this.escalationThreshold = LockManager.ESCALATION_THRESHOLD;
+		this.escalations = new AtomicLong();
+		this.deferredEscalations = new AtomicLong();
+		this.escalatedRows = new AtomicLong();
+	}
+
+	/**
+	 * Locks a data item. When the lock can be granted right away, this does not
+	 * allocate anything, except when the item is not in the lock table and the
+	 * first time a transaction locks an item.
+	 */
 	public boolean lock(int xid, String strData, int lockType) throws DeadlockException {
 
 		// If any parameter is invalid, then return false
@@ -34,59 +71,132 @@ public class LockManager implements Serializable {
 			return false;
 		}
 
-		// Two objects in lock table for easy lookup.
-		TrxnObj trxnObj = new TrxnObj(xid, strData, lockType);
-		DataObj dataObj = new DataObj(xid, strData, lockType);
+		acquire(getTxnLocks(xid), strData, null, lockType, LockManager.DEFAULT_WAIT);
+		return true;
+	}
+
+	/**
+	 * Locks a data item, waiting at most the given time for the conflicting locks
+	 * to be released.
+	 *
+	 * @param timeout the maximum waiting time in milliseconds, 0 to fail right
+	 *                away
+	 * @throws LockTimeoutException if the lock could not be obtained in time
+	 */
+	public boolean lock(int xid, String strData, int lockType, long timeout) throws DeadlockException {
+
+		// If any parameter is invalid, then return false
+		if (xid < 0 || strData == null || timeout < 0) {
+			return false;
+		}
+
+		if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+			return false;
+		}
+
+		if (acquire(getTxnLocks(xid), strData, null, lockType, timeout) == LockEntry.NONE) {
+			throw new LockTimeoutException(xid, strData);
+		}
+		return true;
+	}
+
+	/**
+	 * Locks a data item only if it can be granted without waiting. Returns false
+	 * if another transaction holds a conflicting lock, or is already waiting for
+	 * the item.
+	 */
+	public boolean tryLock(int xid, String strData, int lockType) {
+
+		// If any parameter is invalid, then return false
+		if (xid < 0 || strData == null) {
+			return false;
+		}
+
+		if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+			return false;
+		}
 
-		// Return true when there is no lock conflict or throw a deadlock exception.
 		try {
-			boolean bConflict = true;
-			BitSet bConvert = new BitSet(1);
-
-			while (bConflict) {
-				synchronized (lockTable) {
-					// check if this lock request conflicts with existing locks
-					bConflict = lockConflict(dataObj, bConvert);
-
-					// No lock conflict; grant the lock
-					if (!bConflict) {
-						synchronized (stampTable) {
-							// Remove the time stamp (if any) for this lock request
-							TimeObj timeObj = new TimeObj(xid);
-							stampTable.remove(timeObj);
-						}
-
-						synchronized (waitTable) {
-							// Remove the entry for this transaction from waitTable
-							WaitObj waitObj = new WaitObj(xid, strData, lockType);
-							waitTable.remove(waitObj);
-						}
-
-						if (bConvert.get(0) == true) {
-							// Lock conversion. Remove the read locks and add the new write locks.
-							lockTable.remove(new TrxnObj(xid, strData, TrxnObj.READ));
-							lockTable.remove(new DataObj(xid, strData, TrxnObj.READ));
-						}
-
-						lockTable.add(trxnObj);
-						lockTable.add(dataObj);
-					}
-				}
-				if (bConflict) {
-					// lock conflict exists, wait
-					waitLock(dataObj);
-				}
-			}
-		} catch (DeadlockException deadlock) {
-			throw deadlock;
-		} catch (RedundantLockRequestException redundantlockrequest) {
-			// just ignore the redundant lock request
-			return true;
+			return acquire(getTxnLocks(xid), strData, null, lockType, 0) != LockEntry.NONE;
+		} catch (DeadlockException e) {
+			// Only thrown while waiting
+			return false;
 		}
+	}
 
+	/**
+	 * Locks a row of a table. The table is first locked with the intention of
+	 * reading or writing some of its rows, which only conflicts with the locks on
+	 * the whole table.
+	 *
+	 * When a transaction has locked more rows of a table than the escalation
+	 * threshold, its row locks are replaced by a single lock on the table, so that
+	 * bulk operations do not create one entry per row.
+	 */
+	public boolean lock(int xid, String table, String key, int lockType) throws DeadlockException {
+
+		// If any parameter is invalid, then return false
+		if (xid < 0 || table == null || key == null) {
+			return false;
+		}
+
+		if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+			return false;
+		}
+
+		lockRow(getTxnLocks(xid), table, key, lockType, LockManager.DEFAULT_WAIT);
+		return true;
+	}
+
+	/**
+	 * Locks a row of a table, waiting at most the given time for each of the
+	 * table and the row.
+	 *
+	 * @param timeout the maximum waiting time in milliseconds, 0 to fail right
+	 *                away
+	 * @throws LockTimeoutException if the lock could not be obtained in time
+	 */
+	public boolean lock(int xid, String table, String key, int lockType, long timeout) throws DeadlockException {
+
+		// If any parameter is invalid, then return false
+		if (xid < 0 || table == null || key == null || timeout < 0) {
+			return false;
+		}
+
+		if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+			return false;
+		}
+
+		if (lockRow(getTxnLocks(xid), table, key, lockType, timeout) == LockEntry.NONE) {
+			throw new LockTimeoutException(xid, table + ":" + key);
+		}
 		return true;
 	}
 
+	/**
+	 * Locks a row of a table only if it can be granted without waiting. When the
+	 * row cannot be locked, the transaction may keep the intention lock it
+	 * obtained on the table, which is released with its other locks.
+	 */
+	public boolean tryLock(int xid, String table, String key, int lockType) {
+
+		// If any parameter is invalid, then return false
+		if (xid < 0 || table == null || key == null) {
+			return false;
+		}
+
+		if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) {
+			return false;
+		}
+
+		try {
+			return lockRow(getTxnLocks(xid), table, key, lockType, 0) != LockEntry.NONE;
+		} catch (DeadlockException e) {
+			// Only thrown while waiting
+			return false;
+		}
+	}
+
 	// remove all locks for this transaction in the lock table.
 	public boolean unlockAll(int xid) {
 
@@ -95,71 +205,21 @@ public class LockManager implements Serializable {
 			return false;
 		}
 
-		TrxnObj trxnQueryObj = new TrxnObj(xid, "", -1); // Only used in elements() call below.
-		synchronized (lockTable) {
-			Vector<XObj> vect = lockTable.elements(trxnQueryObj);
-
-			TrxnObj trxnObj;
-			Vector<XObj> waitVector;
-			WaitObj waitObj;
-			int size = vect.size();
-
-			for (int i = (size - 1); i >= 0; i--) {
-				trxnObj = (TrxnObj) vect.elementAt(i);
-				lockTable.remove(trxnObj);
-
-				DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getDataName(), trxnObj.getLockType());
-				lockTable.remove(dataObj);
-
-				// check if there are any waiting transactions.
-				synchronized (waitTable) {
-					// get all the transactions waiting on this dataObj
-					waitVector = waitTable.elements(dataObj);
-					int waitSize = waitVector.size();
-					for (int j = 0; j < waitSize; j++) {
-						waitObj = (WaitObj) waitVector.elementAt(j);
-						if (waitObj.getLockType() == LockManager.WRITE) {
-							if (j == 0) {
-								// get all other transactions which have locks on the
-								// data item just unlocked.
-								Vector<XObj> vect1 = lockTable.elements(dataObj);
-
-								// remove interrupted thread from waitTable only if no
-								// other transaction has locked this data item
-								if (vect1.size() == 0) {
-									waitTable.remove(waitObj);
-
-									try {
-										synchronized (waitObj.getThread()) {
-											waitObj.getThread().notify();
-										}
-									} catch (Exception e) {
-										System.out.println("Exception on unlock\n" + e.getMessage());
-									}
-								} else {
-									// some other transaction still has a lock on
-									// the data item just unlocked. So, WRITE lock
-									// cannot be granted.
-									break;
-								}
-							}
-
-							// stop granting READ locks as soon as you find a WRITE lock
-							// request in the queue of requests
-							break;
-						} else if (waitObj.getLockType() == LockManager.READ) {
-							// remove interrupted thread from waitTable.
-							waitTable.remove(waitObj);
-							try {
-								synchronized (waitObj.getThread()) {
-									waitObj.getThread().notify();
-								}
-							} catch (Exception e) {
-								System.out.println("Exception e\n" + e.getMessage());
-							}
-						}
-					}
-				}
+		TxnLocks txnLocks = trxnTable.remove(xid);
+		if (txnLocks == null) {
+			return true;
+		}
+
+		// Only goes through the items locked by the transaction
+		LockEntry[] entries = txnLocks.entries();
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == null) {
+				continue;
+			}
+
+			synchronized (entries[i]) {
+				// hands the lock over to the transactions waiting on this data item
+				entries[i].release(txnLocks, i);
 			}
 		}
 
@@ -167,139 +227,351 @@ public class LockManager implements Serializable {
 	}
 
 	/**
-	 * Returns true if the lock request on dataObj conflicts with already existing
-	 * locks. If the lock request is a redundant one (for eg: if a transaction holds
-	 * a read lock on certain data item and again requests for a read lock), then
-	 * this is ignored. This is done by throwing RedundantLockRequestException which
-	 * is handled appropriately by the caller. If the lock request is a conversion
-	 * from READ lock to WRITE lock, then bitset is set.
+	 * Returns the number of items locked by a transaction.
 	 */
-	private boolean lockConflict(DataObj dataObj, BitSet bitset) throws RedundantLockRequestException {
-		Vector<XObj> vect = lockTable.elements(dataObj);
-		int size = vect.size();
-
-		// As soon as a lock that conflicts with the current lock request is found,
-		// return true
-		DataObj tmpDataObj;
-		for (int i = 0; i < size; i++) {
-			tmpDataObj = (DataObj) vect.elementAt(i);
-
-			if (dataObj.getXId() == tmpDataObj.getXId()) {
-				// The transaction already has a lock on this data item
-				if (dataObj.getLockType() == TrxnObj.READ) {
-					// since transaction already has a lock (may be READ, may be WRITE. we don't
-					// care) on this data item and it is requesting a READ lock, this lock request
-					// is redundant.
-					throw new RedundantLockRequestException(dataObj.getXId(), "Redundant READ lock request");
-				} else if (dataObj.getLockType() == TrxnObj.WRITE) {
-					// Transaction already has a WRITE lock on this data item
-					if (tmpDataObj.getLockType() == TrxnObj.READ) {
-						// Transaction already had a READ lock
-						bitset.set(0);
-					} else if (tmpDataObj.getLockType() == TrxnObj.WRITE) {
-						// The transaction already had a write lock
-						String message = "Redundant WRITE lock request";
-						throw new RedundantLockRequestException(dataObj.getXId(), message);
-					}
-				}
-			} else {
-				if (dataObj.getLockType() == TrxnObj.READ) {
-					if (tmpDataObj.getLockType() == TrxnObj.WRITE) {
-						// transaction is requesting a READ lock and some other transaction
-						// already has a WRITE lock on it ==> conflict
-						System.out.println("Want READ, someone has WRITE");
-						return true;
-					}
-				} else if (dataObj.getLockType() == TrxnObj.WRITE) {
-					// transaction is requesting a WRITE lock and some other transaction has either
-					// a READ or a WRITE lock on it ==> conflict
-					System.out.println("Want WRITE, someone has READ or WRITE");
-					return true;
-				}
+	int countLocks(int xid) {
+		TxnLocks txnLocks = trxnTable.get(xid);
+		return txnLocks == null ? 0 : txnLocks.size();
+	}
+
+	/**
+	 * Returns the number of items in the lock table.
+	 */
+	int countEntries() {
+		return lockTable.size();
+	}
+
+	/**
+	 * Chooses which transaction is aborted when a deadlock is detected.
+	 */
+	public void setVictimPolicy(VictimPolicy policy) {
+		detector.setPolicy(policy);
+	}
+
+	/**
+	 * Returns the number of deadlocks detected since the lock manager was created.
+	 */
+	public long getDeadlockCount() {
+		return detector.getDeadlockCount();
+	}
+
+	/**
+	 * Sets the number of rows of a table a transaction can lock before its row
+	 * locks are escalated to a table lock. Must be positive.
+	 */
+	public void setEscalationThreshold(int escalationThreshold) {
+		if (escalationThreshold <= 0) {
+			throw new IllegalArgumentException("The escalation threshold must be positive");
+		}
+		this.escalationThreshold = escalationThreshold;
+	}
+
+	/**
+	 * Returns the number of times row locks were escalated to a table lock.
+	 */
+	public long getEscalationCount() {
+		return escalations.get();
+	}
+
+	/**
+	 * Returns the number of escalations that were not done because another
+	 * transaction was working on the table.
+	 */
+	public long getDeferredEscalationCount() {
+		return deferredEscalations.get();
+	}
+
+	/**
+	 * Returns the number of row locks released by escalations.
+	 */
+	public long getEscalatedRowCount() {
+		return escalatedRows.get();
+	}
+
+	/**
+	 * Locks a row and the intention on its table, and escalates the row locks of
+	 * the transaction past the threshold. Returns the mode held on the row, or on
+	 * the table if it covers the row, or {@link LockEntry#NONE} if the lock could
+	 * not be granted without waiting and the timeout is 0.
+	 */
+	private int lockRow(TxnLocks txnLocks, String table, String key, int lockType, long timeout)
+			throws DeadlockException {
+		int intention = lockType == TrxnObj.READ ? LockEntry.INTENTION_READ : LockEntry.INTENTION_WRITE;
+		LockEntry tableEntry;
+		int tableMode;
+
+		do {
+			tableEntry = getEntry(table, null);
+			tableMode = acquire(txnLocks, tableEntry, intention, timeout);
+		} while (tableMode == LockEntry.RETIRED);
+
+		// The row is already covered by a lock on the whole table
+		if (tableMode == TrxnObj.READ || tableMode == TrxnObj.WRITE || tableMode == LockEntry.NONE) {
+			return tableMode;
+		}
+
+		int size = txnLocks.size();
+		int mode = acquire(txnLocks, table + ":" + key, tableEntry, lockType, timeout);
+
+		if (txnLocks.size() > size) {
+			// Escalate past the threshold, and try again every threshold rows if it was not
+			// possible
+			int rows = txnLocks.addRow(tableEntry);
+			if (rows > escalationThreshold && (rows - escalationThreshold - 1) % escalationThreshold == 0) {
+				escalate(txnLocks, tableEntry);
 			}
 		}
 
-		// no conflicting lock found, return false
-		return false;
+		return mode;
+	}
 
+	/**
+	 * Locks an item for a transaction, looking its entry up again if it was
+	 * retired before the lock was requested.
+	 *
+	 * @param table the entry of the table of the item, or null if it is not a row
+	 */
+	private int acquire(TxnLocks txnLocks, String name, LockEntry table, int lockType, long timeout)
+			throws DeadlockException {
+		int mode;
+
+		do {
+			mode = acquire(txnLocks, getEntry(name, table), lockType, timeout);
+		} while (mode == LockEntry.RETIRED);
+
+		return mode;
 	}
 
-	private void waitLock(DataObj dataObj) throws DeadlockException {
-		/*
-		 * Check time stamp or add a new one. Will always add new time stamp for each
-		 * new lock request since the timeObj is deleted each time the transaction
-		 * succeeds in getting a lock (see lock())
-		 */
-
-		TimeObj timeObj = new TimeObj(dataObj.getXId());
-		TimeObj timestamp = null;
-		long timeBlocked = 0;
-		Thread thisThread = Thread.currentThread();
-		WaitObj waitObj = new WaitObj(dataObj.getXId(), dataObj.getDataName(), dataObj.getLockType(), thisThread);
-
-		synchronized (stampTable) {
-			Vector<XObj> vect = stampTable.elements(timeObj);
-
-			if (vect.size() == 0) {
-				// add the time stamp for this lock request to stampTable
-				stampTable.add(timeObj);
-				timestamp = timeObj;
-			} else if (vect.size() == 1) {
-				// lock operation could have timed out; check for deadlock
-				TimeObj prevStamp = (TimeObj) vect.firstElement();
-				timestamp = prevStamp;
-				timeBlocked = timeObj.getTime() - prevStamp.getTime();
-				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-					// the transaction has been waiting for a period greater than the timeout period
-					cleanupDeadlock(prevStamp, waitObj);
-				}
-			} else {
-				/*
-				 * should never get here. shouldn't be more than one time stamp per transaction
-				 * because a transaction at a given time the transaction can be blocked on just
-				 * one lock request.
-				 */
+	/**
+	 * Locks an entry for a transaction, waiting for the conflicting locks to be
+	 * released if needed. Returns the mode held by the transaction on the entry,
+	 * which may be stronger than the one requested.
+	 *
+	 * @param timeout the maximum waiting time in milliseconds, or
+	 *                {@link #DEFAULT_WAIT} to wait until the deadlock timeout. If
+	 *                it is 0, the request does not wait and {@link LockEntry#NONE}
+	 *                is returned when the lock cannot be granted.
+	 * @return {@link LockEntry#RETIRED} if the entry was removed from the lock
+	 *         table, in which case nothing was done
+	 */
+	private int acquire(TxnLocks txnLocks, LockEntry entry, int lockType, long timeout) throws DeadlockException {
+		LockRequest request;
+		int mode;
+
+		synchronized (entry) {
+			// A row whose table entry was retired is retired as well, so that the rows
+			// of a table always point to its current entry
+			LockEntry table = entry.getTable();
+			if (entry.isRetired() || (table != null && table.isRetired() && retireIfIdle(entry))) {
+				return LockEntry.RETIRED;
+			}
+
+			int position = entry.holderPosition(txnLocks);
+			int held = entry.modeAt(position);
+			mode = LockEntry.combine(held, lockType);
+
+			// The transaction already has a lock covering the one it asks for
+			if (mode == held) {
+				return held;
+			}
+
+			// Unless it is a conversion, the request also has to wait behind the requests
+			// already waiting.
+			boolean conversion = held != LockEntry.NONE;
+
+			if (entry.compatible(held, mode) && (conversion || !entry.hasWaiting())) {
+				entry.grant(txnLocks, position, mode);
+				return mode;
+			}
+
+			if (timeout == 0) {
+				return LockEntry.NONE;
+			}
+
+			// lock conflict exists, get in the queue. The lock is recorded in the lock set
+			// of the transaction when it is handed over.
+			request = entry.enqueue(txnLocks, mode, conversion);
+			detector.startWaiting(request);
+		}
+
+		try {
+			// Check for a deadlock outside of the monitor, as it inspects other entries
+			detector.detect(txnLocks.getXId());
+
+			waitLock(request, System.currentTimeMillis(), timeout);
+			return mode;
+		} finally {
+			detector.stopWaiting(txnLocks.getXId());
+		}
+	}
+
+	/**
+	 * Replaces the row locks of a transaction in a table by a lock on the whole
+	 * table, and releases the rows. The table lock is only taken if it can be
+	 * granted right away: waiting for the other transactions working on the table
+	 * could create deadlocks that the row locks would not. Otherwise, the
+	 * transaction keeps its row locks.
+	 */
+	private void escalate(TxnLocks txnLocks, LockEntry table) {
+		int lockType;
+
+		synchronized (table) {
+			int position = table.holderPosition(txnLocks);
+			int held = table.modeAt(position);
+			lockType = held == LockEntry.INTENTION_READ ? TrxnObj.READ : TrxnObj.WRITE;
+
+			if (!table.compatible(held, lockType)) {
+				deferredEscalations.incrementAndGet();
+				return;
+			}
+
+			table.grant(txnLocks, position, lockType);
+		}
+
+		int released = 0;
+		LockEntry[] entries = txnLocks.entries();
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == null || entries[i].getTable() != table) {
+				continue;
+			}
+
+			synchronized (entries[i]) {
+				entries[i].release(txnLocks, i);
+				txnLocks.remove(i);
 			}
+			released++;
 		}
 
-		// Suspend thread and wait until notified...
+		escalations.incrementAndGet();
+		escalatedRows.addAndGet(released);
+		log("Escalated " + released + " row locks of transaction " + txnLocks.getXId() + " to a "
+				+ (lockType == TrxnObj.READ ? "READ" : "WRITE") + " lock on " + table.getDataName());
+	}
+
+	/**
+	 * Returns the entry of an item, and adds it to the lock table if it is not
+	 * there yet.
+	 *
+	 * @param table the entry of the table of the item, or null if it is not a row
+	 */
+	private LockEntry getEntry(String name, LockEntry table) {
+		LockEntry entry = lockTable.get(name);
+
+		if (entry == null) {
+			entry = lockTable.computeIfAbsent(name, n -> new LockEntry(n, table));
+
+			if (lockTable.size() > sweepThreshold) {
+				sweep();
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Removes the entries of the items that no transaction holds or waits for.
+	 * The entries are kept after their locks are released, so that locking an
+	 * item again does not allocate anything, and swept when the lock table has
+	 * grown to twice the number of entries left by the last sweep.
+	 */
+	private void sweep() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
 
-		synchronized (waitTable) {
-			if (!waitTable.contains(waitObj)) {
-				// register this transaction in the waitTable if it is not already there
-				waitTable.add(waitObj);
-			} else {
-				// else lock manager already knows the transaction is waiting.
+		try {
+			for (LockEntry entry : lockTable.values()) {
+				synchronized (entry) {
+					retireIfIdle(entry);
+				}
 			}
+
+			sweepThreshold = Math.max(LockManager.TABLE_SIZE, lockTable.size() * 2);
+		} finally {
+			sweeping.set(false);
 		}
+	}
+
+	/**
+	 * Removes an entry from the lock table if no transaction holds or waits for
+	 * the item, and returns true if it did. Must be called while synchronized on
+	 * the entry.
+	 */
+	private boolean retireIfIdle(LockEntry entry) {
+		if (!entry.isIdle()) {
+			return false;
+		}
+
+		entry.retire();
+		lockTable.remove(entry.getDataName(), entry);
+		return true;
+	}
 
-		synchronized (thisThread) {
-			try {
-				thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-				TimeObj currTime = new TimeObj(dataObj.getXId());
-				timeBlocked = currTime.getTime() - timestamp.getTime();
-				if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-					// the transaction has been waiting for a period greater than the timeout period
-					cleanupDeadlock(timestamp, waitObj);
-				} else {
-					return;
+	/**
+	 * Parks the current thread until the lock is handed over to the request.
+	 * Throws a {@link DeadlockException} if the transaction was chosen as the
+	 * victim of a deadlock, or if the lock request has been waiting for longer
+	 * than the deadlock timeout. The timeout catches the deadlocks that cannot be
+	 * seen from this lock manager, i.e. the ones involving several resource
+	 * managers. Throws a {@link LockTimeoutException} instead if the request has
+	 * been waiting for longer than the time given by the caller.
+	 */
+	private void waitLock(LockRequest request, long start, long timeout) throws DeadlockException {
+		long limit = timeout == LockManager.DEFAULT_WAIT ? LockManager.DEADLOCK_TIMEOUT : timeout;
+
+		while (!request.isGranted()) {
+			long timeBlocked = System.currentTimeMillis() - start;
+			String reason = null;
+
+			if (detector.isVictim(request.getXId())) {
+				reason = "Chosen as deadlock victim.";
+			} else if (timeBlocked >= limit) {
+				// the transaction has been waiting for a period greater than the timeout period
+				reason = timeout == LockManager.DEFAULT_WAIT ? "Sleep timeout...deadlock." : null;
+			}
+
+			if (reason == null && timeBlocked < limit) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(limit - timeBlocked));
+
+				if (Thread.interrupted()) {
+					System.out.println("Thread interrupted?");
+				}
+				continue;
+			}
+
+			LockEntry entry = request.getEntry();
+			synchronized (entry) {
+				// The lock may have been handed over in the meantime
+				if (!request.isGranted()) {
+					entry.cancel(request);
+					if (reason == null) {
+						throw new LockTimeoutException(request.getXId(), entry.getDataName());
+					}
+					throw new DeadlockException(request.getXId(), reason);
 				}
-			} catch (InterruptedException e) {
-				System.out.println("Thread interrupted?");
 			}
 		}
 	}
 
 	/**
-	 * Cleans up stampTable and waitTable, and throws DeadlockException
+	 * Returns the locks of a transaction, and adds it to the transaction table if
+	 * it is not there yet.
 	 */
-	private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj) throws DeadlockException {
-		synchronized (stampTable) {
-			synchronized (waitTable) {
-				stampTable.remove(tmObj);
-				waitTable.remove(waitObj);
+	private TxnLocks getTxnLocks(int xid) {
+		TxnLocks txnLocks = trxnTable.get(xid);
+
+		if (txnLocks == null) {
+			TxnLocks created = new TxnLocks(xid);
+			txnLocks = trxnTable.putIfAbsent(xid, created);
+			if (txnLocks == null) {
+				txnLocks = created;
 			}
 		}
-		throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
+
+		return txnLocks;
+	}
+
+	private void log(String message) {
+		System.out.println("[LockManager] " + message);
 	}
 }
@@ -0,0 +1,57 @@
+package common.locks;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock request waiting in the queue of a {@link LockEntry}. The requesting
+ * thread is parked until the lock is handed over to it by the thread releasing
+ * the conflicting locks.
+ */
+class LockRequest {
+
+	private TxnLocks txnLocks;
+	private int lockType;
+	private LockEntry entry;
+	private Thread thread;
+	private volatile boolean granted;
+
+	LockRequest(TxnLocks txnLocks, int lockType, LockEntry entry) {
+		this.txnLocks = txnLocks;
+		this.lockType = lockType;
+		this.entry = entry;
+		this.thread = Thread.currentThread();
+		this.granted = false;
+	}
+
+	int getXId() {
+		return txnLocks.getXId();
+	}
+
+	TxnLocks getTxnLocks() {
+		return txnLocks;
+	}
+
+	int getLockType() {
+		return lockType;
+	}
+
+	LockEntry getEntry() {
+		return entry;
+	}
+
+	boolean isGranted() {
+		return granted;
+	}
+
+	/**
+	 * Marks the request as granted and wakes up the waiting thread.
+	 */
+	void grant() {
+		granted = true;
+		wakeUp();
+	}
+
+	void wakeUp() {
+		LockSupport.unpark(thread);
+	}
+}
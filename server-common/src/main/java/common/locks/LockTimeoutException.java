@@ -0,0 +1,16 @@
+package common.locks;
+
+/**
+ * A lock could not be obtained within the time the caller accepted to wait.
+ * The transaction is not necessarily deadlocked, but it cannot go on either: it
+ * is handled like a deadlock by the callers that do not need to tell the
+ * difference.
+ */
+public class LockTimeoutException extends DeadlockException {
+
+	private static final long serialVersionUID = -5024330616843367455L;
+
+	public LockTimeoutException(int xid, String strData) {
+		super("The transaction " + xid + " could not lock " + strData + " in time", xid);
+	}
+}
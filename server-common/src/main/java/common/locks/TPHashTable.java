@@ -1,174 +1,295 @@
 package common.locks;
 
 import java.io.Serializable;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * HashTable class for the Lock Manager.
+ * Hash table of the Lock Manager, mapping transaction ids to values.
+ *
+ * The keys are stored as primitive ints and compared by value, in an
+ * open-addressing table with linear probing. The table doubles when it is more
+ * than half full, and removals shift the following entries back instead of
+ * leaving tombstones, so that lookups never scan more than the run of entries
+ * sharing their slot. Lookups, insertions and removals do not allocate
+ * anything, except when the table grows.
+ *
+ * The table is split into {@link #STRIPES} stripes chosen by the hash of the
+ * key, each with its own monitor, so that the transactions calling the Lock
+ * Manager at the same time rarely wait for each other.
+ *
+ * Null values are not allowed: an empty slot is a slot with a null value.
  */
-public class TPHashTable implements Serializable {
+public class TPHashTable<V> implements Serializable {
 
 	private static final long serialVersionUID = 2776697809348151622L;
-	private static final int HASH_DEPTH = 8;
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final int STRIPES = 16;
 
-	private Vector<Vector<XObj>> vect;
-	private int iSize; // size of the hash table
+	private Stripe[] stripes;
 
-	public TPHashTable(int iSize) {
-		this.iSize = iSize;
+	public TPHashTable() {
+		this(DEFAULT_CAPACITY);
+	}
 
-		vect = new Vector<Vector<XObj>>(iSize);
-		for (int i = 0; i < iSize; i++) {
-			this.vect.addElement(new Vector<XObj>(TPHashTable.HASH_DEPTH));
+	/**
+	 * Creates a table holding the given number of values without growing.
+	 */
+	public TPHashTable(int capacity) {
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe((capacity + STRIPES - 1) / STRIPES);
 		}
 	}
 
-	public int getSize() {
-		return iSize;
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
 	}
 
-	public synchronized void add(XObj xobj) {
-		if (xobj == null)
-			return;
+	/**
+	 * Returns the value associated with the key, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		return (V) stripe(key).get(key);
+	}
 
-		Vector<XObj> vectSlot;
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
+	/**
+	 * Associates a value with a key, and returns the previous value, or null if
+	 * there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
 		}
 
-		vectSlot = vect.elementAt(hashSlot);
-		vectSlot.addElement(xobj);
+		return (V) stripe(key).put(key, value, true);
 	}
 
 	/**
-	 * Returns all the elements in the table that have the same key as the given
-	 * XObj.
-	 * 
-	 * @see XObj#key()
+	 * Associates a value with a key if it has none, and returns the value
+	 * associated with the key before, or null if there was none.
 	 */
-	public synchronized Vector<XObj> elements(XObj xobj) {
-		if (xobj == null)
-			return (new Vector<XObj>());
+	@SuppressWarnings("unchecked")
+	public V putIfAbsent(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
 
-		Vector<XObj> vectSlot; // hash slot
-		Vector<XObj> elemVect = new Vector<XObj>(24); // return object
+		return (V) stripe(key).put(key, value, false);
+	}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
-		}
+	/**
+	 * Removes the value associated with a key, and returns it, or null if there
+	 * was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		return (V) stripe(key).remove(key, null);
+	}
 
-		vectSlot = vect.elementAt(hashSlot);
+	/**
+	 * Removes the value associated with a key, only if it is the given value.
+	 */
+	public boolean remove(int key, V value) {
+		return value != null && stripe(key).remove(key, value) != null;
+	}
 
-		int size = vectSlot.size();
-		XObj tmpXobj;
-		for (int i = (size - 1); i >= 0; i--) {
-			tmpXobj = vectSlot.elementAt(i);
-			if (xobj.key() == tmpXobj.key()) {
-				elemVect.addElement(tmpXobj);
-			}
+	/**
+	 * Returns a copy of the values in the table.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> list = new ArrayList<>();
+		for (Stripe stripe : stripes) {
+			stripe.values((List<Object>) list);
 		}
+		return list;
+	}
 
-		return elemVect;
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
 	}
 
-	public synchronized boolean contains(XObj xobj) {
-		if (xobj == null)
-			return false;
+	/**
+	 * Chooses the stripe from the high bits of the hash, the slots of a stripe
+	 * being chosen from its low bits.
+	 */
+	private Stripe stripe(int key) {
+		return stripes[hash(key) >>> 28 & (STRIPES - 1)];
+	}
 
-		Vector<XObj> vectSlot;
+	/**
+	 * Spreads the keys over the table. Transaction ids are consecutive, they would
+	 * otherwise fill runs of adjacent slots.
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
-		}
+	/**
+	 * Part of the table, guarded by its own monitor.
+	 */
+	private static class Stripe implements Serializable {
 
-		vectSlot = vect.elementAt(hashSlot);
-		return vectSlot.contains(xobj);
-	}
+		private static final long serialVersionUID = -4000823616155398937L;
 
-	public synchronized boolean remove(XObj xobj) {
-		if (xobj == null)
-			return false;
+		private int[] keys;
+		private Object[] values;
+		private int size;
 
-		Vector<XObj> vectSlot;
+		Stripe(int capacity) {
+			int slots = DEFAULT_CAPACITY;
+			while (slots < capacity * 2) {
+				slots *= 2;
+			}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
+			this.keys = new int[slots];
+			this.values = new Object[slots];
+			this.size = 0;
 		}
 
-		vectSlot = vect.elementAt(hashSlot);
-		return vectSlot.removeElement(xobj);
-	}
+		synchronized int size() {
+			return size;
+		}
 
-	public synchronized XObj get(XObj xobj) {
-		if (xobj == null)
-			return null;
+		synchronized Object get(int key) {
+			int mask = values.length - 1;
 
-		Vector<XObj> vectSlot;
+			for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
+			return null;
 		}
 
-		vectSlot = vect.elementAt(hashSlot);
+		/**
+		 * Associates a value with a key, replacing the previous value only if
+		 * asked to, and returns the previous value.
+		 */
+		synchronized Object put(int key, Object value, boolean replace) {
+			int mask = values.length - 1;
+			int i = slot(key, mask);
+
+			for (; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					Object previous = values[i];
+					if (replace) {
+						values[i] = value;
+					}
+					return previous;
+				}
+			}
+
+			keys[i] = key;
+			values[i] = value;
 
-		XObj xobj2;
-		int size = vectSlot.size();
-		for (int i = 0; i < size; i++) {
-			xobj2 = vectSlot.elementAt(i);
-			if (xobj.equals(xobj2)) {
-				return xobj2;
+			if (++size * 2 > values.length) {
+				resize(values.length * 2);
 			}
+
+			return null;
 		}
-		return null;
-	}
 
-	public Vector<XObj> allElements() {
-		Vector<XObj> vectSlot = null;
-		XObj xobj = null;
-		Vector<XObj> hashContents = new Vector<XObj>(1024);
+		/**
+		 * Removes the value associated with a key, if it is the expected value or
+		 * if no value is expected, and returns it.
+		 */
+		synchronized Object remove(int key, Object expected) {
+			int mask = values.length - 1;
+
+			for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					Object previous = values[i];
+					if (expected != null && expected != previous) {
+						return null;
+					}
+
+					shiftBack(i, mask);
+					size--;
+					return previous;
+				}
+			}
 
-		for (int i = 0; i < this.iSize; i++) { // walk down hashslots
-			if ((this.vect).size() > 0) { // contains elements?
-				vectSlot = (this.vect).elementAt(i);
+			return null;
+		}
 
-				for (int j = 0; j < vectSlot.size(); j++) { // walk down single hash slot, adding elements.
-					xobj = vectSlot.elementAt(j);
-					hashContents.addElement(xobj);
+		synchronized void values(List<Object> list) {
+			for (Object value : values) {
+				if (value != null) {
+					list.add(value);
 				}
 			}
-			// else contributes nothing.
 		}
 
-		return hashContents;
-	}
+		synchronized void clear() {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = null;
+			}
+			size = 0;
+		}
 
-	public synchronized void removeAll(XObj xobj) {
-		if (xobj == null)
-			return;
+		/**
+		 * Empties the given slot, and moves back the entries of the run that
+		 * follows it and could have been stored there.
+		 */
+		private void shiftBack(int empty, int mask) {
+			int i = empty;
+
+			while (true) {
+				i = (i + 1) & mask;
+				if (values[i] == null) {
+					break;
+				}
 
-		Vector<XObj> vectSlot;
+				// The entry can move back if its slot is not between the empty slot and i
+				int home = slot(keys[i], mask);
+				if (((i - home) & mask) >= ((i - empty) & mask)) {
+					keys[empty] = keys[i];
+					values[empty] = values[i];
+					empty = i;
+				}
+			}
 
-		int hashSlot = (xobj.hashCode() % this.iSize);
-		if (hashSlot < 0) {
-			hashSlot = -hashSlot;
+			values[empty] = null;
 		}
 
-		vectSlot = vect.elementAt(hashSlot);
-
-		XObj xobj2;
-		int size = vectSlot.size();
-		for (int i = (size - 1); i >= 0; i--) {
-			xobj2 = vectSlot.elementAt(i);
-			if (xobj.key() == xobj2.key()) {
-				vectSlot.removeElementAt(i);
+		private void resize(int slots) {
+			int[] oldKeys = keys;
+			Object[] oldValues = values;
+			int mask = slots - 1;
+
+			keys = new int[slots];
+			values = new Object[slots];
+
+			for (int j = 0; j < oldValues.length; j++) {
+				if (oldValues[j] != null) {
+					int i = slot(oldKeys[j], mask);
+					while (values[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
 			}
 		}
-	}
 
+		private static int slot(int key, int mask) {
+			return hash(key) & mask;
+		}
+	}
 }
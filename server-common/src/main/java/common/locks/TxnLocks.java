@@ -0,0 +1,142 @@
+package common.locks;
+
+/**
+ * The locks held by a transaction, stored in the transaction table of the lock
+ * manager. Releasing all the locks of a transaction only goes through this set,
+ * so that it costs time proportional to the number of locks the transaction
+ * holds, whatever the number of locks held by the other transactions.
+ *
+ * For each entry, the set also stores the position of the transaction among
+ * the holders of the entry, so that the entry can remove it without searching.
+ * The positions are updated by the entry, while holding its monitor. The
+ * arrays only grow, so that recording a new lock does not allocate anything
+ * once the transaction holds a few locks. The index of an entry never changes:
+ * an entry released before the end of the transaction leaves an empty index.
+ *
+ * The set also counts the rows locked in each table, to know when the row
+ * locks of a table should be escalated to a single table lock.
+ */
+class TxnLocks extends XObj {
+
+	private static final long serialVersionUID = -2109865316306497113L;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private LockEntry[] entries;
+	private int[] slots;
+	private int length;
+	private int size;
+
+	private LockEntry[] tables;
+	private int[] rows;
+	private int tableCount;
+
+	TxnLocks(int xid) {
+		super(xid);
+		this.entries = new LockEntry[INITIAL_CAPACITY];
+		this.slots = new int[INITIAL_CAPACITY];
+		this.length = 0;
+		this.size = 0;
+		this.tables = new LockEntry[1];
+		this.rows = new int[1];
+		this.tableCount = 0;
+	}
+
+	/**
+	 * Records a lock on a new entry, and returns its index in the set.
+	 *
+	 * @param slot the position of the transaction among the holders of the entry
+	 */
+	synchronized int add(LockEntry entry, int slot) {
+		if (length == entries.length) {
+			LockEntry[] grownEntries = new LockEntry[entries.length * 2];
+			int[] grownSlots = new int[slots.length * 2];
+			System.arraycopy(entries, 0, grownEntries, 0, length);
+			System.arraycopy(slots, 0, grownSlots, 0, length);
+			entries = grownEntries;
+			slots = grownSlots;
+		}
+
+		entries[length] = entry;
+		slots[length] = slot;
+		size++;
+		return length++;
+	}
+
+	/**
+	 * Forgets an entry whose lock was released before the end of the transaction.
+	 */
+	synchronized void remove(int index) {
+		entries[index] = null;
+		slots[index] = LockEntry.NONE;
+		size--;
+	}
+
+	/**
+	 * Returns the index of an entry in the set, or {@link LockEntry#NONE}.
+	 */
+	synchronized int indexOf(LockEntry entry) {
+		for (int i = 0; i < length; i++) {
+			if (entries[i] == entry) {
+				return i;
+			}
+		}
+
+		return LockEntry.NONE;
+	}
+
+	/**
+	 * Returns the position of the transaction among the holders of the entry at
+	 * the given index, or {@link LockEntry#NONE} if it does not hold a lock.
+	 */
+	synchronized int getSlot(int index) {
+		return slots[index];
+	}
+
+	synchronized void setSlot(int index, int slot) {
+		slots[index] = slot;
+	}
+
+	/**
+	 * Returns the number of entries locked by the transaction.
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a copy of the entries locked by the transaction. The index of an
+	 * entry in the copy is its index in the set; released entries are null.
+	 */
+	synchronized LockEntry[] entries() {
+		LockEntry[] copy = new LockEntry[length];
+		System.arraycopy(entries, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Counts a new row lock in a table, and returns the number of rows of the
+	 * table locked by the transaction. A transaction usually works on a few
+	 * tables, they are searched linearly.
+	 */
+	synchronized int addRow(LockEntry table) {
+		for (int i = 0; i < tableCount; i++) {
+			if (tables[i] == table) {
+				return ++rows[i];
+			}
+		}
+
+		if (tableCount == tables.length) {
+			LockEntry[] grownTables = new LockEntry[tables.length * 2];
+			int[] grownRows = new int[rows.length * 2];
+			System.arraycopy(tables, 0, grownTables, 0, tableCount);
+			System.arraycopy(rows, 0, grownRows, 0, tableCount);
+			tables = grownTables;
+			rows = grownRows;
+		}
+
+		tables[tableCount] = table;
+		rows[tableCount] = 1;
+		tableCount++;
+		return 1;
+	}
+}
@@ -0,0 +1,185 @@
+package common.reservations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import common.data.LogRecord;
+import common.data.StorageEngine;
+import common.files.Codec;
+import common.files.LogFile;
+import common.files.SaveFile;
+
+/**
+ * Saves the items of a {@link ReservationManager} in an {@link ItemTable}: the
+ * table is the memory-mapped file itself, so the items are neither kept on the
+ * heap nor deserialized on restart. The changes are appended to a log, and
+ * written to the records of the file once their transaction ends.
+ *
+ * The log is forced before the records are written, so that a record never
+ * reaches the disk before the values saved to undo it. The header of the file
+ * holds the generation of the log that follows the records: a checkpoint
+ * writes the records to disk and starts a new generation.
+ */
+class ItemStorageEngine<R extends ReservableItem> implements StorageEngine<String, R> {
+
+	private static final int CHECKPOINT_MIN_RECORDS = 1000;
+
+	private ItemTable<R> table;
+	private LogFile<LogRecord<String, R>> redoLog;
+	private long generation;
+	private long savedRecords;
+	private Map<Integer, Set<String>> writtenKeys;
+
+	ItemStorageEngine(String rm, String name, ReservableItem.Factory<R> factory) {
+		this.table = new ItemTable<>(new File(SaveFile.SAVE_FOLDER + "/" + rm + "/" + name + ".items"), factory);
+		this.redoLog = new LogFile<>(rm, name + "_items",
+				LogRecord.codec(Codec.STRINGS, ReservableItem.codec(factory)));
+		this.writtenKeys = new HashMap<>();
+	}
+
+	/**
+	 * Returns the table of the engine: the values are always read from the file.
+	 */
+	@Override
+	public Map<String, R> newTable() {
+		return table;
+	}
+
+	/**
+	 * Maps the file, and replays the log that follows its records into the
+	 * table, which must be the one returned by {@link #newTable()}.
+	 */
+	@Override
+	public int load(Map<String, R> data, Map<Integer, Map<String, R>> snapshots)
+			throws IOException, ClassNotFoundException {
+		writtenKeys.clear();
+		savedRecords = 0;
+		generation = table.open();
+
+		List<LogRecord<String, R>> records = redoLog.read(generation);
+		for (LogRecord<String, R> record : records) {
+			record.replay(table, snapshots);
+
+			if (record.getType() == LogRecord.Type.VALUE) {
+				writtenKeys.computeIfAbsent(record.getId(), i -> new HashSet<>()).add(record.getKey());
+			} else if (record.getType() == LogRecord.Type.END) {
+				flush(record.getId());
+			}
+		}
+
+		return records.size();
+	}
+
+	@Override
+	public long write(int id, String key, R value) throws IOException {
+		writtenKeys.computeIfAbsent(id, i -> new HashSet<>()).add(key);
+		return redoLog.append(new LogRecord<>(LogRecord.Type.VALUE, id, key, value));
+	}
+
+	@Override
+	public long writeBefore(int id, String key, R value) throws IOException {
+		return redoLog.append(new LogRecord<>(LogRecord.Type.BEFORE, id, key, value));
+	}
+
+	/**
+	 * Writes the records of the keys of the transaction, once the log is on
+	 * disk.
+	 */
+	@Override
+	public long end(int id) throws IOException {
+		long position = redoLog.append(new LogRecord<>(LogRecord.Type.END, id, null, null));
+
+		if (writtenKeys.containsKey(id)) {
+			redoLog.force(position);
+			flush(id);
+		}
+
+		return position;
+	}
+
+	@Override
+	public void force(long position) throws IOException {
+		redoLog.force(position);
+	}
+
+	/**
+	 * The records are written when their transaction ends: a checkpoint only
+	 * forces them, whatever the size of the table. The records saved again for
+	 * the unfinished transactions are not counted.
+	 */
+	@Override
+	public boolean needsCheckpoint(int size) {
+		return redoLog.records() - savedRecords > Math.max(CHECKPOINT_MIN_RECORDS, savedRecords);
+	}
+
+	/**
+	 * Writes the records to disk, and starts a new generation of the log,
+	 * holding the values saved and written by the unfinished transactions.
+	 */
+	@Override
+	public long checkpoint(Map<String, R> data, Map<Integer, Map<String, R>> snapshots) throws IOException {
+		table.force();
+		redoLog.start(generation + 1);
+		long position = 0;
+
+		for (Entry<Integer, Map<String, R>> snapshot : snapshots.entrySet()) {
+			for (Entry<String, R> entry : snapshot.getValue().entrySet()) {
+				position = redoLog.append(
+						new LogRecord<>(LogRecord.Type.BEFORE, snapshot.getKey(), entry.getKey(), entry.getValue()));
+			}
+		}
+
+		for (Entry<Integer, Set<String>> keys : writtenKeys.entrySet()) {
+			for (String key : keys.getValue()) {
+				position = redoLog
+						.append(new LogRecord<>(LogRecord.Type.VALUE, keys.getKey(), key, table.get(key)));
+			}
+		}
+		redoLog.force(position);
+		savedRecords = redoLog.records();
+
+		table.setGeneration(generation + 1);
+		redoLog.delete(generation);
+		generation++;
+		return redoLog.length();
+	}
+
+	@Override
+	public long logLength() {
+		return redoLog.length();
+	}
+
+	/**
+	 * Writes the records of the values put in the table without a transaction.
+	 */
+	@Override
+	public void saveAll(Map<String, R> data, Map<Integer, Map<String, R>> snapshots) throws IOException {
+		Set<String> keys = new HashSet<>(table.pinnedKeys());
+
+		for (Set<String> written : writtenKeys.values()) {
+			keys.removeAll(written);
+		}
+
+		for (String key : keys) {
+			table.flush(key);
+		}
+
+		checkpoint(data, snapshots);
+	}
+
+	private void flush(int id) throws IOException {
+		Set<String> keys = writtenKeys.remove(id);
+
+		if (keys != null) {
+			for (String key : keys) {
+				table.flush(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,558 @@
+package common.reservations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Table of reservable items stored off the heap, in a memory-mapped file of
+ * fixed-size records. Each record holds the count, price and number of
+ * reserved items, and the key and location of an item encoded in UTF-8. The
+ * heap only holds an index of the records by key, with 2 ints per record.
+ *
+ * The values of the keys being written by a transaction are kept on the heap,
+ * as the transaction modifies them in place. They are written to their record
+ * by {@link #flush(String)}, once the transaction ends.
+ *
+ * Reads do not take any lock: they read the index and the records
+ * optimistically, and read them again if a record was written in the
+ * meantime.
+ */
+class ItemTable<R extends ReservableItem> extends AbstractMap<String, R> {
+
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 64;
+	private static final int TEXT_SIZE = RECORD_SIZE - 20;
+	private static final int INITIAL_RECORDS = 1024;
+	private static final Object REMOVED = new Object();
+
+	private File file;
+	private ReservableItem.Factory<R> factory;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int used;
+	private int size;
+	private ArrayDeque<Integer> free;
+	private int[] buckets;
+	private Map<String, Object> pinned;
+	private StampedLock lock;
+
+	ItemTable(File file, ReservableItem.Factory<R> factory) {
+		this.file = file;
+		this.factory = factory;
+		this.free = new ArrayDeque<>();
+		this.pinned = new ConcurrentHashMap<>();
+		this.lock = new StampedLock();
+	}
+
+	/**
+	 * Maps the file, and indexes its records. Nothing is deserialized: only the
+	 * header of each record is read. Returns the generation stored in the header
+	 * of the file.
+	 */
+	long open() throws IOException {
+		long stamp = lock.writeLock();
+
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+
+			file.getParentFile().mkdirs();
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			boolean created = channel.size() < HEADER_SIZE;
+			map(created ? INITIAL_RECORDS : (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE));
+
+			if (created) {
+				buffer.putInt(0, RECORD_SIZE);
+			} else if (buffer.getInt(0) != RECORD_SIZE) {
+				throw new IOException("The records of " + file + " are not " + RECORD_SIZE + " bytes long");
+			}
+
+			pinned.clear();
+			free.clear();
+			used = 0;
+			size = 0;
+
+			for (int record = 0; record < capacity; record++) {
+				if (buffer.getShort(offset(record)) != 0) {
+					used = record + 1;
+					size++;
+				}
+			}
+
+			for (int record = used - 1; record >= 0; record--) {
+				if (buffer.getShort(offset(record)) == 0) {
+					free.push(record);
+				}
+			}
+
+			buildIndex();
+			return buffer.getLong(8);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Records the generation of the log that follows the records, once they are
+	 * on disk.
+	 */
+	void setGeneration(long generation) {
+		long stamp = lock.writeLock();
+
+		try {
+			buffer.force();
+			buffer.putLong(8, generation);
+			buffer.force();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Writes the records to disk.
+	 */
+	void force() {
+		long stamp = lock.writeLock();
+
+		try {
+			buffer.force();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Writes the value kept on the heap for a key to its record, or frees the
+	 * record if the key was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void flush(String key) throws IOException {
+		Object value = pinned.get(key);
+
+		if (value == null) {
+			return;
+		}
+
+		long stamp = lock.writeLock();
+
+		try {
+			byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+			int record = find(bytes, hash(bytes));
+
+			if (value == REMOVED) {
+				if (record >= 0) {
+					removeFromIndex(record);
+					buffer.putShort(offset(record), (short) 0);
+					free.push(record);
+				}
+			} else {
+				if (record < 0) {
+					record = allocate();
+					write(record, bytes, (R) value);
+					addToIndex(record);
+				} else {
+					write(record, bytes, (R) value);
+				}
+			}
+
+			pinned.remove(key);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the keys whose values are kept on the heap.
+	 */
+	Set<String> pinnedKeys() {
+		return pinned.keySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public R get(Object key) {
+		Object value = pinned.get(key);
+
+		if (value != null) {
+			return value == REMOVED ? null : (R) value;
+		}
+
+		if (!(key instanceof String)) {
+			return null;
+		}
+
+		byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+		int hash = hash(bytes);
+		long stamp = lock.tryOptimisticRead();
+
+		try {
+			int record = find(bytes, hash);
+			R item = record < 0 ? null : read(record);
+
+			if (lock.validate(stamp)) {
+				return item;
+			}
+		} catch (RuntimeException e) {
+			// A record was being written, and was read inconsistently
+		}
+
+		stamp = lock.readLock();
+
+		try {
+			// The value may have been flushed in the meantime
+			value = pinned.get(key);
+			if (value != null) {
+				return value == REMOVED ? null : (R) value;
+			}
+
+			int record = find(bytes, hash);
+			return record < 0 ? null : read(record);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Keeps the value on the heap until the key is flushed.
+	 */
+	@Override
+	public synchronized R put(String key, R value) {
+		R previous = get(key);
+		pinned.put(key, value);
+		size += previous == null ? 1 : 0;
+		return previous;
+	}
+
+	@Override
+	public synchronized R remove(Object key) {
+		R previous = get(key);
+
+		if (previous != null) {
+			pinned.put((String) key, REMOVED);
+			size--;
+		}
+
+		return previous;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Iterates over the records, then over the new keys kept on the heap. The
+	 * iteration is weakly consistent, like the one of a
+	 * {@link ConcurrentHashMap}.
+	 */
+	@Override
+	public Set<Entry<String, R>> entrySet() {
+		return new AbstractSet<Entry<String, R>>() {
+
+			@Override
+			public Iterator<Entry<String, R>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Iterator over the records, then over the new keys kept on the heap.
+	 */
+	private class EntryIterator implements Iterator<Entry<String, R>> {
+
+		private int record;
+		private Iterator<Entry<String, Object>> newKeys;
+		private Entry<String, R> next;
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && record < used) {
+				next = readEntry(record++);
+			}
+
+			if (next == null && newKeys == null) {
+				newKeys = pinned.entrySet().iterator();
+			}
+
+			while (next == null && newKeys.hasNext()) {
+				next = newEntry(newKeys.next());
+			}
+
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, R> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Entry<String, R> entry = next;
+			next = null;
+			return entry;
+		}
+
+		private Entry<String, R> readEntry(int record) {
+			String key;
+			long stamp = lock.readLock();
+
+			try {
+				if (record >= used || buffer.getShort(offset(record)) == 0) {
+					return null;
+				}
+				key = readKey(record);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+
+			R value = get(key);
+			return value == null ? null : new SimpleImmutableEntry<>(key, value);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Entry<String, R> newEntry(Entry<String, Object> entry) {
+			if (entry.getValue() == REMOVED) {
+				return null;
+			}
+
+			byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			long stamp = lock.readLock();
+
+			try {
+				if (find(bytes, hash(bytes)) >= 0) {
+					return null;
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+
+			return new SimpleImmutableEntry<>(entry.getKey(), (R) entry.getValue());
+		}
+	}
+
+	/**
+	 * Layout of a record: the length of the key (0 if the record is free), the
+	 * length of the location (-1 if it is the key), the hash of the key, the
+	 * count, price and number of reserved items, then the key and the location.
+	 */
+	private void write(int record, byte[] key, R item) throws IOException {
+		boolean keyLocation = item.getLocation().equals(new String(key, StandardCharsets.UTF_8));
+		byte[] location = keyLocation ? new byte[0] : item.getLocation().getBytes(StandardCharsets.UTF_8);
+
+		if (key.length + location.length > TEXT_SIZE || key.length == 0) {
+			throw new IOException("The key and location of " + item + " do not fit in a record");
+		}
+
+		int offset = offset(record);
+		buffer.putShort(offset + 2, (short) (keyLocation ? -1 : location.length));
+		buffer.putInt(offset + 4, hash(key));
+		buffer.putInt(offset + 8, item.getCount());
+		buffer.putInt(offset + 12, item.getPrice());
+		buffer.putInt(offset + 16, item.getReserved());
+
+		for (int i = 0; i < key.length; i++) {
+			buffer.put(offset + 20 + i, key[i]);
+		}
+		for (int i = 0; i < location.length; i++) {
+			buffer.put(offset + 20 + key.length + i, location[i]);
+		}
+
+		// Written last, as it marks the record as used
+		buffer.putShort(offset, (short) key.length);
+	}
+
+	private R read(int record) {
+		int offset = offset(record);
+		int keyLength = buffer.getShort(offset);
+		int locationLength = buffer.getShort(offset + 2);
+
+		String location = locationLength < 0 ? text(offset + 20, keyLength)
+				: text(offset + 20 + keyLength, locationLength);
+
+		R item = factory.create(location, buffer.getInt(offset + 8), buffer.getInt(offset + 12));
+		item.setReserved(0, buffer.getInt(offset + 16));
+		return item;
+	}
+
+	private String readKey(int record) {
+		int offset = offset(record);
+		return text(offset + 20, buffer.getShort(offset));
+	}
+
+	private String text(int offset, int length) {
+		byte[] bytes = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the record of a key, or -1. The index uses linear probing, and
+	 * stores the record numbers plus one, 0 being an empty bucket.
+	 */
+	private int find(byte[] key, int hash) {
+		int[] buckets = this.buckets;
+		int mask = buckets.length - 1;
+
+		for (int bucket = hash & mask;; bucket = (bucket + 1) & mask) {
+			int record = buckets[bucket] - 1;
+
+			if (record < 0) {
+				return -1;
+			}
+
+			if (buffer.getInt(offset(record) + 4) == hash && matches(record, key)) {
+				return record;
+			}
+		}
+	}
+
+	private boolean matches(int record, byte[] key) {
+		int offset = offset(record);
+
+		if (buffer.getShort(offset) != key.length) {
+			return false;
+		}
+
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(offset + 20 + i) != key[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void addToIndex(int record) {
+		if (2 * (size + 1) > buckets.length) {
+			buckets = new int[2 * buckets.length];
+			buildIndex();
+		}
+
+		int mask = buckets.length - 1;
+		int bucket = buffer.getInt(offset(record) + 4) & mask;
+
+		while (buckets[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+
+		buckets[bucket] = record + 1;
+	}
+
+	/**
+	 * Removes a record from the index, and moves back the records that follow it
+	 * in the same run of buckets, so that lookups never stop early.
+	 */
+	private void removeFromIndex(int record) {
+		int mask = buckets.length - 1;
+		int bucket = buffer.getInt(offset(record) + 4) & mask;
+
+		while (buckets[bucket] != record + 1) {
+			bucket = (bucket + 1) & mask;
+		}
+
+		int hole = bucket;
+		buckets[hole] = 0;
+
+		for (bucket = (hole + 1) & mask; buckets[bucket] != 0; bucket = (bucket + 1) & mask) {
+			int home = buffer.getInt(offset(buckets[bucket] - 1) + 4) & mask;
+
+			// The record can fill the hole if its home bucket is not between the hole and its bucket
+			if (((bucket - home) & mask) >= ((bucket - hole) & mask)) {
+				buckets[hole] = buckets[bucket];
+				buckets[bucket] = 0;
+				hole = bucket;
+			}
+		}
+	}
+
+	private void buildIndex() {
+		int length = Integer.highestOneBit(Math.max(16, 4 * size - 1));
+		if (buckets == null || buckets.length < length) {
+			buckets = new int[length];
+		} else {
+			buckets = new int[buckets.length];
+		}
+
+		int mask = buckets.length - 1;
+		for (int record = 0; record < used; record++) {
+			int offset = offset(record);
+
+			if (buffer.getShort(offset) != 0) {
+				int bucket = buffer.getInt(offset + 4) & mask;
+				while (buckets[bucket] != 0) {
+					bucket = (bucket + 1) & mask;
+				}
+				buckets[bucket] = record + 1;
+			}
+		}
+	}
+
+	private int allocate() throws IOException {
+		if (!free.isEmpty()) {
+			return free.pop();
+		}
+
+		if (used == capacity) {
+			if (capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE / 2) {
+				throw new IOException("The file " + file + " cannot hold more records");
+			}
+			map(2 * capacity);
+		}
+
+		return used++;
+	}
+
+	private void map(int records) throws IOException {
+		capacity = records;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, offset(records));
+	}
+
+	private static int offset(int record) {
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	private static int hash(byte[] key) {
+		int hash = 0;
+
+		for (byte b : key) {
+			hash = 31 * hash + b;
+		}
+
+		return hash ^ (hash >>> 16);
+	}
+}
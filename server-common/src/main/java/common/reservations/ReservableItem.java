@@ -1,6 +1,11 @@
 package common.reservations;
 
+import java.io.IOException;
+
 import common.data.RMResource;
+import common.files.BinaryInput;
+import common.files.BinaryOutput;
+import common.files.Codec;
 
 public abstract class ReservableItem implements RMResource {
 
@@ -13,6 +18,36 @@ public abstract class ReservableItem implements RMResource {
 	private int reserved;
 	private String location;
 
+	/**
+	 * Builds the items of a {@link ReservationManager} from their fields.
+	 */
+	public static interface Factory<R extends ReservableItem> {
+		R create(String location, int count, int price);
+	}
+
+	/**
+	 * Returns a codec writing the fields of the items, which are built back by
+	 * the factory.
+	 */
+	public static <R extends ReservableItem> Codec<R> codec(Factory<R> factory) {
+		return new Codec<R>() {
+			@Override
+			public void write(BinaryOutput out, R item) {
+				out.writeString(item.getLocation());
+				out.writeInt(item.getCount());
+				out.writeInt(item.getPrice());
+				out.writeInt(item.getReserved());
+			}
+
+			@Override
+			public R read(BinaryInput in) throws IOException {
+				R item = factory.create(in.readString(), in.readInt(), in.readInt());
+				item.setReserved(0, in.readInt());
+				return item;
+			}
+		};
+	}
+
 	public ReservableItem(String location, int count, int price) {
 		this.count = count;
 		this.price = price;
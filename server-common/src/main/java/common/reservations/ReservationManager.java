@@ -1,21 +1,29 @@
 package common.reservations;
 
-import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import common.data.RMHashtable;
+import common.data.StorageEngine.Type;
 import common.debug.CrashInjector;
-import common.files.SaveFile;
+import common.files.Codec;
 import common.locks.DeadlockException;
 import common.locks.LockManager;
+import common.locks.TPHashTable;
 import common.locks.TrxnObj;
+import common.rm.ResourceManager;
+import common.rm.ResourceManager.Vote;
 
 public abstract class ReservationManager<R extends ReservableItem> {
 
 	private RMHashtable<String, R> reservableItems;
 	private LockManager lockManager;
-	private SaveFile<LockManager> locksSaveFile;
+	private TPHashTable<Long> lockTimeouts;
+	private Set<Integer> readOnlyTransactions;
 	private CrashInjector crashInjector;
 
 	/**
@@ -25,12 +33,33 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	 *            the name of the managed resource. Must be unique.
 	 */
 	public ReservationManager(String rm) {
-		this.reservableItems = new RMHashtable<>(rm, "items");
+		this(rm, new RMHashtable<>(rm, "items"));
+	}
+
+	/**
+	 * Builds a {@link ReservationManager} whose items are saved with a binary
+	 * codec instead of Java serialization. They are stored off the heap, in a
+	 * memory-mapped file, if the <code>mapped</code> storage engine is chosen
+	 * for the RM.
+	 * 
+	 * @param factory
+	 *            builds the items read from disk
+	 * @see Type#of(String)
+	 */
+	public ReservationManager(String rm, ReservableItem.Factory<R> factory) {
+		this(rm, Type.of(rm) == Type.MAPPED
+				? new RMHashtable<>(rm, "items", new ItemStorageEngine<>(rm, "items", factory))
+				: new RMHashtable<>(rm, "items", Codec.STRINGS, ReservableItem.codec(factory)));
+	}
+
+	private ReservationManager(String rm, RMHashtable<String, R> reservableItems) {
+		this.reservableItems = reservableItems;
 		this.lockManager = new LockManager();
-		this.locksSaveFile = new SaveFile<>(rm, "locks");
+		this.lockTimeouts = new TPHashTable<>();
+		this.readOnlyTransactions = ConcurrentHashMap.newKeySet();
 		this.crashInjector = new CrashInjector();
 
-		loadSave();
+		recoverLocks();
 	}
 
 	/**
@@ -43,8 +72,7 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected boolean addItem(int id, String key, R instance) throws DeadlockException {
 		log("addItem(" + id + ", " + key + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.WRITE);
-		saveLocks();
+		lockItem(id, key, TrxnObj.WRITE);
 
 		if (reservableItems.containsKey(id, key)) {
 			log("addItem(" + id + ", " + key + "): the key already exist. The current value will be overwitten.");
@@ -70,9 +98,8 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected boolean increaseItemCount(int id, String key, int numItems, int price) throws DeadlockException {
 		log("increaseItemCount(" + id + ", " + key + ", " + numItems + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.WRITE);
-		saveLocks();
-		R item = reservableItems.get(id, key);
+		lockItem(id, key, TrxnObj.WRITE);
+		R item = reservableItems.getForUpdate(id, key);
 
 		if (item == null) {
 			log("increaseItemCount(" + id + ", " + key + ", " + numItems + ") failed: item does not exist");
@@ -96,9 +123,7 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	 * @throws DeadlockException
 	 */
 	protected R getItem(int id, String key) throws DeadlockException {
-		lockManager.lock(id, "reservableItems", TrxnObj.READ);
-		saveLocks();
-		return reservableItems.get(id, key);
+		return readItem(id, key);
 	}
 
 	/**
@@ -111,8 +136,7 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected boolean deleteItem(int id, String key) throws DeadlockException {
 		log("deleteItem(" + id + ", " + key + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.WRITE);
-		saveLocks();
+		lockItem(id, key, TrxnObj.WRITE);
 		boolean success = true;
 		R item = reservableItems.get(id, key);
 
@@ -124,7 +148,7 @@ public abstract class ReservationManager<R extends ReservableItem> {
 			success = false;
 		} else {
 			log("deleteItem(\" + id + \", \" + key + \"): successfully removed item " + item);
-			reservableItems.remove(id, item);
+			reservableItems.remove(id, key);
 		}
 
 		return success;
@@ -138,10 +162,8 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected int queryNum(int id, String key) throws DeadlockException {
 		log("queryNum(" + id + ", " + key + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.READ);
-		saveLocks();
 		int num = 0;
-		ReservableItem item = reservableItems.get(id, key);
+		ReservableItem item = readItem(id, key);
 
 		if (item != null) {
 			num = item.getCount();
@@ -161,10 +183,8 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected int queryPrice(int id, String key) throws DeadlockException {
 		log("queryPrice(" + id + ", " + key + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.READ);
-		saveLocks();
 		int price = 0;
-		ReservableItem item = reservableItems.get(id, key);
+		ReservableItem item = readItem(id, key);
 
 		if (item != null) {
 			price = item.getPrice();
@@ -186,10 +206,9 @@ public abstract class ReservationManager<R extends ReservableItem> {
 	protected boolean reserveItem(int id, String key) throws DeadlockException {
 		log("reserveItem(" + id + ", " + key + ") called");
 
-		lockManager.lock(id, "reservableItems", TrxnObj.READ);
-		saveLocks();
+		lockItem(id, key, TrxnObj.WRITE);
 		boolean success = true;
-		R item = reservableItems.get(id, key);
+		R item = reservableItems.getForUpdate(id, key);
 
 		if (item == null) {
 			success = false;
@@ -206,31 +225,39 @@ public abstract class ReservationManager<R extends ReservableItem> {
 		return success;
 	}
 
-	protected boolean prepareCommit(int id) {
+	protected Vote prepareCommit(int id) {
 		log("prepare(" + id + ") called");
 
 		// Inject crashes if any
 		crashInjector.beforeVote();
-		new Timer().schedule(new TimerTask() {
-			@Override
-			public void run() {
-				crashInjector.afterVote();
-			}
-		}, 100);
+		crashInjector.afterVoteSent();
 
-		boolean result = reservableItems.prepare(id);
-		log("prepare(" + id + ") returning " + result);
-		return result;
+		boolean written = reservableItems.hasWritten(id);
+		Vote vote;
+
+		if (!reservableItems.prepare(id)) {
+			vote = Vote.NO;
+		} else if (written) {
+			vote = Vote.YES;
+		} else {
+			// Nothing to commit: the transaction ends here
+			reservableItems.commit(id);
+			release(id);
+			vote = Vote.READ_ONLY;
+		}
+
+		log("prepare(" + id + ") returning " + vote);
+		return vote;
 	}
 
 	protected boolean commitTransaction(int id) {
 		crashInjector.beforeSave();
 		log("commit(" + id + ") called");
 
-		lockManager.unlockAll(id);
-		saveLocks();
-
+		// The changes are saved before other transactions can see them
 		boolean result = reservableItems.commit(id);
+		release(id);
+
 		log("commit(" + id + ") returning " + result);
 		return result;
 	}
@@ -242,15 +269,45 @@ public abstract class ReservationManager<R extends ReservableItem> {
 		crashInjector.beforeSave();
 		log("abort(" + id + ") called");
 
-		lockManager.unlockAll(id);
 		reservableItems.abort(id);
+		release(id);
 
-		for (ReservableItem ri : reservableItems.values()) {
-			ri.abort(id);
+		return true;
+
+	}
+
+	/**
+	 * Forgets a transaction that committed or aborted, and releases its locks.
+	 */
+	private void release(int id) {
+		lockManager.unlockAll(id);
+		lockTimeouts.remove(id);
+		readOnlyTransactions.remove(id);
+	}
+
+	/**
+	 * Sets the time the next operations of a transaction wait for a lock.
+	 * 
+	 * @see ResourceManager#setLockTimeout(int, long)
+	 */
+	protected boolean setTransactionLockTimeout(int id, long timeout) {
+		if (timeout < 0) {
+			lockTimeouts.remove(id);
+		} else {
+			lockTimeouts.put(id, timeout);
 		}
 
 		return true;
+	}
 
+	/**
+	 * Makes a transaction read the items from a snapshot, without locks.
+	 * 
+	 * @see ResourceManager#setReadOnly(int)
+	 */
+	protected boolean setTransactionReadOnly(int id) {
+		readOnlyTransactions.add(id);
+		return true;
 	}
 
 	/**
@@ -281,23 +338,58 @@ public abstract class ReservationManager<R extends ReservableItem> {
 		return crashInjector.inject(when, operation);
 	}
 
-	private boolean saveLocks() {
-		try {
-			locksSaveFile.save(lockManager);
-			return true;
-		} catch (IOException e) {
-			e.printStackTrace();
-			log("Unable to write to disk");
-			return false;
+	/**
+	 * Locks a single item, as a row of the table of items. Items are locked
+	 * independently from each other, so that transactions working on different
+	 * items never wait for each other. As no operation iterates over the items,
+	 * the lock on a key also protects its creation and its deletion.
+	 * 
+	 * @throws DeadlockException
+	 *             if the transaction is deadlocked, or if the lock could not be
+	 *             obtained within the lock timeout of the transaction
+	 */
+	private void lockItem(int id, String key, int lockType) throws DeadlockException {
+		Long timeout = lockTimeouts.get(id);
+
+		if (timeout == null) {
+			lockManager.lock(id, "items", key, lockType);
+		} else {
+			lockManager.lock(id, "items", key, lockType, timeout);
+		}
+	}
+
+	/**
+	 * Reads an item. A read-only transaction reads its snapshot, and does not wait
+	 * for the transactions writing the item.
+	 */
+	private R readItem(int id, String key) throws DeadlockException {
+		if (readOnlyTransactions.contains(id)) {
+			return reservableItems.getSnapshot(id, key);
 		}
+
+		lockItem(id, key, TrxnObj.READ);
+		return reservableItems.get(id, key);
 	}
 
-	private boolean loadSave() {
-		try {
-			lockManager = locksSaveFile.read();
-			return true;
-		} catch (ClassNotFoundException | IOException e) {
-			return saveLocks();
+	/**
+	 * Locks again the items written by the transactions that were not finished
+	 * when the RM stopped. Locks are only kept in memory: the unfinished
+	 * transactions are the ones whose previous values were saved, and their items
+	 * must not be accessed by other transactions until they commit or abort.
+	 */
+	private void recoverLocks() {
+		Map<Integer, Set<String>> writtenKeys = reservableItems.writtenKeys();
+		int items = 0;
+
+		for (Entry<Integer, Set<String>> entry : writtenKeys.entrySet()) {
+			for (String key : entry.getValue()) {
+				lockManager.tryLock(entry.getKey(), "items", key, TrxnObj.WRITE);
+				items++;
+			}
+		}
+
+		if (!writtenKeys.isEmpty()) {
+			log("Locked " + items + " items of " + writtenKeys.size() + " unfinished transactions");
 		}
 	}
 
@@ -6,15 +6,33 @@ import java.rmi.RemoteException;
 public interface ResourceManager extends Remote {
 
 	/**
-	 * Prepares a commit. Returns whether or no the RM is ready to commit.
+	 * Lock timeout of the transactions that wait for their locks until the
+	 * deadlock timeout.
+	 */
+	public static final long DEFAULT_LOCK_TIMEOUT = -1;
+
+	/**
+	 * Answer of a resource manager to a prepare request.
 	 * 
-	 * @return <code>true</code> if it can commit, <code>false</code> if it wants to
-	 *         abort.
+	 * <ul>
+	 * <li>YES: it can commit the transaction, and waits for the decision.</li>
+	 * <li>NO: it wants to abort the transaction.</li>
+	 * <li>READ_ONLY: the transaction wrote nothing at this RM, which already
+	 * released it. It must not be sent the decision.</li>
+	 * </ul>
+	 */
+	public static enum Vote {
+		YES, NO, READ_ONLY
+	}
+
+	/**
+	 * Prepares a commit. Returns whether or no the RM is ready to commit.
 	 */
-	public boolean prepare(int id) throws RemoteException;
+	public Vote prepare(int id) throws RemoteException;
 
 	/**
-	 * Commits a transaction.
+	 * Commits a transaction. A transaction that was not prepared is committed
+	 * in one phase: its changes are saved before the RM returns.
 	 */
 	public boolean commit(int id) throws RemoteException;
 
@@ -23,6 +41,25 @@ public interface ResourceManager extends Remote {
 	 */
 	public boolean abort(int id) throws RemoteException;
 
+	/**
+	 * Sets the maximum time the next operations of a transaction wait for a lock,
+	 * in milliseconds. With a timeout of 0, an operation fails right away if an
+	 * item is locked by another transaction. Operations failing to get a lock
+	 * throw a {@link common.locks.LockTimeoutException}. The timeout is forgotten
+	 * when the transaction commits or aborts.
+	 * 
+	 * @param timeout
+	 *            the timeout, or {@link #DEFAULT_LOCK_TIMEOUT}
+	 */
+	public boolean setLockTimeout(int id, long timeout) throws RemoteException;
+
+	/**
+	 * Declares a transaction that only reads. Its queries read a snapshot of the
+	 * data committed before its first read at this RM, without taking locks, so
+	 * that they never wait for the writers. The transaction must not write.
+	 */
+	public boolean setReadOnly(int id) throws RemoteException;
+
 	/**
 	 * Shuts down the resource manager
 	 */
@@ -0,0 +1,93 @@
+package common.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the number of reads per second in a table of {@link #ENTRIES}
+ * entries, for an increasing number of threads, up to twice the number of
+ * cores. Each thread reads random keys in its own transaction. Reads do not
+ * wait for each other, so the throughput should grow with the number of
+ * threads until every core is busy. The table is saved in the
+ * <code>benchmark</code> folder of the save directory.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.data.RMHashtableReadBenchmark</code>
+ */
+class RMHashtableReadBenchmark {
+
+	private static final int ENTRIES = 100000;
+	private static final long DURATION = 3000;
+
+	public static void main(String[] args) throws InterruptedException {
+		RMHashtable<String, Value> table = new RMHashtable<>("benchmark", "reads");
+		String[] keys = new String[ENTRIES];
+
+		for (int i = 0; i < ENTRIES; i++) {
+			keys[i] = "key-" + i;
+		}
+
+		if (table.values().size() < ENTRIES) {
+			Map<String, Value> entries = new HashMap<>();
+			for (String key : keys) {
+				entries.put(key, new Value());
+			}
+			table.load(entries);
+		}
+
+		// Let the JIT compile the table
+		run(table, keys, 1);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		double single = 0;
+
+		for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+			double reads = run(table, keys, threads);
+			single = threads == 1 ? reads : single;
+			System.err.printf("%2d threads: %12.0f reads/s, %5.2fx (%d cores)%n", threads, reads, reads / single, cores);
+		}
+	}
+
+	private static double run(RMHashtable<String, Value> table, String[] keys, int threadCount)
+			throws InterruptedException {
+		AtomicLong reads = new AtomicLong();
+		long deadline = System.currentTimeMillis() + DURATION;
+		Thread[] threads = new Thread[threadCount];
+
+		for (int t = 0; t < threads.length; t++) {
+			int id = t + 1;
+
+			threads[t] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long count = 0;
+
+				while (System.currentTimeMillis() < deadline) {
+					for (int i = 0; i < 1000; i++) {
+						table.get(id, keys[random.nextInt(keys.length)]);
+					}
+					count += 1000;
+				}
+
+				reads.addAndGet(count);
+			});
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return reads.get() * 1000.0 / DURATION;
+	}
+
+	private static class Value implements RMResource {
+
+		private static final long serialVersionUID = 2818472057359930375L;
+
+		@Override
+		public Value copy() {
+			return new Value();
+		}
+	}
+}
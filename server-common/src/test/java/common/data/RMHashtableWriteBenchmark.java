@@ -0,0 +1,96 @@
+package common.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the number of durable writes per second in a table of
+ * {@link #ENTRIES} entries. Each transaction writes a random key, then prepares
+ * and commits, for several numbers of concurrent threads. Also prints the
+ * slowest write, which must not include a checkpoint of the table, and the
+ * checkpoints made in the background. The table is saved in the
+ * <code>benchmark</code> folder of the save directory.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.data.RMHashtableWriteBenchmark</code>
+ */
+class RMHashtableWriteBenchmark {
+
+	private static final int ENTRIES = 1000000;
+	private static final long DURATION = 5000;
+	private static final int[] THREADS = { 1, 4, 16 };
+
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	public static void main(String[] args) throws InterruptedException {
+		RMHashtable<String, Value> table = new RMHashtable<>("benchmark", "writes");
+
+		if (table.values().size() < ENTRIES) {
+			Map<String, Value> entries = new HashMap<>();
+			for (int i = 0; i < ENTRIES; i++) {
+				entries.put(key(i), new Value(i));
+			}
+			table.load(entries);
+		}
+
+		for (int threads : THREADS) {
+			run(table, threads);
+		}
+	}
+
+	private static void run(RMHashtable<String, Value> table, int threadCount) throws InterruptedException {
+		AtomicLong writes = new AtomicLong();
+		AtomicLong slowest = new AtomicLong();
+		Checkpointer checkpointer = table.getCheckpointer();
+		long checkpoints = checkpointer.getCheckpoints();
+		long deadline = System.currentTimeMillis() + DURATION;
+		Thread[] threads = new Thread[threadCount];
+
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				Random random = new Random();
+
+				while (System.currentTimeMillis() < deadline) {
+					int id = ids.incrementAndGet();
+					long start = System.nanoTime();
+					table.put(id, key(random.nextInt(ENTRIES)), new Value(id));
+					table.prepare(id);
+					table.commit(id);
+					writes.incrementAndGet();
+					slowest.accumulateAndGet(System.nanoTime() - start, Math::max);
+				}
+			});
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		System.err.printf("%2d threads: %8.0f writes/s, slowest %5d ms, %d checkpoints (last %d ms, %d KB)%n",
+				threadCount, writes.get() * 1000.0 / DURATION, slowest.get() / 1000000,
+				checkpointer.getCheckpoints() - checkpoints, checkpointer.getLastDuration(),
+				checkpointer.getLastBytes() / 1024);
+	}
+
+	private static String key(int i) {
+		return "key-" + i;
+	}
+
+	private static class Value implements RMResource {
+
+		private static final long serialVersionUID = -4180447961372409331L;
+		private int value;
+
+		Value(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public Value copy() {
+			return new Value(value);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package common.data;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import common.data.StorageEngine.Type;
+import common.files.SaveFile;
+
+/**
+ * Compares the storage engines on a table of {@link #ENTRIES} entries: the
+ * time to save the whole table, the number of durable writes per second (each
+ * transaction writes a random key, then prepares and commits), the time to
+ * load the table on restart, and the size of the files. Each engine saves its
+ * table in its own folder of the save directory.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.data.StorageEngineBenchmark</code>
+ */
+class StorageEngineBenchmark {
+
+	private static final int ENTRIES = 100000;
+	private static final int WRITES = 5000;
+
+	public static void main(String[] args) {
+		for (Type type : Type.values()) {
+			run(type);
+		}
+	}
+
+	private static void run(Type type) {
+		String rm = "benchmark-" + type.name().toLowerCase();
+		File folder = new File(SaveFile.SAVE_FOLDER + "/" + rm);
+		delete(folder);
+
+		Map<String, Value> entries = new HashMap<>();
+		for (int i = 0; i < ENTRIES; i++) {
+			entries.put(key(i), new Value(i));
+		}
+
+		RMHashtable<String, Value> table = new RMHashtable<>(rm, "table", type);
+		long start = System.nanoTime();
+		table.load(entries);
+		long saved = System.nanoTime() - start;
+
+		Random random = new Random(0);
+		start = System.nanoTime();
+		for (int id = 1; id <= WRITES; id++) {
+			table.put(id, key(random.nextInt(ENTRIES)), new Value(id));
+			table.prepare(id);
+			table.commit(id);
+		}
+		long written = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		RMHashtable<String, Value> restarted = new RMHashtable<>(rm, "table", type);
+		long loaded = System.nanoTime() - start;
+
+		if (restarted.values().size() != ENTRIES) {
+			throw new IllegalStateException(type + " loaded " + restarted.values().size() + " entries");
+		}
+
+		System.err.printf("%-10s save %6d ms, %8.0f writes/s, load %6d ms, %7d KB on disk%n", type,
+				saved / 1000000, WRITES * 1e9 / written, loaded / 1000000, size(folder) / 1024);
+	}
+
+	private static String key(int i) {
+		return "key-" + i;
+	}
+
+	private static long size(File file) {
+		File[] children = file.listFiles();
+
+		if (children == null) {
+			return file.length();
+		}
+
+		long size = 0;
+		for (File child : children) {
+			size += size(child);
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static class Value implements RMResource {
+
+		private static final long serialVersionUID = -2406914478062317014L;
+		private int value;
+
+		Value(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public Value copy() {
+			return new Value(value);
+		}
+	}
+}
@@ -1,12 +1,242 @@
 package common.data;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
 import org.junit.Test;
 
+import common.data.StorageEngine.Type;
+import common.files.SaveFile;
+
 public class TestRMHashtable {
 
+	private static final String RM = "rmhashtable-test";
+
+	private RMHashtable<String, Value> table;
+
+	@Before
+	public void setUp() {
+		delete(new File(SaveFile.SAVE_FOLDER + "/" + RM));
+		table = new RMHashtable<>(RM, "table");
+	}
+
 	@Test
 	public void test() {
 		// TODO
 	}
 
+	@Test
+	public void snapshotSeesValuesCommittedBeforeItsFirstRead() {
+		table.put(1, "a", new Value(1));
+		table.commit(1);
+
+		assertEquals(new Value(1), table.getSnapshot(100, "a"));
+		assertNull(table.getSnapshot(100, "b"));
+
+		table.put(2, "a", new Value(2));
+		table.put(2, "b", new Value(2));
+		assertEquals(new Value(1), table.getSnapshot(100, "a"));
+		table.commit(2);
+
+		assertEquals(new Value(1), table.getSnapshot(100, "a"));
+		assertNull(table.getSnapshot(100, "b"));
+		assertEquals(new Value(2), table.getSnapshot(101, "a"));
+	}
+
+	@Test
+	public void snapshotNeverSeesAbortedValues() throws Exception {
+		table.put(1, "a", new Value(1));
+		table.commit(1);
+		assertEquals(new Value(1), table.getSnapshot(100, "a"));
+
+		AtomicReference<Value> seen = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				Value value = table.getSnapshot(100, "a");
+
+				if (!new Value(1).equals(value)) {
+					seen.set(value);
+					return;
+				}
+			}
+		});
+		reader.start();
+
+		for (int id = 2; id < 2000 && seen.get() == null; id++) {
+			table.put(id, "a", new Value(-id));
+			table.abort(id);
+		}
+
+		reader.interrupt();
+		reader.join();
+		assertNull(seen.get());
+	}
+
+	@Test
+	public void checkpointSavesTableAsItStarted() throws Exception {
+		for (Type type : Type.values()) {
+			setUp();
+			table = new RMHashtable<>(RM, "table", type);
+			table.put(1, "a", new Value(1));
+			table.put(1, "b", new Value(1));
+			table.commit(1);
+			table.put(2, "a", new Value(2));
+
+			StorageEngine.PendingCheckpoint checkpoint = table.startCheckpoint(true);
+			table.put(3, "c", new Value(3));
+			table.remove(3, "b");
+			table.commit(3);
+			table.put(4, "d", new Value(4));
+			table.abort(4);
+			table.commit(2);
+			checkpoint.finish();
+
+			Map<String, Value> expected = new HashMap<>();
+			expected.put("a", new Value(2));
+			expected.put("c", new Value(3));
+			RMHashtable<String, Value> loaded = new RMHashtable<>(RM, "table", type);
+			assertEquals(type.toString(), expected, loaded.getSnapshot(100));
+		}
+	}
+
+	@Test
+	public void checkpointReadsTableAsItStarted() throws Exception {
+		CapturingEngine engine = new CapturingEngine();
+		table = new RMHashtable<>(RM, "table", engine);
+		table.put(1, "a", new Value(1));
+		table.put(1, "b", new Value(1));
+		table.commit(1);
+		table.put(2, "a", new Value(2));
+
+		StorageEngine.PendingCheckpoint checkpoint = table.startCheckpoint(true);
+		table.put(3, "c", new Value(3));
+		table.remove(3, "b");
+		table.commit(3);
+		table.getForUpdate(2, "a");
+		table.commit(2);
+		checkpoint.finish();
+
+		Map<String, Value> expected = new HashMap<>();
+		expected.put("a", new Value(2));
+		expected.put("b", new Value(1));
+		assertEquals(expected, engine.image);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Serialized engine that keeps what the last checkpoint read from the table.
+	 */
+	private static class CapturingEngine implements StorageEngine<String, Value> {
+
+		private StorageEngine<String, Value> engine = StorageEngine.create(Type.SERIALIZED, RM, "table");
+		private Map<String, Value> image;
+
+		@Override
+		public int load(Map<String, Value> data, Map<Integer, Map<String, Value>> snapshots)
+				throws IOException, ClassNotFoundException {
+			return engine.load(data, snapshots);
+		}
+
+		@Override
+		public long write(int id, String key, Value value) throws IOException {
+			return engine.write(id, key, value);
+		}
+
+		@Override
+		public long writeBefore(int id, String key, Value value) throws IOException {
+			return engine.writeBefore(id, key, value);
+		}
+
+		@Override
+		public long end(int id) throws IOException {
+			return engine.end(id);
+		}
+
+		@Override
+		public void force(long position) throws IOException {
+			engine.force(position);
+		}
+
+		@Override
+		public boolean needsCheckpoint(int size) {
+			return engine.needsCheckpoint(size);
+		}
+
+		@Override
+		public long checkpoint(Map<String, Value> data, Map<Integer, Map<String, Value>> snapshots)
+				throws IOException {
+			return engine.checkpoint(data, snapshots);
+		}
+
+		@Override
+		public PendingCheckpoint startCheckpoint(Map<String, Value> data,
+				Map<Integer, Map<String, Value>> snapshots) throws IOException {
+			PendingCheckpoint checkpoint = engine.startCheckpoint(data, snapshots);
+
+			return () -> {
+				image = new HashMap<>(data);
+				return checkpoint.finish();
+			};
+		}
+
+		@Override
+		public long logLength() {
+			return engine.logLength();
+		}
+
+		@Override
+		public void saveAll(Map<String, Value> data, Map<Integer, Map<String, Value>> snapshots)
+				throws IOException {
+			engine.saveAll(data, snapshots);
+		}
+	}
+
+	private static class Value implements RMResource {
+
+		private static final long serialVersionUID = 3125791478201547380L;
+
+		private int value;
+
+		Value(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public Value copy() {
+			return new Value(value);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Value && ((Value) other).value == value;
+		}
+
+		@Override
+		public int hashCode() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+	}
 }
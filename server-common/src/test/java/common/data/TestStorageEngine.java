@@ -0,0 +1,345 @@
+package common.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import common.data.StorageEngine.Type;
+import common.files.BinaryInput;
+import common.files.BinaryOutput;
+import common.files.Codec;
+import common.files.SaveFile;
+
+/**
+ * Behavior every {@link StorageEngine} must have, run against each engine,
+ * with Java serialization and with codecs.
+ * Each test writes changes the way {@link RMHashtable} does, keeping the
+ * expected table and unfinished transactions next to it, and checks what a
+ * new engine loads from disk.
+ */
+@RunWith(Parameterized.class)
+public class TestStorageEngine {
+
+	private static final String RM = "storage-test";
+
+	@Parameters(name = "{0} {1}")
+	public static Collection<Object[]> engines() {
+		return Arrays.asList(new Object[][] { { Type.SERIALIZED, false }, { Type.LOG, false }, { Type.MAPPED, false },
+				{ Type.SERIALIZED, true }, { Type.LOG, true }, { Type.MAPPED, true } });
+	}
+
+	private Type type;
+	private Codec<String> keys;
+	private Codec<Value> values;
+	private StorageEngine<String, Value> engine;
+	private Map<String, Value> data;
+	private Map<Integer, Map<String, Value>> snapshots;
+
+	/**
+	 * @param codec
+	 *            true to write the keys and values with codecs, false to use
+	 *            Java serialization
+	 */
+	public TestStorageEngine(Type type, boolean codec) {
+		this.type = type;
+		this.keys = codec ? Codec.STRINGS : null;
+		this.values = codec ? Value.CODEC : null;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		delete(new File(SaveFile.SAVE_FOLDER + "/" + RM));
+		data = new HashMap<>();
+		snapshots = new HashMap<>();
+		engine = StorageEngine.create(type, RM, "table", keys, values);
+		assertEquals(0, engine.load(data, snapshots));
+	}
+
+	@Test
+	public void startsEmpty() throws Exception {
+		assertEquals(new HashMap<>(), restart().data);
+	}
+
+	@Test
+	public void committedValuesSurviveRestart() throws Exception {
+		write(1, "a", 1);
+		write(1, "b", 2);
+		remove(1, "b");
+		engine.force(engine.end(1));
+
+		Loaded loaded = restart();
+		assertEquals(data, loaded.data);
+		assertTrue(loaded.snapshots.isEmpty());
+	}
+
+	@Test
+	public void previousValuesKeptUntilEnd() throws Exception {
+		write(1, "a", 1);
+		engine.end(1);
+
+		writeBefore(2, "a");
+		write(2, "a", 9);
+		engine.force(writeBefore(2, "b"));
+
+		Loaded loaded = restart();
+		assertEquals(data, loaded.data);
+		assertEquals(snapshots, loaded.snapshots);
+
+		engine.force(engine.end(2));
+		assertTrue(restart().snapshots.isEmpty());
+	}
+
+	@Test
+	public void checkpointKeepsTableAndUnfinishedTransactions() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			write(1, "key-" + i, i);
+		}
+		engine.end(1);
+
+		writeBefore(2, "key-3");
+		remove(2, "key-3");
+		engine.checkpoint(data, snapshots);
+
+		write(3, "key-4", 40);
+		engine.force(engine.end(3));
+
+		Loaded loaded = restart();
+		assertEquals(data, loaded.data);
+		assertEquals(snapshots, loaded.snapshots);
+	}
+
+	@Test
+	public void changesDuringCheckpointSurviveRestart() throws Exception {
+		write(1, "a", 1);
+		write(1, "b", 2);
+		engine.end(1);
+
+		writeBefore(2, "a");
+		StorageEngine.PendingCheckpoint checkpoint = engine.startCheckpoint(new HashMap<>(data), snapshots);
+
+		write(2, "a", 10);
+		remove(3, "b");
+		engine.force(engine.end(3));
+		checkpoint.finish();
+
+		Loaded loaded = restart();
+		assertEquals(data, loaded.data);
+		assertEquals(snapshots, loaded.snapshots);
+	}
+
+	@Test
+	public void unfinishedCheckpointIsNotNeeded() throws Exception {
+		write(1, "a", 1);
+		write(1, "b", 2);
+		engine.end(1);
+		writeBefore(2, "a");
+		engine.checkpoint(data, snapshots);
+
+		write(2, "a", 10);
+		remove(3, "b");
+		engine.end(3);
+		engine.startCheckpoint(new HashMap<>(data), snapshots);
+
+		write(4, "c", 3);
+		engine.force(engine.end(4));
+
+		Loaded loaded = restart();
+		assertEquals(data, loaded.data);
+		assertEquals(snapshots, loaded.snapshots);
+
+		write(5, "d", 4);
+		engine.force(engine.end(5));
+		assertEquals(data, restart().data);
+	}
+
+	@Test
+	public void repeatedCheckpoints() throws Exception {
+		for (int id = 1; id <= 5000; id++) {
+			String key = "key-" + (id % 100);
+			writeBefore(id, key);
+			write(id, key, id % 7 == 0 ? null : new Value(id));
+			engine.end(id);
+			snapshots.remove(id);
+
+			if (engine.needsCheckpoint(data.size())) {
+				engine.checkpoint(data, snapshots);
+			}
+		}
+		engine.force(engine.end(5001));
+
+		assertEquals(data, restart().data);
+	}
+
+	@Test
+	public void valuesLargerThanARecord() throws Exception {
+		String large = String.join("", Collections.nCopies(300, "large value "));
+
+		write(1, "a", new Value(1, large));
+		write(1, "b", new Value(2, large + large));
+		write(1, "c", 3);
+		engine.end(1);
+		engine.checkpoint(data, snapshots);
+		assertEquals(data, restart().data);
+
+		write(2, "a", 4);
+		write(2, "c", new Value(5, large));
+		remove(2, "b");
+		write(2, "d", new Value(6, large));
+		engine.end(2);
+		engine.checkpoint(data, snapshots);
+
+		assertEquals(data, restart().data);
+	}
+
+	@Test
+	public void saveAllKeepsValuesNotWritten() throws Exception {
+		write(1, "a", 1);
+		engine.end(1);
+
+		data.put("b", new Value(2));
+		data.remove("a");
+		engine.saveAll(data, snapshots);
+
+		assertEquals(data, restart().data);
+	}
+
+	@Test
+	public void loadsTwice() throws Exception {
+		write(1, "a", 1);
+		engine.force(engine.end(1));
+
+		Map<String, Value> first = new HashMap<>();
+		engine.load(first, new HashMap<>());
+		Map<String, Value> second = new HashMap<>();
+		engine.load(second, new HashMap<>());
+
+		assertEquals(data, first);
+		assertEquals(data, second);
+
+		write(2, "b", 2);
+		engine.force(engine.end(2));
+		assertEquals(data, restart().data);
+	}
+
+	/**
+	 * Result of loading the table from disk.
+	 */
+	private static class Loaded {
+
+		private Map<String, Value> data = new HashMap<>();
+		private Map<Integer, Map<String, Value>> snapshots = new HashMap<>();
+	}
+
+	/**
+	 * Loads the table in a new engine, which replaces the current one.
+	 */
+	private Loaded restart() throws IOException, ClassNotFoundException {
+		Loaded loaded = new Loaded();
+		engine = StorageEngine.create(type, RM, "table", keys, values);
+		engine.load(loaded.data, loaded.snapshots);
+		return loaded;
+	}
+
+	private long write(int id, String key, int value) throws IOException {
+		return write(id, key, new Value(value));
+	}
+
+	private long remove(int id, String key) throws IOException {
+		return write(id, key, (Value) null);
+	}
+
+	private long write(int id, String key, Value value) throws IOException {
+		if (value == null) {
+			data.remove(key);
+		} else {
+			data.put(key, value);
+		}
+
+		return engine.write(id, key, value);
+	}
+
+	private long writeBefore(int id, String key) throws IOException {
+		Value value = data.get(key);
+		snapshots.computeIfAbsent(id, i -> new HashMap<>()).put(key, value);
+		return engine.writeBefore(id, key, value);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static class Value implements RMResource {
+
+		private static final long serialVersionUID = -5409278364781526372L;
+
+		private static final Codec<Value> CODEC = new Codec<Value>() {
+			@Override
+			public void write(BinaryOutput out, Value value) {
+				out.writeInt(value.value);
+				out.writeString(value.text);
+			}
+
+			@Override
+			public Value read(BinaryInput in) throws IOException {
+				return new Value(in.readInt(), in.readString());
+			}
+		};
+
+		private int value;
+		private String text;
+
+		Value(int value) {
+			this(value, "");
+		}
+
+		/**
+		 * @param text
+		 *            text that makes the value longer
+		 */
+		Value(int value, String text) {
+			this.value = value;
+			this.text = text;
+		}
+
+		@Override
+		public Value copy() {
+			return new Value(value, text);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Value && ((Value) other).value == value && ((Value) other).text.equals(text);
+		}
+
+		@Override
+		public int hashCode() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+	}
+}
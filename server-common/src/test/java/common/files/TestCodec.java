@@ -0,0 +1,111 @@
+package common.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that the values written by {@link BinaryOutput} and {@link Codec}s
+ * are read back unchanged, and that damaged data is detected.
+ */
+public class TestCodec {
+
+	@Test
+	public void integers() throws Exception {
+		int[] ints = { 0, 1, -1, 63, 64, -64, -65, 127, 128, 300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		long[] longs = { 0, -1, 1L << 35, Long.MAX_VALUE, Long.MIN_VALUE };
+
+		BinaryOutput out = new BinaryOutput();
+		for (int i : ints) {
+			out.writeInt(i);
+		}
+		for (long l : longs) {
+			out.writeLong(l);
+		}
+
+		BinaryInput in = new BinaryInput(out.toByteArray());
+		for (int i : ints) {
+			assertEquals(i, in.readInt());
+		}
+		for (long l : longs) {
+			assertEquals(l, in.readLong());
+		}
+		assertTrue(in.isEmpty());
+	}
+
+	@Test
+	public void smallIntegersTakeOneByte() {
+		BinaryOutput out = new BinaryOutput();
+		out.writeInt(63);
+		out.writeInt(-64);
+
+		assertEquals(2, out.size());
+	}
+
+	@Test
+	public void strings() throws Exception {
+		BinaryOutput out = new BinaryOutput();
+		out.writeString("");
+		out.writeString("Montr\u00e9al");
+		out.writeNullable(Codec.STRINGS, null);
+		out.writeNullable(Codec.STRINGS, "a");
+
+		BinaryInput in = new BinaryInput(out.toByteArray());
+		assertEquals("", in.readString());
+		assertEquals("Montr\u00e9al", in.readString());
+		assertNull(in.readNullable(Codec.STRINGS));
+		assertEquals("a", in.readNullable(Codec.STRINGS));
+	}
+
+	@Test
+	public void maps() throws Exception {
+		Map<Integer, String> map = new HashMap<>();
+		map.put(1, "a");
+		map.put(-2, null);
+
+		Codec<Map<Integer, String>> codec = Codec.map(Codec.INTEGERS, Codec.STRINGS);
+		byte[] bytes = codec.encode(map);
+
+		assertTrue(Codec.isEncoded(bytes, 0, bytes.length));
+		assertEquals(map, codec.decode(bytes, 0, bytes.length));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedData() throws Exception {
+		byte[] bytes = Codec.STRINGS.encode("truncated");
+		Codec.STRINGS.decode(Arrays.copyOf(bytes, bytes.length - 1), 0, bytes.length - 1);
+	}
+
+	@Test
+	public void saveFileReadsBothFormats() throws Exception {
+		File folder = new File(SaveFile.SAVE_FOLDER + "/codec-test");
+		File[] children = folder.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+
+		Codec<Map<Integer, String>> codec = Codec.map(Codec.INTEGERS, Codec.STRINGS);
+		Map<Integer, String> map = new HashMap<>();
+		map.put(1, "a");
+
+		new SaveFile<HashMap<Integer, String>>("codec-test", "map").save(new HashMap<>(map));
+		assertEquals(map, new SaveFile<>("codec-test", "map", codec).read());
+
+		map.put(2, "b");
+		new SaveFile<>("codec-test", "map", codec).save(map);
+		assertEquals(map, new SaveFile<>("codec-test", "map", codec).read());
+		assertFalse(Codec.isEncoded(new byte[] { (byte) 0xAC, (byte) 0xED }, 0, 2));
+	}
+}
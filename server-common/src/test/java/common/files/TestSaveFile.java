@@ -0,0 +1,145 @@
+package common.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a {@link SaveFile} damaged by a crash is detected, and that the
+ * previous generation is read instead.
+ */
+public class TestSaveFile {
+
+	private static final String RM = "save-file-test";
+
+	private File file;
+	private SaveFile<ArrayList<String>> saveFile;
+
+	@Before
+	public void setUp() {
+		File folder = new File(SaveFile.SAVE_FOLDER + "/" + RM);
+		File[] children = folder.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+
+		file = new File(folder, "list.data");
+		saveFile = new SaveFile<>(RM, "list");
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void nothingSaved() throws Exception {
+		assertFalse(saveFile.exists());
+		saveFile.read();
+	}
+
+	@Test
+	public void readsLastSave() throws Exception {
+		saveFile.save(list("a"));
+		saveFile.save(list("a", "b"));
+
+		assertTrue(saveFile.exists());
+		assertEquals(list("a", "b"), saveFile.read());
+	}
+
+	@Test
+	public void fileExistsDuringSaves() throws Exception {
+		saveFile.save(list("a"));
+		AtomicBoolean missing = new AtomicBoolean();
+		AtomicBoolean saving = new AtomicBoolean(true);
+
+		Thread reader = new Thread(() -> {
+			while (saving.get()) {
+				if (!file.exists()) {
+					missing.set(true);
+				}
+			}
+		});
+		reader.start();
+
+		for (int i = 0; i < 200; i++) {
+			saveFile.save(list("a", String.valueOf(i)));
+		}
+
+		saving.set(false);
+		reader.join();
+		assertFalse(missing.get());
+		assertEquals(list("a", "199"), saveFile.read());
+	}
+
+	@Test
+	public void truncatedFileFallsBack() throws Exception {
+		saveFile.save(list("a"));
+		saveFile.save(list("a", "b"));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() / 2);
+		}
+
+		assertEquals(list("a"), saveFile.read());
+	}
+
+	@Test
+	public void corruptedFileFallsBack() throws Exception {
+		saveFile.save(list("a"));
+		saveFile.save(list("a", "b"));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(raf.length() - 4);
+			raf.write(0x55);
+		}
+
+		assertEquals(list("a"), saveFile.read());
+	}
+
+	@Test
+	public void missingFileFallsBack() throws Exception {
+		saveFile.save(list("a"));
+		saveFile.save(list("a", "b"));
+		assertTrue(file.delete());
+
+		assertEquals(list("a"), saveFile.read());
+	}
+
+	@Test(expected = IOException.class)
+	public void damagedWithoutPreviousGeneration() throws Exception {
+		saveFile.save(list("a"));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(10);
+		}
+
+		saveFile.read();
+	}
+
+	@Test
+	public void readsFilesWithoutHeader() throws Exception {
+		file.getParentFile().mkdirs();
+
+		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+			oos.writeObject(list("old"));
+		}
+
+		assertEquals(list("old"), saveFile.read());
+	}
+
+	private static ArrayList<String> list(String... values) {
+		return new ArrayList<>(Arrays.asList(values));
+	}
+}
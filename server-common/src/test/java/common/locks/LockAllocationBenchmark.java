@@ -0,0 +1,64 @@
+package common.locks;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the amount of memory allocated by uncontended calls to
+ * {@link LockManager#lock(int, String, int)}. Each transaction locks
+ * {@link #LOCKS_PER_TRANSACTION} items; the first lock of a transaction, which
+ * creates its entry in the transaction table, is not measured.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.locks.LockAllocationBenchmark</code>
+ */
+class LockAllocationBenchmark {
+
+	private static final int LOCKS_PER_TRANSACTION = 8;
+	private static final int WARMUP = 200000;
+	private static final int TRANSACTIONS = 1000000;
+
+	public static void main(String[] args) throws DeadlockException {
+		ThreadMXBean mxBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		LockManager lm = new LockManager();
+		String[] items = new String[LOCKS_PER_TRANSACTION];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = "item-" + i;
+		}
+
+		// Let the JIT compile the lock manager
+		run(lm, items, 0, WARMUP);
+
+		long allocated = 0;
+		long calibration = mxBean.getThreadAllocatedBytes(thread);
+		calibration = mxBean.getThreadAllocatedBytes(thread) - calibration;
+
+		for (int xid = WARMUP; xid < WARMUP + TRANSACTIONS; xid++) {
+			lm.lock(xid, items[0], LockManager.WRITE);
+
+			long before = mxBean.getThreadAllocatedBytes(thread);
+			for (int i = 1; i < items.length; i++) {
+				lm.lock(xid, items[i], i % 2 == 0 ? LockManager.READ : LockManager.WRITE);
+				lm.lock(xid, items[i], LockManager.READ);
+			}
+			allocated += mxBean.getThreadAllocatedBytes(thread) - before - calibration;
+
+			lm.unlockAll(xid);
+		}
+
+		long calls = (long) TRANSACTIONS * (LOCKS_PER_TRANSACTION - 1) * 2;
+		System.out.printf("%.3f bytes allocated per lock call (%,d calls)%n", (double) allocated / calls, calls);
+	}
+
+	private static void run(LockManager lm, String[] items, int from, int to) throws DeadlockException {
+		for (int xid = from; xid < to; xid++) {
+			for (int i = 0; i < items.length; i++) {
+				lm.lock(xid, items[i], i % 2 == 0 ? LockManager.READ : LockManager.WRITE);
+				lm.lock(xid, items[i], LockManager.READ);
+			}
+			lm.unlockAll(xid);
+		}
+	}
+}
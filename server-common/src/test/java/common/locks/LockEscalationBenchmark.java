@@ -0,0 +1,47 @@
+package common.locks;
+
+/**
+ * Measures a transaction locking {@link #ROWS} rows of a table, as
+ * <code>clearReservationsForItem</code> does with the customers, for several
+ * escalation thresholds. Reports the time taken, the memory used by the locks
+ * and the escalation statistics of the lock manager.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.locks.LockEscalationBenchmark</code>
+ */
+class LockEscalationBenchmark {
+
+	private static final int ROWS = 1000000;
+	private static final int[] THRESHOLDS = { 100, 1000, 10000, Integer.MAX_VALUE };
+
+	public static void main(String[] args) throws DeadlockException {
+		String[] keys = new String[ROWS];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = String.valueOf(i);
+		}
+
+		for (int threshold : THRESHOLDS) {
+			LockManager lm = new LockManager();
+			lm.setEscalationThreshold(threshold);
+			long memory = usedMemory();
+
+			long start = System.nanoTime();
+			for (String key : keys) {
+				lm.lock(1, "customers", key, LockManager.WRITE);
+			}
+			long locked = System.nanoTime() - start;
+			memory = usedMemory() - memory;
+			lm.unlockAll(1);
+			long total = System.nanoTime() - start;
+
+			System.out.printf("threshold %10s: %6d ms locking, %6d ms total, %6d KB, %d escalations, %d rows released%n",
+					threshold == Integer.MAX_VALUE ? "none" : String.valueOf(threshold), locked / 1000000,
+					total / 1000000, memory / 1024, lm.getEscalationCount(), lm.getEscalatedRowCount());
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,80 @@
+package common.locks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of the {@link LockManager} when several threads lock
+ * unrelated data items. Every iteration starts a new transaction, acquires
+ * {@link #LOCKS_PER_TRANSACTION} locks and releases them with
+ * {@link LockManager#unlockAll(int)}.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.locks.LockManagerBenchmark</code>
+ */
+class LockManagerBenchmark {
+
+	private static final int[] THREADS = { 1, 4, 16, 64 };
+	private static final int LOCKS_PER_TRANSACTION = 8;
+	private static final long WARMUP = 2000;
+	private static final long DURATION = 5000;
+
+	public static void main(String[] args) throws InterruptedException {
+		for (int threads : THREADS) {
+			run(threads, WARMUP);
+			long ops = run(threads, DURATION);
+			System.out.printf("%2d threads: %,12d lock calls/s%n", threads, ops * 1000 / DURATION);
+		}
+	}
+
+	/**
+	 * Runs the benchmark for the given amount of milliseconds and returns the
+	 * number of lock calls performed.
+	 */
+	private static long run(int threads, long duration) throws InterruptedException {
+		LockManager lm = new LockManager();
+		AtomicInteger xids = new AtomicInteger();
+		AtomicLong ops = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		long[] end = new long[1];
+
+		for (int t = 0; t < threads; t++) {
+			String prefix = "item-" + t + "-";
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					String[] items = new String[LOCKS_PER_TRANSACTION];
+					for (int i = 0; i < items.length; i++) {
+						items[i] = prefix + i;
+					}
+
+					long count = 0;
+					try {
+						start.await();
+						while (System.currentTimeMillis() < end[0]) {
+							int xid = xids.incrementAndGet();
+							for (int i = 0; i < items.length; i++) {
+								lm.lock(xid, items[i], i % 2 == 0 ? LockManager.READ : LockManager.WRITE);
+							}
+							lm.unlockAll(xid);
+							count += items.length;
+						}
+					} catch (InterruptedException | DeadlockException e) {
+						e.printStackTrace();
+					}
+					ops.addAndGet(count);
+				}
+			};
+			workers[t].start();
+		}
+
+		end[0] = System.currentTimeMillis() + duration;
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		return ops.get();
+	}
+}
@@ -0,0 +1,120 @@
+package common.locks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lock request of a transaction, made from its own thread so that the tests
+ * can watch it wait. Like a resource manager, the transaction releases its
+ * locks when the request fails, as it aborts. When the request is granted, it
+ * holds its locks until the test finishes it.
+ */
+class Locker extends Thread {
+
+	private static final long WAIT = 5000;
+
+	/**
+	 * Call to the lock manager made by the transaction.
+	 */
+	static interface Request {
+		boolean lock() throws DeadlockException;
+	}
+
+	private LockManager lm;
+	private int xid;
+	private Request request;
+	private CountDownLatch finish;
+
+	private volatile boolean granted;
+	private volatile DeadlockException failure;
+	private volatile long waited; // Time waited for the request, in ms
+
+	private Locker(LockManager lm, int xid, Request request) {
+		super("locker-" + xid);
+		this.lm = lm;
+		this.xid = xid;
+		this.request = request;
+		this.finish = new CountDownLatch(1);
+		setDaemon(true);
+	}
+
+	/**
+	 * Starts a request, and returns once it is granted, failed or waits for
+	 * the lock.
+	 */
+	static Locker start(LockManager lm, int xid, Request request) throws InterruptedException {
+		Locker locker = new Locker(lm, xid, request);
+		locker.start();
+
+		while (locker.isWaiting() && locker.getState() != State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+		return locker;
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+
+		try {
+			granted = request.lock();
+			waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			if (granted) {
+				finish.await();
+			}
+		} catch (DeadlockException e) {
+			waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			failure = e;
+		} catch (InterruptedException e) {
+			// Finished by the test
+		} finally {
+			lm.unlockAll(xid);
+		}
+	}
+
+	/**
+	 * Returns true if the request is neither granted nor failed yet.
+	 */
+	boolean isWaiting() {
+		return !granted && failure == null && isAlive();
+	}
+
+	/**
+	 * Waits for the end of the request, for a few seconds at most, and returns
+	 * true if it was granted.
+	 */
+	boolean awaitGranted() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT;
+
+		while (isWaiting() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		return granted;
+	}
+
+	/**
+	 * Waits for the end of the request, for a few seconds at most, and returns
+	 * true if it failed because the transaction was deadlocked or timed out.
+	 */
+	boolean awaitFailed() throws InterruptedException {
+		awaitGranted();
+		return failure != null;
+	}
+
+	DeadlockException getFailure() {
+		return failure;
+	}
+
+	long getWaited() {
+		return waited;
+	}
+
+	/**
+	 * Ends the transaction, which releases its locks, and waits for it.
+	 */
+	void finish() throws InterruptedException {
+		finish.countDown();
+		join(WAIT);
+	}
+}
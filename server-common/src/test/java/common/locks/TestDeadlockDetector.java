@@ -0,0 +1,156 @@
+package common.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import common.locks.LockManager.VictimPolicy;
+
+/**
+ * Checks that the {@link DeadlockDetector} breaks each cycle of the wait-for
+ * graph as soon as it is closed, by aborting the victim chosen by the policy,
+ * and that the other transactions then get their locks.
+ */
+public class TestDeadlockDetector {
+
+	@Test
+	public void twoTransactionCycleIsBroken() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+		lm.lock(2, "b", LockManager.WRITE);
+
+		Locker first = Locker.start(lm, 1, () -> lm.lock(1, "b", LockManager.WRITE));
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+
+		assertTrue(second.awaitFailed());
+		assertTrue(first.awaitGranted());
+		assertEquals(1, lm.getDeadlockCount());
+		first.finish();
+
+		// Each new cycle is counted once
+		lm.lock(3, "a", LockManager.WRITE);
+		lm.lock(4, "b", LockManager.WRITE);
+
+		Locker third = Locker.start(lm, 3, () -> lm.lock(3, "b", LockManager.WRITE));
+		Locker fourth = Locker.start(lm, 4, () -> lm.lock(4, "a", LockManager.WRITE));
+
+		assertTrue(fourth.awaitFailed());
+		assertTrue(third.awaitGranted());
+		assertEquals(2, lm.getDeadlockCount());
+		third.finish();
+	}
+
+	@Test
+	public void threeTransactionCycleIsBroken() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+		lm.lock(2, "b", LockManager.WRITE);
+		lm.lock(3, "c", LockManager.WRITE);
+
+		Locker first = Locker.start(lm, 1, () -> lm.lock(1, "b", LockManager.WRITE));
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "c", LockManager.WRITE));
+		Locker third = Locker.start(lm, 3, () -> lm.lock(3, "a", LockManager.WRITE));
+
+		assertTrue(third.awaitFailed());
+		assertTrue(second.awaitGranted());
+		assertTrue(first.isWaiting());
+		assertEquals(1, lm.getDeadlockCount());
+
+		// The first one waits for the second one to finish, which is not a deadlock
+		second.finish();
+		assertTrue(first.awaitGranted());
+		assertEquals(1, lm.getDeadlockCount());
+		first.finish();
+	}
+
+	@Test
+	public void upgradeCycleIsBroken() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.READ);
+		lm.lock(2, "a", LockManager.READ);
+
+		// Each transaction waits for the other one to release its read lock
+		Locker first = Locker.start(lm, 1, () -> lm.lock(1, "a", LockManager.WRITE));
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+
+		assertTrue(second.awaitFailed());
+		assertTrue(first.awaitGranted());
+		assertEquals(1, lm.getDeadlockCount());
+		first.finish();
+	}
+
+	@Test
+	public void youngestTransactionIsAborted() throws Exception {
+		LockManager lm = new LockManager(VictimPolicy.YOUNGEST);
+		Locker[] lockers = fewerLocksInOlderTransaction(lm);
+
+		assertTrue(lockers[1].awaitFailed());
+		assertTrue(lockers[0].awaitGranted());
+		lockers[0].finish();
+	}
+
+	@Test
+	public void transactionWithFewestLocksIsAborted() throws Exception {
+		LockManager lm = new LockManager(VictimPolicy.FEWEST_LOCKS);
+		Locker[] lockers = fewerLocksInOlderTransaction(lm);
+
+		assertTrue(lockers[0].awaitFailed());
+		assertTrue(lockers[1].awaitGranted());
+		lockers[1].finish();
+	}
+
+	@Test
+	public void victimWaitingBeforeTheCycleIsWokenUp() throws Exception {
+		LockManager lm = new LockManager(VictimPolicy.YOUNGEST);
+		lm.lock(1, "a", LockManager.WRITE);
+		lm.lock(2, "b", LockManager.WRITE);
+
+		// The cycle is closed by the oldest transaction, the victim was already parked
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+		Locker first = Locker.start(lm, 1, () -> lm.lock(1, "b", LockManager.WRITE));
+
+		assertTrue(second.awaitFailed());
+		assertTrue(second.getWaited() < 1000);
+		assertTrue(first.awaitGranted());
+		first.finish();
+	}
+
+	@Test
+	public void waitingWithoutCycleIsNotADeadlock() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+		Locker third = Locker.start(lm, 3, () -> lm.lock(3, "a", LockManager.READ));
+
+		assertTrue(second.isWaiting());
+		assertTrue(third.isWaiting());
+		assertEquals(0, lm.getDeadlockCount());
+
+		lm.unlockAll(1);
+		assertTrue(second.awaitGranted());
+		second.finish();
+		assertTrue(third.awaitGranted());
+		assertFalse(third.awaitFailed());
+		third.finish();
+	}
+
+	/**
+	 * Creates a deadlock between an older transaction holding one lock and a
+	 * younger one holding three, and returns the requests of both.
+	 */
+	private static Locker[] fewerLocksInOlderTransaction(LockManager lm) throws Exception {
+		lm.lock(1, "a", LockManager.WRITE);
+		lm.lock(2, "b", LockManager.WRITE);
+		lm.lock(2, "c", LockManager.WRITE);
+		lm.lock(2, "d", LockManager.WRITE);
+
+		Locker first = Locker.start(lm, 1, () -> lm.lock(1, "b", LockManager.WRITE));
+		Locker second = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+
+		assertEquals(1, lm.getDeadlockCount());
+		return new Locker[] { first, second };
+	}
+}
@@ -0,0 +1,108 @@
+package common.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the row locks of a transaction past the escalation threshold are
+ * replaced by a lock on their table, unless another transaction works on the
+ * table.
+ */
+public class TestLockEscalation {
+
+	private static final int THRESHOLD = 10;
+
+	private LockManager lm;
+
+	@Before
+	public void setUp() {
+		lm = new LockManager();
+		lm.setEscalationThreshold(THRESHOLD);
+	}
+
+	@Test
+	public void rowLocksAreEscalatedPastTheThreshold() throws Exception {
+		lockRows(1, 0, THRESHOLD, LockManager.WRITE);
+		assertEquals(0, lm.getEscalationCount());
+		assertEquals(THRESHOLD + 1, lm.countLocks(1));
+
+		// The table lock and the intention lock on the other table are left
+		lm.lock(1, "other", "a", LockManager.WRITE);
+		lockRows(1, THRESHOLD, 1, LockManager.WRITE);
+		assertEquals(1, lm.getEscalationCount());
+		assertEquals(THRESHOLD + 1, lm.getEscalatedRowCount());
+		assertEquals(3, lm.countLocks(1));
+
+		// The whole table is written, including the rows that were not locked
+		assertFalse(lm.tryLock(2, "flights", "0", LockManager.READ));
+		assertFalse(lm.tryLock(2, "flights", "new", LockManager.READ));
+		assertTrue(lm.tryLock(2, "other", "b", LockManager.WRITE));
+
+		lm.unlockAll(1);
+		assertTrue(lm.tryLock(2, "flights", "0", LockManager.WRITE));
+	}
+
+	@Test
+	public void readRowLocksAreEscalatedToRead() throws Exception {
+		lockRows(1, 0, THRESHOLD + 1, LockManager.READ);
+		assertEquals(1, lm.getEscalationCount());
+		assertEquals(1, lm.countLocks(1));
+
+		assertTrue(lm.tryLock(2, "flights", "0", LockManager.READ));
+		assertFalse(lm.tryLock(3, "flights", "1", LockManager.WRITE));
+	}
+
+	@Test
+	public void writeAfterReadEscalationUpgradesTheTable() throws Exception {
+		lockRows(1, 0, THRESHOLD + 1, LockManager.READ);
+		lm.lock(2, "flights", "new", LockManager.READ);
+
+		// The upgrade waits for the other reader of the table
+		Locker writer = Locker.start(lm, 1, () -> lm.lock(1, "flights", "0", LockManager.WRITE));
+		assertTrue(writer.isWaiting());
+
+		lm.unlockAll(2);
+		assertTrue(writer.awaitGranted());
+		assertEquals(1, lm.countLocks(1));
+		assertFalse(lm.tryLock(3, "flights", "new", LockManager.READ));
+
+		writer.finish();
+		assertTrue(lm.tryLock(3, "flights", "new", LockManager.READ));
+	}
+
+	@Test
+	public void escalationIsDeferredWhileTheTableIsUsed() throws Exception {
+		lm.lock(2, "flights", "other", LockManager.READ);
+
+		lockRows(1, 0, THRESHOLD + 1, LockManager.WRITE);
+		assertEquals(0, lm.getEscalationCount());
+		assertEquals(1, lm.getDeferredEscalationCount());
+		assertEquals(THRESHOLD + 2, lm.countLocks(1));
+
+		// Tried again every threshold rows
+		lockRows(1, THRESHOLD + 1, THRESHOLD, LockManager.WRITE);
+		assertEquals(2, lm.getDeferredEscalationCount());
+		assertTrue(lm.tryLock(3, "flights", "unlocked", LockManager.READ));
+
+		lm.unlockAll(2);
+		lm.unlockAll(3);
+		lockRows(1, 2 * THRESHOLD + 1, THRESHOLD, LockManager.WRITE);
+		assertEquals(1, lm.getEscalationCount());
+		assertEquals(2, lm.getDeferredEscalationCount());
+		assertEquals(3 * THRESHOLD + 1, lm.getEscalatedRowCount());
+		assertEquals(1, lm.countLocks(1));
+	}
+
+	/**
+	 * Locks consecutive rows of the flights table.
+	 */
+	private void lockRows(int xid, int first, int count, int lockType) throws DeadlockException {
+		for (int i = first; i < first + count; i++) {
+			assertTrue(lm.lock(xid, "flights", String.valueOf(i), lockType));
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package common.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the order in which the requests waiting for an item are granted: in
+ * the order they arrived, except for the conversions of a lock already held,
+ * and every compatible request at the front of the queue at once.
+ */
+public class TestLockQueue {
+
+	@Test
+	public void readerWaitsBehindWaitingWriter() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.READ);
+
+		// The reader is compatible with the lock held, but not with the writer before it
+		Locker writer = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE));
+		Locker reader = Locker.start(lm, 3, () -> lm.lock(3, "a", LockManager.READ));
+		assertTrue(writer.isWaiting());
+		assertTrue(reader.isWaiting());
+
+		lm.unlockAll(1);
+		assertTrue(writer.awaitGranted());
+		assertTrue(reader.isWaiting());
+
+		writer.finish();
+		assertTrue(reader.awaitGranted());
+		reader.finish();
+	}
+
+	@Test
+	public void writersAreGrantedInArrivalOrder() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker[] writers = new Locker[4];
+		for (int i = 0; i < writers.length; i++) {
+			int xid = i + 2;
+			writers[i] = Locker.start(lm, xid, () -> lm.lock(xid, "a", LockManager.WRITE));
+		}
+
+		lm.unlockAll(1);
+		for (int i = 0; i < writers.length; i++) {
+			assertTrue(writers[i].awaitGranted());
+
+			for (int j = i + 1; j < writers.length; j++) {
+				assertTrue(writers[j].isWaiting());
+			}
+			writers[i].finish();
+		}
+		assertEquals(0, lm.getDeadlockCount());
+	}
+
+	@Test
+	public void conversionGoesAheadOfNewRequests() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.READ);
+		lm.lock(2, "a", LockManager.READ);
+
+		// The writer arrives first, but the conversion only waits for the other reader
+		Locker writer = Locker.start(lm, 3, () -> lm.lock(3, "a", LockManager.WRITE));
+		Locker conversion = Locker.start(lm, 1, () -> lm.lock(1, "a", LockManager.WRITE));
+		assertTrue(writer.isWaiting());
+		assertTrue(conversion.isWaiting());
+
+		lm.unlockAll(2);
+		assertTrue(conversion.awaitGranted());
+		assertTrue(writer.isWaiting());
+
+		conversion.finish();
+		assertTrue(writer.awaitGranted());
+		writer.finish();
+	}
+
+	@Test
+	public void compatibleWaitersAreGrantedTogether() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker[] readers = new Locker[3];
+		for (int i = 0; i < readers.length; i++) {
+			int xid = i + 2;
+			readers[i] = Locker.start(lm, xid, () -> lm.lock(xid, "a", LockManager.READ));
+		}
+		Locker writer = Locker.start(lm, 5, () -> lm.lock(5, "a", LockManager.WRITE));
+
+		// All the readers hold the lock at the same time, the writer behind them waits
+		lm.unlockAll(1);
+		for (Locker reader : readers) {
+			assertTrue(reader.awaitGranted());
+		}
+		assertTrue(writer.isWaiting());
+
+		for (Locker reader : readers) {
+			reader.finish();
+		}
+		assertTrue(writer.awaitGranted());
+		writer.finish();
+	}
+}
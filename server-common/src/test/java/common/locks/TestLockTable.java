@@ -0,0 +1,75 @@
+package common.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestLockTable {
+
+	private static final int ITEMS = 20000;
+
+	@Test
+	public void releasedItemsAreSwept() throws DeadlockException {
+		LockManager lm = new LockManager();
+		lm.lock(0, "held", LockManager.WRITE);
+		lm.lock(0, "flights", "held", LockManager.WRITE);
+
+		for (int i = 1; i <= ITEMS; i++) {
+			lm.lock(i, "item-" + i, LockManager.WRITE);
+			lm.lock(i, "flights", String.valueOf(i), LockManager.READ);
+			lm.unlockAll(i);
+		}
+
+		assertTrue(lm.countEntries() < ITEMS / 4);
+		assertFalse(lm.tryLock(ITEMS + 1, "held", LockManager.READ));
+		assertFalse(lm.tryLock(ITEMS + 1, "flights", "held", LockManager.READ));
+		assertTrue(lm.tryLock(ITEMS + 1, "flights", "1", LockManager.WRITE));
+	}
+
+	@Test
+	public void writersExcludeEachOtherWhileEntriesAreSwept() throws Exception {
+		LockManager lm = new LockManager();
+		AtomicInteger xids = new AtomicInteger();
+		AtomicInteger[] inside = new AtomicInteger[16];
+		AtomicInteger violations = new AtomicInteger();
+		Thread[] workers = new Thread[4];
+
+		for (int i = 0; i < inside.length; i++) {
+			inside[i] = new AtomicInteger();
+		}
+
+		for (int t = 0; t < workers.length; t++) {
+			workers[t] = new Thread(() -> {
+				for (int i = 0; i < ITEMS; i++) {
+					int xid = xids.incrementAndGet();
+					int shared = xid % inside.length;
+					try {
+						// Creates enough entries to sweep the shared ones while they are in use
+						lm.lock(xid, "private-" + xid, LockManager.WRITE);
+						lm.lock(xid, "flights", String.valueOf(shared), LockManager.WRITE);
+						if (inside[shared].incrementAndGet() != 1) {
+							violations.incrementAndGet();
+						}
+						inside[shared].decrementAndGet();
+					} catch (DeadlockException e) {
+						violations.incrementAndGet();
+					} finally {
+						lm.unlockAll(xid);
+					}
+				}
+			});
+			workers[t].start();
+		}
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		assertEquals(0, violations.get());
+		assertTrue(lm.countEntries() < ITEMS / 4);
+	}
+}
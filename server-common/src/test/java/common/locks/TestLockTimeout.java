@@ -0,0 +1,98 @@
+package common.locks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the requests that do not wait for their lock, or only for a limited
+ * time, and that a request that gave up does not keep its place in the queue.
+ */
+public class TestLockTimeout {
+
+	private static final long TIMEOUT = 200;
+
+	@Test
+	public void tryLockFailsOnConflict() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+		lm.lock(1, "flights", "a", LockManager.WRITE);
+
+		assertFalse(lm.tryLock(2, "a", LockManager.READ));
+		assertFalse(lm.tryLock(2, "flights", "a", LockManager.READ));
+		assertEquals(0, lm.getDeadlockCount());
+
+		// The failed request did not queue: the next one is granted right away
+		lm.unlockAll(1);
+		assertTrue(lm.tryLock(3, "a", LockManager.WRITE));
+		assertTrue(lm.tryLock(3, "flights", "a", LockManager.WRITE));
+	}
+
+	@Test
+	public void tryLockSucceedsOnFreeOrCompatibleItem() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.READ);
+
+		assertTrue(lm.tryLock(2, "b", LockManager.WRITE));
+		assertTrue(lm.tryLock(2, "a", LockManager.READ));
+		assertTrue(lm.tryLock(2, "flights", "a", LockManager.WRITE));
+
+		// Already covered by the lock held
+		assertTrue(lm.tryLock(2, "b", LockManager.READ));
+	}
+
+	@Test
+	public void timedWaitExpiresAtTheDeadline() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker waiter = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE, TIMEOUT));
+		assertTrue(waiter.awaitFailed());
+		assertTrue(waiter.getFailure() instanceof LockTimeoutException);
+		assertTrue(waiter.getWaited() >= TIMEOUT);
+		assertTrue(waiter.getWaited() < TIMEOUT + 500);
+		assertEquals(0, lm.getDeadlockCount());
+	}
+
+	@Test
+	public void timedWaitOnRowExpires() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "flights", "a", LockManager.WRITE);
+
+		Locker waiter = Locker.start(lm, 2, () -> lm.lock(2, "flights", "a", LockManager.READ, TIMEOUT));
+		assertTrue(waiter.awaitFailed());
+		assertTrue(waiter.getFailure() instanceof LockTimeoutException);
+	}
+
+	@Test
+	public void timedWaitIsGrantedBeforeTheDeadline() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker waiter = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE, 10 * TIMEOUT));
+		lm.unlockAll(1);
+		assertTrue(waiter.awaitGranted());
+		waiter.finish();
+	}
+
+	@Test
+	public void expiredRequestLeavesTheQueue() throws Exception {
+		LockManager lm = new LockManager();
+		lm.lock(1, "a", LockManager.WRITE);
+
+		Locker expired = Locker.start(lm, 2, () -> lm.lock(2, "a", LockManager.WRITE, TIMEOUT));
+		Locker waiter = Locker.start(lm, 3, () -> lm.lock(3, "a", LockManager.READ));
+		assertTrue(expired.awaitFailed());
+
+		// The lock goes to the request behind the one that gave up
+		assertTrue(waiter.isWaiting());
+		lm.unlockAll(1);
+		assertTrue(waiter.awaitGranted());
+		assertEquals(0, lm.countLocks(2));
+		waiter.finish();
+
+		assertTrue(lm.tryLock(4, "a", LockManager.WRITE));
+	}
+}
@@ -0,0 +1,148 @@
+package common.locks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the transaction table of the {@link LockManager} when several
+ * threads lock at the same time, against the {@link ConcurrentHashMap} it
+ * replaced. Every iteration does what a transaction does to the table: it is
+ * added by its first lock call, looked up by the {@link #LOCKS_PER_TRANSACTION}
+ * lock calls and removed by {@link LockManager#unlockAll(int)}.
+ *
+ * The lock calls themselves are measured by {@link LockManagerBenchmark}.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.locks.TxnTableBenchmark</code>
+ */
+class TxnTableBenchmark {
+
+	private static final int[] THREADS = { 1, 4, 16, 64 };
+	private static final int LOCKS_PER_TRANSACTION = 8;
+	private static final long WARMUP = 2000;
+	private static final long DURATION = 5000;
+
+	/**
+	 * The operations of the Lock Manager on its transaction table.
+	 */
+	private static interface Table {
+		Object getOrAdd(int xid);
+
+		Object get(int xid);
+
+		void remove(int xid);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		for (int threads : THREADS) {
+			run(threads, WARMUP, tpHashTable());
+			long tp = run(threads, DURATION, tpHashTable());
+			run(threads, WARMUP, concurrentHashMap());
+			long chm = run(threads, DURATION, concurrentHashMap());
+
+			System.out.printf("%2d threads: TPHashTable %,12d lock calls/s, ConcurrentHashMap %,12d lock calls/s%n",
+					threads, tp * 1000 / DURATION, chm * 1000 / DURATION);
+		}
+	}
+
+	private static Table tpHashTable() {
+		TPHashTable<Object> table = new TPHashTable<>();
+
+		return new Table() {
+			@Override
+			public Object getOrAdd(int xid) {
+				Object value = table.get(xid);
+				if (value == null) {
+					Object created = new Object();
+					value = table.putIfAbsent(xid, created);
+					if (value == null) {
+						value = created;
+					}
+				}
+				return value;
+			}
+
+			@Override
+			public Object get(int xid) {
+				return table.get(xid);
+			}
+
+			@Override
+			public void remove(int xid) {
+				table.remove(xid);
+			}
+		};
+	}
+
+	private static Table concurrentHashMap() {
+		ConcurrentHashMap<Integer, Object> map = new ConcurrentHashMap<>();
+
+		return new Table() {
+			@Override
+			public Object getOrAdd(int xid) {
+				Object value = map.get(xid);
+				return value != null ? value : map.computeIfAbsent(xid, x -> new Object());
+			}
+
+			@Override
+			public Object get(int xid) {
+				return map.get(xid);
+			}
+
+			@Override
+			public void remove(int xid) {
+				map.remove(xid);
+			}
+		};
+	}
+
+	/**
+	 * Runs the benchmark for the given amount of milliseconds and returns the
+	 * number of lock calls performed.
+	 */
+	private static long run(int threads, long duration, Table table) throws InterruptedException {
+		AtomicInteger xids = new AtomicInteger();
+		AtomicLong ops = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		long[] end = new long[1];
+
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					long count = 0;
+					Object sink = null;
+					try {
+						start.await();
+						while (System.currentTimeMillis() < end[0]) {
+							int xid = xids.incrementAndGet();
+							sink = table.getOrAdd(xid);
+							for (int i = 1; i < LOCKS_PER_TRANSACTION; i++) {
+								sink = table.get(xid);
+							}
+							table.remove(xid);
+							count += LOCKS_PER_TRANSACTION;
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+					if (sink == null) {
+						System.err.println("Lost a transaction");
+					}
+					ops.addAndGet(count);
+				}
+			};
+			workers[t].start();
+		}
+
+		end[0] = System.currentTimeMillis() + duration;
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		return ops.get();
+	}
+}
@@ -0,0 +1,75 @@
+package common.locks;
+
+/**
+ * Measures the cost of {@link LockManager#unlockAll(int)} for a transaction
+ * holding {@link #LOCKS_PER_TRANSACTION} locks, while {@link #OUTSTANDING}
+ * locks are held by other transactions. The outstanding locks are either on
+ * distinct items, or READ locks of distinct transactions on a single item that
+ * the measured transactions also read.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.locks.UnlockAllBenchmark</code>
+ */
+class UnlockAllBenchmark {
+
+	private static final int LOCKS_PER_TRANSACTION = 8;
+	private static final int OUTSTANDING = 100000;
+	private static final int HOLDERS = 1000;
+	private static final int WARMUP = 100000;
+	private static final int TRANSACTIONS = 200000;
+
+	public static void main(String[] args) throws DeadlockException {
+		String[] items = new String[LOCKS_PER_TRANSACTION];
+		for (int i = 0; i < items.length; i++) {
+			items[i] = "item-" + i;
+		}
+
+		LockManager lm = new LockManager();
+		run("no outstanding lock", lm, items, OUTSTANDING + 1);
+
+		lm = new LockManager();
+		for (int i = 0; i < OUTSTANDING; i++) {
+			lm.lock(1 + i % HOLDERS, "outstanding-" + i, LockManager.WRITE);
+		}
+		run(OUTSTANDING + " locks on distinct items", lm, items, OUTSTANDING + 1);
+
+		lm = new LockManager();
+		items[0] = "shared";
+		for (int xid = 1; xid <= OUTSTANDING; xid++) {
+			lm.lock(xid, "shared", LockManager.READ);
+		}
+		run(OUTSTANDING + " READ locks on a shared item", lm, items, OUTSTANDING + 1);
+	}
+
+	private static void run(String name, LockManager lm, String[] items, int firstXid) throws DeadlockException {
+		// Let the JIT compile the lock manager
+		lockAndRelease(lm, items, firstXid, WARMUP);
+
+		long start = System.nanoTime();
+		long unlock = lockAndRelease(lm, items, firstXid + WARMUP, TRANSACTIONS);
+		long total = System.nanoTime() - start;
+
+		System.out.printf("%-36s %8.0f ns per transaction, %8.0f ns in unlockAll%n", name,
+				(double) total / TRANSACTIONS, (double) unlock / TRANSACTIONS);
+	}
+
+	/**
+	 * Runs transactions locking all the items, and returns the time spent
+	 * releasing their locks.
+	 */
+	private static long lockAndRelease(LockManager lm, String[] items, int firstXid, int count)
+			throws DeadlockException {
+		long unlock = 0;
+
+		for (int xid = firstXid; xid < firstXid + count; xid++) {
+			for (int i = 0; i < items.length; i++) {
+				lm.lock(xid, items[i], i == 0 ? LockManager.READ : LockManager.WRITE);
+			}
+
+			long start = System.nanoTime();
+			lm.unlockAll(xid);
+			unlock += System.nanoTime() - start;
+		}
+
+		return unlock;
+	}
+}
@@ -0,0 +1,140 @@
+package common.reservations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.data.LogRecord;
+import common.files.Codec;
+import common.files.LogFile;
+import common.files.SaveFile;
+
+/**
+ * Compares Java serialization with the binary codecs on a table of
+ * {@link #ITEMS} items: the time to save and load the whole table, and the
+ * size of the file. Then compares the time to append {@link #RECORDS} records
+ * to a log, and its size. The files are written in the
+ * <code>benchmark-codec</code> folder of the save directory.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.reservations.CodecBenchmark</code>
+ */
+class CodecBenchmark {
+
+	private static final int ITEMS = 1000000;
+	private static final int RECORDS = 100000;
+	private static final String RM = "benchmark-codec";
+
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		Codec<BenchmarkItem> items = ReservableItem.codec(BenchmarkItem::new);
+		HashMap<String, BenchmarkItem> table = new HashMap<>();
+
+		for (int i = 0; i < ITEMS; i++) {
+			table.put(key(i), new BenchmarkItem(key(i), i, 100));
+		}
+
+		for (int round = 0; round < 2; round++) {
+			save("serialization", new SaveFile<>(RM, "serialization"), table);
+			save("codec", new SaveFile<>(RM, "codec", Codec.map(Codec.STRINGS, items)), table);
+		}
+
+		for (int round = 0; round < 2; round++) {
+			append("serialization", new LogFile<>(RM, "serialization"));
+			append("codec", new LogFile<>(RM, "codec", LogRecord.codec(Codec.STRINGS, items)));
+		}
+	}
+
+	private static <T extends Map<String, BenchmarkItem>> void save(String name, SaveFile<T> file, T table)
+			throws IOException, ClassNotFoundException {
+		delete(new File(SaveFile.SAVE_FOLDER + "/" + RM));
+
+		long start = System.nanoTime();
+		file.save(table);
+		long saved = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int size = file.read().size();
+		long loaded = System.nanoTime() - start;
+
+		if (size != ITEMS) {
+			throw new IllegalStateException(name + " loaded " + size + " items");
+		}
+
+		System.err.printf("save %-14s save %6d ms, load %6d ms, %7d KB%n", name, saved / 1000000, loaded / 1000000,
+				size(new File(SaveFile.SAVE_FOLDER + "/" + RM)) / 1024);
+	}
+
+	private static void append(String name, LogFile<LogRecord<String, BenchmarkItem>> log)
+			throws IOException, ClassNotFoundException {
+		delete(new File(SaveFile.SAVE_FOLDER + "/" + RM));
+		log.start(0);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < RECORDS; i++) {
+			log.append(new LogRecord<>(LogRecord.Type.VALUE, i, key(i), new BenchmarkItem(key(i), i, 100)));
+		}
+		long appended = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int records = log.read(0).size();
+		long read = System.nanoTime() - start;
+
+		if (records != RECORDS) {
+			throw new IllegalStateException(name + " read " + records + " records");
+		}
+
+		System.err.printf("log  %-14s %8.0f appends/s, read %6d ms, %7d KB%n", name, RECORDS * 1e9 / appended,
+				read / 1000000, size(new File(SaveFile.SAVE_FOLDER + "/" + RM)) / 1024);
+	}
+
+	private static String key(int i) {
+		return "item-" + i;
+	}
+
+	private static long size(File file) {
+		File[] children = file.listFiles();
+
+		if (children == null) {
+			return file.length();
+		}
+
+		long size = 0;
+		for (File child : children) {
+			size += size(child);
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static class BenchmarkItem extends ReservableItem {
+
+		private static final long serialVersionUID = 2320764305734183417L;
+
+		BenchmarkItem(String location, int count, int price) {
+			super(location, count, price);
+		}
+
+		@Override
+		public BenchmarkItem copy() {
+			BenchmarkItem copy = new BenchmarkItem(getLocation(), getCount(), getPrice());
+			copy.setReserved(0, getReserved());
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return "BenchmarkItem(" + getLocation() + ", " + getCount() + ")";
+		}
+	}
+}
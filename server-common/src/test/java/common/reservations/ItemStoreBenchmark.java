@@ -0,0 +1,120 @@
+package common.reservations;
+
+import java.io.File;
+
+import common.data.RMHashtable;
+import common.data.StorageEngine.Type;
+import common.files.SaveFile;
+
+/**
+ * Compares a table of {@link #ITEMS} items kept on the heap and saved by the
+ * serialized engine with the same table stored off the heap by an
+ * {@link ItemStorageEngine}: the heap used by the loaded table, the time to
+ * restart, and the time to read every item once.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.reservations.ItemStoreBenchmark</code>
+ */
+class ItemStoreBenchmark {
+
+	private static final int ITEMS = 1000000;
+	private static final int BATCH = 10000;
+
+	private static RMHashtable<String, BenchmarkItem> table;
+
+	public static void main(String[] args) {
+		run("serialized", () -> new RMHashtable<>("benchmark-items", "items", Type.SERIALIZED));
+		run("off-heap", () -> new RMHashtable<>("benchmark-items", "items",
+				new ItemStorageEngine<>("benchmark-items", "items", BenchmarkItem::new)));
+	}
+
+	private static void run(String name, Opener opener) {
+		delete(new File(SaveFile.SAVE_FOLDER + "/benchmark-items"));
+		RMHashtable<String, BenchmarkItem> saved = opener.open();
+
+		for (int id = 1; id <= ITEMS / BATCH; id++) {
+			for (int i = (id - 1) * BATCH; i < id * BATCH; i++) {
+				saved.put(id, key(i), new BenchmarkItem(key(i), i, 100));
+			}
+			saved.prepare(id);
+			saved.commit(id);
+		}
+		saved = null;
+
+		long start = System.nanoTime();
+		table = opener.open();
+		long restarted = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long count = 0;
+		for (int i = 0; i < ITEMS; i++) {
+			count += table.get(0, key(i)).getCount();
+		}
+		long read = System.nanoTime() - start;
+
+		if (count != (long) ITEMS * (ITEMS - 1) / 2) {
+			throw new IllegalStateException(name + " read the wrong items");
+		}
+
+		// The heap held by the table is what is freed once it is not referenced
+		long heap = usedMemory();
+		table = null;
+		heap -= usedMemory();
+
+		System.err.printf("%-10s restart %6d ms, heap %6d KB, %5.0f ns per read%n", name, restarted / 1000000,
+				heap / 1024, (double) read / ITEMS);
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static String key(int i) {
+		return "item-" + i;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Opens the table saved on disk.
+	 */
+	private static interface Opener {
+		RMHashtable<String, BenchmarkItem> open();
+	}
+
+	private static class BenchmarkItem extends ReservableItem {
+
+		private static final long serialVersionUID = -3306517203935046342L;
+
+		BenchmarkItem(String location, int count, int price) {
+			super(location, count, price);
+		}
+
+		@Override
+		public BenchmarkItem copy() {
+			BenchmarkItem copy = new BenchmarkItem(getLocation(), getCount(), getPrice());
+			copy.setReserved(0, getReserved());
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return "BenchmarkItem(" + getLocation() + ", " + getCount() + ")";
+		}
+	}
+}
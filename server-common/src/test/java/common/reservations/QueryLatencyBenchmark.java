@@ -0,0 +1,151 @@
+package common.reservations;
+
+import common.locks.DeadlockException;
+
+/**
+ * Measures the latency of the queries of a {@link ReservationManager}, each one
+ * in its own transaction, over a table of {@link #ITEMS} items, and compares it
+ * with the latency of a reservation. The queries are measured with locks and
+ * in read-only transactions, alone and while another transaction keeps
+ * reserving items and holding their locks. The data is saved in the
+ * <code>benchmark</code> folder of the save directory.
+ *
+ * Usage: <code>gradle :server-common:benchmark -Pbenchmark=common.reservations.QueryLatencyBenchmark</code>
+ */
+class QueryLatencyBenchmark {
+
+	private static final int ITEMS = 100;
+	private static final int WARMUP = 2000;
+	private static final int OPERATIONS = 5000;
+	private static final int WRITER_ITEMS = 10;
+	private static final long WRITER_HOLD = 1;
+
+	private static enum Operation {
+		QUERY, READ_ONLY_QUERY, RESERVE
+	}
+
+	private static int nextId = 1;
+	private static volatile boolean writing;
+
+	public static void main(String[] args) throws DeadlockException {
+		BenchmarkManager rm = new BenchmarkManager();
+
+		int id = nextId++;
+		for (int i = 0; i < ITEMS; i++) {
+			rm.addItem(id, key(i), new BenchmarkItem(Integer.MAX_VALUE));
+		}
+		rm.commitTransaction(id);
+
+		run("queryNum", rm, Operation.QUERY);
+		run("read-only", rm, Operation.READ_ONLY_QUERY);
+		run("reserveItem", rm, Operation.RESERVE);
+
+		Thread writer = startWriter(rm);
+		run("queryNum (writer)", rm, Operation.QUERY);
+		run("read-only (writer)", rm, Operation.READ_ONLY_QUERY);
+		writing = false;
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void run(String name, BenchmarkManager rm, Operation operation) throws DeadlockException {
+		// Let the JIT compile the reservation manager
+		operations(rm, operation, WARMUP);
+
+		long start = System.nanoTime();
+		operations(rm, operation, OPERATIONS);
+		long total = System.nanoTime() - start;
+
+		System.err.printf("%-20s %10.1f us per transaction%n", name, total / 1000.0 / OPERATIONS);
+	}
+
+	private static void operations(BenchmarkManager rm, Operation operation, int count) throws DeadlockException {
+		for (int i = 0; i < count; i++) {
+			int id = nextId++;
+
+			switch (operation) {
+			case QUERY:
+				rm.queryNum(id, key(i % ITEMS));
+				break;
+			case READ_ONLY_QUERY:
+				rm.setTransactionReadOnly(id);
+				rm.queryNum(id, key(i % ITEMS));
+				break;
+			case RESERVE:
+				rm.reserveItem(id, key(i % ITEMS));
+				break;
+			}
+
+			rm.commitTransaction(id);
+		}
+	}
+
+	/**
+	 * Starts a thread reserving {@link #WRITER_ITEMS} items per transaction, and
+	 * holding their locks for {@link #WRITER_HOLD} ms before committing.
+	 */
+	private static Thread startWriter(BenchmarkManager rm) {
+		writing = true;
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				int id = Integer.MAX_VALUE / 2;
+				int item = 0;
+
+				try {
+					while (writing) {
+						id++;
+						for (int i = 0; i < WRITER_ITEMS; i++) {
+							rm.reserveItem(id, key(item++ % ITEMS));
+						}
+
+						Thread.sleep(WRITER_HOLD);
+						rm.commitTransaction(id);
+					}
+				} catch (DeadlockException | InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		writer.start();
+		return writer;
+	}
+
+	private static String key(int i) {
+		return "item-" + i;
+	}
+
+	private static class BenchmarkManager extends ReservationManager<BenchmarkItem> {
+
+		BenchmarkManager() {
+			super("benchmark");
+		}
+	}
+
+	private static class BenchmarkItem extends ReservableItem {
+
+		private static final long serialVersionUID = 6051446235346893024L;
+
+		BenchmarkItem(int count) {
+			super("benchmark", count, 100);
+		}
+
+		@Override
+		public BenchmarkItem copy() {
+			BenchmarkItem copy = new BenchmarkItem(getCount());
+			copy.setReserved(0, getReserved());
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return "BenchmarkItem(" + getCount() + ")";
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package common.reservations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import common.data.RMHashtable;
+import common.files.SaveFile;
+
+/**
+ * Checks that a table of items stored off the heap by an
+ * {@link ItemStorageEngine} reads back what was committed, after a restart as
+ * well.
+ */
+public class TestItemStorageEngine {
+
+	private static final String RM = "items-test";
+
+	private RMHashtable<String, Item> table;
+	private int nextId;
+
+	@Before
+	public void setUp() {
+		delete(new File(SaveFile.SAVE_FOLDER + "/" + RM));
+		table = open();
+		nextId = 1;
+	}
+
+	@Test
+	public void committedItemsSurviveRestart() {
+		int id = nextId++;
+		table.put(id, "a", new Item("a", 10, 100));
+		table.put(id, "b", new Item("Montr\u00e9al", 5, 200));
+		table.commit(id);
+
+		id = nextId++;
+		Item item = table.getForUpdate(id, "a");
+		item.setCount(id, 9);
+		item.setReserved(id, 1);
+		table.commit(id);
+
+		assertItems(table, "a", "a 9 100 1", "b", "Montr\u00e9al 5 200 0");
+		assertItems(open(), "a", "a 9 100 1", "b", "Montr\u00e9al 5 200 0");
+	}
+
+	@Test
+	public void removedItemsSurviveRestart() {
+		int id = nextId++;
+		for (int i = 0; i < 100; i++) {
+			table.put(id, "key-" + i, new Item("key-" + i, i, i));
+		}
+		table.commit(id);
+
+		id = nextId++;
+		for (int i = 0; i < 100; i += 2) {
+			table.remove(id, "key-" + i);
+		}
+		table.put(id, "new", new Item("new", 1, 1));
+		table.commit(id);
+
+		Map<String, String> expected = new HashMap<>();
+		for (int i = 1; i < 100; i += 2) {
+			expected.put("key-" + i, "key-" + i + " " + i + " " + i + " 0");
+		}
+		expected.put("new", "new 1 1 0");
+
+		assertEquals(expected, items(table));
+		assertEquals(expected, items(open()));
+	}
+
+	@Test
+	public void unfinishedTransactionsAreUndone() {
+		int id = nextId++;
+		table.put(id, "a", new Item("a", 10, 100));
+		table.commit(id);
+
+		id = nextId++;
+		table.getForUpdate(id, "a").setCount(id, 0);
+		table.put(id, "b", new Item("b", 1, 1));
+		table.prepare(id);
+
+		RMHashtable<String, Item> restarted = open();
+		assertItems(restarted, "a", "a 0 100 0", "b", "b 1 1 0");
+
+		restarted.abort(id);
+		assertItems(restarted, "a", "a 10 100 0");
+		assertItems(open(), "a", "a 10 100 0");
+	}
+
+	@Test
+	public void checkpointsKeepCommittedItems() {
+		Map<String, String> expected = new HashMap<>();
+
+		for (int i = 0; i < 3000; i++) {
+			int id = nextId++;
+			String key = "key-" + (i % 500);
+
+			if (i % 7 == 0) {
+				table.remove(id, key);
+				expected.remove(key);
+			} else {
+				table.put(id, key, new Item(key, i, i));
+				expected.put(key, key + " " + i + " " + i + " 0");
+			}
+
+			table.prepare(id);
+			table.commit(id);
+		}
+
+		assertEquals(expected, items(table));
+		assertEquals(expected, items(open()));
+	}
+
+	private RMHashtable<String, Item> open() {
+		return new RMHashtable<>(RM, "items", new ItemStorageEngine<>(RM, "items", Item::new));
+	}
+
+	private static void assertItems(RMHashtable<String, Item> table, String... expected) {
+		Map<String, String> items = new HashMap<>();
+		for (int i = 0; i < expected.length; i += 2) {
+			items.put(expected[i], expected[i + 1]);
+		}
+
+		assertEquals(items, items(table));
+		assertNull(table.get(0, "missing"));
+	}
+
+	/**
+	 * Returns the items of a table, read by iterating over it and by key.
+	 */
+	private static Map<String, String> items(RMHashtable<String, Item> table) {
+		Map<String, String> items = new HashMap<>();
+
+		for (Entry<String, Item> entry : table.entrySet()) {
+			items.put(entry.getKey(), entry.getValue().toString());
+			assertEquals(entry.getValue().toString(), table.get(0, entry.getKey()).toString());
+		}
+
+		return items;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	private static class Item extends ReservableItem {
+
+		private static final long serialVersionUID = 2940316712374062951L;
+
+		Item(String location, int count, int price) {
+			super(location, count, price);
+		}
+
+		@Override
+		public Item copy() {
+			Item copy = new Item(getLocation(), getCount(), getPrice());
+			copy.setReserved(0, getReserved());
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return getLocation() + " " + getCount() + " " + getPrice() + " " + getReserved();
+		}
+	}
+}
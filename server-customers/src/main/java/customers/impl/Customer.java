@@ -1,15 +1,23 @@
 package customers.impl;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
 import java.util.Map.Entry;
 
 import common.data.RMHashtable;
 import common.data.RMResource;
 
+/**
+ * Customer, and the items it reserved. The reservations are stored with the
+ * customer, in the table of customers: a transaction changing them modifies
+ * the copy of the customer it got for update.
+ */
 public class Customer implements RMResource {
 
 	private static final long serialVersionUID = 1517200217993301281L;
 
-	private class Reservation implements RMResource {
+	private static class Reservation implements RMResource {
 
 		private static final long serialVersionUID = -731384985266533262L;
 		private String manager;
@@ -43,27 +51,37 @@ public class Customer implements RMResource {
 	};
 
 	private int cid;
-	private RMHashtable<String, Reservation> reservations;
+
+	/**
+	 * Reservations, by manager and item id.
+	 */
+	private HashMap<String, Reservation> items;
+
+	/**
+	 * Table of the reservations of a customer saved before they were stored
+	 * with it, or null.
+	 */
+	private transient RMHashtable<String, Reservation> savedReservations;
 
 	/**
 	 * Builds a new {@link Customer} with the given id.
 	 */
 	public Customer(int cid) {
 		this.cid = cid;
-		this.reservations = new RMHashtable<>("customers", "reservations_" + cid);
+		this.items = new HashMap<>();
 	}
 
 	/**
 	 * Reserves one instance of the given item.
 	 */
-	public synchronized void reserve(int id, String manager, String itemId, int price) {
+	public synchronized void reserve(String manager, String itemId, int price) {
 		String itemKey = manager + "/" + itemId;
-		Reservation reservation = reservations.get(id, itemKey);
+		Reservation reservation = items.get(itemKey);
 
 		if (reservation == null) {
 			// Create a unique key to access the item quickly in the hash table
 			System.out.println("[Customer] Added reservation " + manager + ", " + itemId + ", " + price);
-			reservations.put(id, itemKey, new Reservation(manager, itemId, price));
+			items.put(itemKey, new Reservation(manager, itemId, price));
 		} else {
 			reservation.amount++;
 		}
@@ -73,13 +91,13 @@ public class Customer implements RMResource {
 	/**
 	 * Cancels a reservation.
 	 */
-	public synchronized void cancelReservation(int id, String manager, String itemId) {
+	public synchronized void cancelReservation(String manager, String itemId) {
 		String itemKey = manager + "/" + itemId;
-		Reservation reservation = reservations.get(id, itemKey);
+		Reservation reservation = items.get(itemKey);
 
 		if (reservation != null) {
 			if (reservation.amount-- == 0) {
-				reservations.remove(id, itemKey);
+				items.remove(itemKey);
 			}
 		}
 
@@ -90,10 +108,10 @@ public class Customer implements RMResource {
 	 * 
 	 * @see Reservation#toString()
 	 */
-	public String getReservations() {
+	public synchronized String getReservations() {
 		String result = "";
 
-		for (Reservation r : reservations.values()) {
+		for (Reservation r : items.values()) {
 			result += r.toString() + ";";
 		}
 
@@ -103,10 +121,10 @@ public class Customer implements RMResource {
 	/**
 	 * Print the current bill of the customer.
 	 */
-	public String printBill() {
+	public synchronized String printBill() {
 		String bill = "Bill for customer " + cid + "\n";
 
-		for (Entry<String, Reservation> entry : reservations.entrySet()) {
+		for (Entry<String, Reservation> entry : items.entrySet()) {
 			String itemId = entry.getKey();
 			Reservation reservation = entry.getValue();
 			bill += reservation.amount + " " + itemId + " $" + reservation.price + "\n";
@@ -116,31 +134,62 @@ public class Customer implements RMResource {
 	}
 
 	/**
-	 * Deletes all reservations associated to the given item.
+	 * Returns true if the customer reserved the given item.
 	 */
-	public void clearReservationsForItem(int id, String itemId) {
-		reservations.remove(id, itemId);
+	public synchronized boolean hasReservation(String itemId) {
+		return items.containsKey(itemId);
 	}
 
 	/**
-	 * Cancels all actions that were performed in the given transaction.
+	 * Deletes all reservations associated to the given item.
 	 */
-	public void cancel(int id) {
-		reservations.abort(id);
+	public synchronized void clearReservationsForItem(String itemId) {
+		items.remove(itemId);
+	}
+
+	@Override
+	public synchronized RMResource copy() {
+		Customer copy = new Customer(cid);
+
+		for (Entry<String, Reservation> entry : items.entrySet()) {
+			copy.items.put(entry.getKey(), (Reservation) entry.getValue().copy());
+		}
+
+		return copy;
 	}
 
 	/**
-	 * Reloads the reservations from disk.
+	 * Moves the reservations of a customer saved before they were stored with
+	 * it. Returns false if there was nothing to move.
 	 */
-	public void reloadReservations() {
-		reservations.loadSave();
+	synchronized boolean moveSavedReservations() {
+		if (savedReservations == null || !savedReservations.loadSave()) {
+			return false;
+		}
+
+		for (Entry<String, Reservation> entry : savedReservations.entrySet()) {
+			items.put(entry.getKey(), entry.getValue());
+		}
+
+		savedReservations = null;
+		return true;
 	}
 
-	@Override
-	public RMResource copy() {
-		Customer copy = new Customer(cid);
-		copy.reservations = new RMHashtable<>(reservations);
-		return copy;
+	/**
+	 * Customers saved before the reservations were stored with them kept them
+	 * in a table of their own, which is read later: its reservations refer to
+	 * other customers.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		cid = fields.get("cid", 0);
+		items = (HashMap<String, Reservation>) fields.get("items", null);
+
+		if (items == null) {
+			items = new HashMap<>();
+			savedReservations = (RMHashtable<String, Reservation>) fields.get("reservations", null);
+		}
 	}
 
 }
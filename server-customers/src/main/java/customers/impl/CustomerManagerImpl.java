@@ -7,13 +7,14 @@ import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Calendar;
 import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import common.data.RMHashtable;
 import common.debug.CrashInjector;
 import common.locks.DeadlockException;
 import common.locks.LockManager;
+import common.locks.TPHashTable;
 import common.locks.TrxnObj;
 import customers.CustomerManager;
 
@@ -56,31 +57,45 @@ public class CustomerManagerImpl implements CustomerManager {
 
 	private RMHashtable<Integer, Customer> customers;
 	private LockManager lockManager;
+	private TPHashTable<Long> lockTimeouts;
+	private Set<Integer> readOnlyTransactions;
 	private CrashInjector crashInjector;
 
+	/**
+	 * Loads the customers, with their reservations, from a single table: the
+	 * RM is ready as soon as the table is.
+	 */
 	public CustomerManagerImpl() {
+		long start = System.currentTimeMillis();
 		this.customers = new RMHashtable<>("customers", "customers");
 		this.lockManager = new LockManager();
+		this.lockTimeouts = new TPHashTable<>();
+		this.readOnlyTransactions = ConcurrentHashMap.newKeySet();
 		this.crashInjector = new CrashInjector();
 
-		/*
-		 * Make sure that the reservations are reloaded. This is necessary during the
-		 * deserialization, as the customers are not saved when reservations are created
-		 * or removed. Reloading them allows to have the latest version of the
-		 * reservations.
-		 */
+		// The customers saved by earlier versions kept their reservations apart
+		int moved = 0;
 		for (Customer customer : customers.values()) {
-			customer.reloadReservations();
+			if (customer.moveSavedReservations()) {
+				moved++;
+			}
+		}
+
+		if (moved > 0) {
+			customers.getCheckpointer().checkpoint();
+			log("Moved the reservations of " + moved + " customers to the table of customers");
 		}
+
+		log("Loaded " + customers.values().size() + " customers in " + (System.currentTimeMillis() - start) + " ms");
 	}
 
 	@Override
 	public int newCustomer(int id) throws DeadlockException {
 		log("newCustomer(" + id + ") called");
 
-		lockManager.lock(id, "customers", TrxnObj.WRITE);
 		int cid = Integer.parseInt(String.valueOf(id) + String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND))
 				+ String.valueOf(Math.round(Math.random() * 100 + 1)));
+		lockCustomer(id, cid, TrxnObj.WRITE);
 		customers.put(id, cid, new Customer(cid));
 		log("newCustomer(" + id + ") returns ID=" + cid);
 		return cid;
@@ -90,7 +105,7 @@ public class CustomerManagerImpl implements CustomerManager {
 	public boolean newCustomer(int id, int cid) throws DeadlockException {
 		log("newCustomer(" + id + ", " + cid + ") called");
 
-		lockManager.lock(id, "customers", TrxnObj.WRITE);
+		lockCustomer(id, cid, TrxnObj.WRITE);
 		boolean success = true;
 		Customer customer = customers.get(id, cid);
 
@@ -109,7 +124,7 @@ public class CustomerManagerImpl implements CustomerManager {
 	public boolean deleteCustomer(int id, int cid) throws DeadlockException {
 		log("deleteCustomer(" + id + ", " + cid + ") called");
 
-		lockManager.lock(id, "customers", TrxnObj.WRITE);
+		lockCustomer(id, cid, TrxnObj.WRITE);
 		return customers.remove(id, cid) != null;
 	}
 
@@ -117,9 +132,8 @@ public class CustomerManagerImpl implements CustomerManager {
 	public String queryCustomerInfo(int id, int cid) throws DeadlockException {
 		log("queryCustomerInfo(" + id + ", " + cid + ") called");
 
-		lockManager.lock(id, "customers", TrxnObj.READ);
 		String bill = "";
-		Customer customer = customers.get(id, cid);
+		Customer customer = readCustomer(id, cid);
 
 		if (customer == null) {
 			log("queryCustomerInfo(" + id + ", " + cid + ") failed: customer does not exist");
@@ -135,15 +149,15 @@ public class CustomerManagerImpl implements CustomerManager {
 	public boolean reserve(int id, int cid, String manager, String itemId, int price) throws DeadlockException {
 		log("reserve(" + id + ", " + cid + ", " + manager + ", " + itemId + ") called");
 
-		lockManager.lock(id, "customer-" + cid, TrxnObj.WRITE);
+		lockCustomer(id, cid, TrxnObj.WRITE);
 		boolean success = true;
-		Customer customer = customers.get(id, cid);
+		Customer customer = customers.getForUpdate(id, cid);
 
 		if (customer == null) {
 			success = false;
 			log("reserve(" + id + ", " + cid + ", " + manager + ", " + itemId + ") failed: customer does not exist");
 		} else {
-			customer.reserve(id, manager, itemId, price);
+			customer.reserve(manager, itemId, price);
 			log("reserve(" + id + ", " + cid + ", " + manager + ", " + itemId + ") succeeded");
 		}
 
@@ -154,16 +168,16 @@ public class CustomerManagerImpl implements CustomerManager {
 	public boolean cancelReservation(int id, int cid, String manager, String itemId) throws DeadlockException {
 		log("cancelReservation(" + id + ", " + cid + ", " + manager + ", " + itemId + ") called");
 
-		lockManager.lock(id, "customer-" + cid, TrxnObj.WRITE);
+		lockCustomer(id, cid, TrxnObj.WRITE);
 		boolean success = true;
-		Customer customer = customers.get(id, cid);
+		Customer customer = customers.getForUpdate(id, cid);
 
 		if (customer == null) {
 			success = false;
 			log("cancelReservation(" + id + ", " + cid + ", " + manager + ", " + itemId
 					+ ") failed: customer does not exist");
 		} else {
-			customer.cancelReservation(id, manager, itemId);
+			customer.cancelReservation(manager, itemId);
 			log("cancelReservation(" + id + ", " + cid + ", " + manager + ", " + itemId + ") succeeded");
 		}
 
@@ -174,9 +188,8 @@ public class CustomerManagerImpl implements CustomerManager {
 	public String queryReservations(int id, int cid) throws DeadlockException {
 		log("queryReservations(" + id + ", " + cid + ") called");
 
-		lockManager.lock(id, "customer-" + cid, TrxnObj.READ);
 		String reservations = null;
-		Customer customer = customers.get(id, cid);
+		Customer customer = readCustomer(id, cid);
 
 		if (customer != null) {
 			reservations = customer.getReservations();
@@ -186,50 +199,93 @@ public class CustomerManagerImpl implements CustomerManager {
 		return reservations;
 	}
 
+	/**
+	 * Clears the reservations of every customer. Past the escalation threshold of
+	 * the lock manager, the customer locks are replaced by a single lock on the
+	 * table of customers. Only the customers that reserved the item are copied
+	 * for update.
+	 */
 	@Override
 	public void clearReservationsForItem(int id, String itemId) throws RemoteException, DeadlockException {
 		for (Entry<Integer, Customer> entry : customers.entrySet()) {
-			lockManager.lock(id, "customer-" + entry.getKey(), TrxnObj.WRITE);
-			entry.getValue().clearReservationsForItem(id, itemId);
+			lockCustomer(id, entry.getKey(), TrxnObj.WRITE);
+			Customer customer = customers.get(id, entry.getKey());
+
+			if (customer != null && customer.hasReservation(itemId)) {
+				customers.getForUpdate(id, entry.getKey()).clearReservationsForItem(itemId);
+			}
 		}
 	}
 
 	@Override
-	public boolean prepare(int id) {
+	public Vote prepare(int id) {
 		log("Preparing transaction " + id);
 
 		// Inject crash if any
 		crashInjector.beforeVote();
-		new Timer().schedule(new TimerTask() {
-			@Override
-			public void run() {
-				crashInjector.afterVote();
-			}
-		}, 100);
+		crashInjector.afterVoteSent();
+
+		boolean written = customers.hasWritten(id);
+
+		if (!customers.prepare(id)) {
+			return Vote.NO;
+		} else if (written) {
+			return Vote.YES;
+		}
 
-		return customers.prepare(id);
+		// Nothing to commit: the transaction ends here
+		customers.commit(id);
+		release(id);
+		return Vote.READ_ONLY;
 	}
 
 	@Override
 	public boolean commit(int id) {
 		crashInjector.beforeSave();
 		log("Committing transaction " + id);
-		lockManager.unlockAll(id);
 
-		return customers.commit(id);
+		// The changes are saved before other transactions can see them
+		boolean result = customers.commit(id);
+		release(id);
+
+		return result;
 	}
 
 	@Override
 	public boolean abort(int id) {
 		crashInjector.beforeSave();
 		log("Aborting transaction " + id);
+
+		boolean result = customers.abort(id);
+		release(id);
+
+		return result;
+	}
+
+	/**
+	 * Forgets a transaction that committed or aborted, and releases its locks.
+	 */
+	private void release(int id) {
 		lockManager.unlockAll(id);
+		lockTimeouts.remove(id);
+		readOnlyTransactions.remove(id);
+	}
 
-		for (Customer customer : customers.values()) {
-			customer.cancel(id);
+	@Override
+	public boolean setLockTimeout(int id, long timeout) {
+		if (timeout < 0) {
+			lockTimeouts.remove(id);
+		} else {
+			lockTimeouts.put(id, timeout);
 		}
 
-		return customers.abort(id);
+		return true;
+	}
+
+	@Override
+	public boolean setReadOnly(int id) {
+		readOnlyTransactions.add(id);
+		return true;
 	}
 
 	@Override
@@ -247,6 +303,35 @@ public class CustomerManagerImpl implements CustomerManager {
 		return crashInjector.inject(when, operation);
 	}
 
+	/**
+	 * Locks a customer, as a row of the table of customers. The lock on a
+	 * customer also protects its creation and its deletion, so that transactions
+	 * working on different customers never wait for each other. The transaction
+	 * waits at most its lock timeout, if it has one.
+	 */
+	private void lockCustomer(int id, int cid, int lockType) throws DeadlockException {
+		Long timeout = lockTimeouts.get(id);
+
+		if (timeout == null) {
+			lockManager.lock(id, "customers", String.valueOf(cid), lockType);
+		} else {
+			lockManager.lock(id, "customers", String.valueOf(cid), lockType, timeout);
+		}
+	}
+
+	/**
+	 * Reads a customer. A read-only transaction reads its snapshot, and does not
+	 * wait for the transactions writing the customer.
+	 */
+	private Customer readCustomer(int id, int cid) throws DeadlockException {
+		if (readOnlyTransactions.contains(id)) {
+			return customers.getSnapshot(id, cid);
+		}
+
+		lockCustomer(id, cid, TrxnObj.READ);
+		return customers.get(id, cid);
+	}
+
 	private void log(String message) {
 		System.out.println("[CustomerManager] " + message);
 	}
@@ -18,7 +18,9 @@ public class Flight extends ReservableItem {
 
 	@Override
 	public RMResource copy() {
-		return new Flight(Integer.parseInt(getLocation()), getCount(), getPrice());
+		Flight copy = new Flight(Integer.parseInt(getLocation()), getCount(), getPrice());
+		copy.setReserved(0, getReserved());
+		return copy;
 	}
 
 }
@@ -48,7 +48,7 @@ public class FlightManagerImpl extends ReservationManager<Flight> implements Fli
 	}
 
 	public FlightManagerImpl() {
-		super("flights");
+		super("flights", (location, count, price) -> new Flight(Integer.parseInt(location), count, price));
 	}
 
 	@Override
@@ -88,7 +88,7 @@ public class FlightManagerImpl extends ReservationManager<Flight> implements Fli
 	}
 
 	@Override
-	public boolean prepare(int id) {
+	public Vote prepare(int id) {
 		return prepareCommit(id);
 	}
 
@@ -102,6 +102,16 @@ public class FlightManagerImpl extends ReservationManager<Flight> implements Fli
 		return abortTransaction(id);
 	}
 
+	@Override
+	public boolean setLockTimeout(int id, long timeout) {
+		return setTransactionLockTimeout(id, timeout);
+	}
+
+	@Override
+	public boolean setReadOnly(int id) {
+		return setTransactionReadOnly(id);
+	}
+
 	@Override
 	public boolean shutdown() throws RemoteException {
 		return shutdownManager();
@@ -18,7 +18,9 @@ public class Hotel extends ReservableItem {
 
 	@Override
 	public RMResource copy() {
-		return new Hotel(getLocation(), getCount(), getPrice());
+		Hotel copy = new Hotel(getLocation(), getCount(), getPrice());
+		copy.setReserved(0, getReserved());
+		return copy;
 	}
 
 }
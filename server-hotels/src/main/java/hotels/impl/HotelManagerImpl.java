@@ -48,7 +48,7 @@ public class HotelManagerImpl extends ReservationManager<Hotel> implements Hotel
 	}
 
 	public HotelManagerImpl() {
-		super("hotels");
+		super("hotels", Hotel::new);
 	}
 
 	@Override
@@ -88,7 +88,7 @@ public class HotelManagerImpl extends ReservationManager<Hotel> implements Hotel
 	}
 
 	@Override
-	public boolean prepare(int id) {
+	public Vote prepare(int id) {
 		return prepareCommit(id);
 	}
 
@@ -102,6 +102,16 @@ public class HotelManagerImpl extends ReservationManager<Hotel> implements Hotel
 		return abortTransaction(id);
 	}
 
+	@Override
+	public boolean setLockTimeout(int id, long timeout) {
+		return setTransactionLockTimeout(id, timeout);
+	}
+
+	@Override
+	public boolean setReadOnly(int id) {
+		return setTransactionReadOnly(id);
+	}
+
 	@Override
 	public boolean shutdown() throws RemoteException {
 		return shutdownManager();
@@ -133,6 +133,15 @@ public interface Middleware extends Remote {
 	 */
 	public int start() throws RemoteException;
 
+	/**
+	 * Starts a new transaction that only queries. Its queries read a consistent
+	 * snapshot of the committed data without taking locks, so that they never
+	 * wait for the other transactions. It cannot modify anything.
+	 * 
+	 * @return the transaction id
+	 */
+	public int startReadOnly() throws RemoteException;
+
 	/**
 	 * Initiates the first phase of two-phase commit (2PC) and commits the
 	 * transaction in case of success
@@ -6,15 +6,19 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import cars.CarManager;
 import common.locks.DeadlockException;
+import common.locks.LockTimeoutException;
 import common.rm.ResourceManager;
+import common.rm.ResourceManager.Vote;
 import customers.CustomerManager;
 import customers.impl.CustomerManagerImpl;
 import flights.FlightManager;
@@ -30,6 +34,11 @@ import middleware.impl.exceptions.TransactionTimeoutException;
 @SuppressWarnings("deprecation")
 public class MiddlewareImpl implements Middleware {
 
+	/**
+	 * Maximum time an itinerary waits for each of its locks, in milliseconds.
+	 */
+	private static final long ITINERARY_LOCK_TIMEOUT = 2000;
+
 	public static void main(String[] args) {
 		// Check the number of arguments
 		if (args.length != 0 && args.length != 1 && args.length != 3 && args.length != 4) {
@@ -84,7 +93,7 @@ public class MiddlewareImpl implements Middleware {
 	 *            the address if the hotel server
 	 */
 	public MiddlewareImpl(String carServer, String flightServer, String hotelServer) {
-		this.rms = new HashMap<>();
+		this.rms = new ConcurrentHashMap<>();
 
 		this.carServer = carServer;
 		this.flightServer = flightServer;
@@ -95,20 +104,20 @@ public class MiddlewareImpl implements Middleware {
 		this.hotelManager = (HotelManager) connect("hotels.group20", hotelServer);
 		this.customerManager = new CustomerManagerImpl();
 
-		this.tm = new TransactionManager(this);
 		rms.put(customerManager.getClass().getInterfaces()[0].getName(), customerManager);
+		this.tm = new TransactionManager(this);
 	}
 
 	@Override
 	public boolean addFlight(int id, int flightNum, int flightSeats, int flightPrice)
 			throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 		tm.enlist(id, flightManager);
 
 		try {
 			return flightManager.addFlight(id, flightNum, flightSeats, flightPrice);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(flightManager);
 			return addFlight(id, flightNum, flightSeats, flightPrice);
@@ -117,13 +126,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean addCars(int id, String location, int numCars, int price) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 		tm.enlist(id, carManager);
 
 		try {
 			return carManager.addCars(id, location, numCars, price);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			return addCars(id, location, numCars, price);
@@ -132,13 +141,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean addRooms(int id, String location, int numRooms, int price) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, hotelManager);
 			return hotelManager.addRooms(id, location, numRooms, price);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(hotelManager);
 			return addRooms(id, location, numRooms, price);
@@ -147,13 +156,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public int newCustomer(int id) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, customerManager);
 			return customerManager.newCustomer(id);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(customerManager);
 			return newCustomer(id);
@@ -162,13 +171,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean newCustomer(int id, int cid) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, customerManager);
 			return customerManager.newCustomer(id, cid);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(customerManager);
 			return newCustomer(id, cid);
@@ -177,13 +186,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean deleteFlight(int id, int flightNum) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, flightManager);
 			return flightManager.deleteFlight(id, flightNum);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(flightManager);
 			return deleteFlight(id, flightNum);
@@ -192,13 +201,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean deleteCars(int id, String location) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, carManager);
 			return carManager.deleteCars(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			return deleteCars(id, location);
@@ -207,13 +216,13 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean deleteRooms(int id, String location) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, hotelManager);
 			return hotelManager.deleteRooms(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(hotelManager);
 			return deleteRooms(id, location);
@@ -222,7 +231,7 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean deleteCustomer(int id, int customer) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 		boolean success = false;
 
 		try {
@@ -262,7 +271,7 @@ public class MiddlewareImpl implements Middleware {
 
 			return success;
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(customerManager);
 			reconnect(flightManager);
@@ -281,7 +290,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, flightManager);
 			return flightManager.queryFlight(id, flightNumber);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(flightManager);
 			return queryFlight(id, flightNumber);
@@ -296,7 +305,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, carManager);
 			return carManager.queryCars(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			return queryCars(id, location);
@@ -311,7 +320,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, hotelManager);
 			return hotelManager.queryRooms(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(hotelManager);
 			return queryRooms(id, location);
@@ -326,7 +335,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, customerManager);
 			return customerManager.queryCustomerInfo(id, customer);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(customerManager);
 			return queryCustomerInfo(id, customer);
@@ -341,7 +350,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, flightManager);
 			return flightManager.queryFlightPrice(id, flightNumber);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(flightManager);
 			return queryFlightPrice(id, flightNumber);
@@ -356,7 +365,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, carManager);
 			return carManager.queryCarsPrice(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			return queryCarsPrice(id, location);
@@ -371,7 +380,7 @@ public class MiddlewareImpl implements Middleware {
 			tm.enlist(id, hotelManager);
 			return hotelManager.queryRoomsPrice(id, location);
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(hotelManager);
 			return queryRoomsPrice(id, location);
@@ -380,7 +389,7 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean reserveFlight(int id, int customer, int flightNumber) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, flightManager);
@@ -392,7 +401,7 @@ public class MiddlewareImpl implements Middleware {
 
 			return false;
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(flightManager);
 			reconnect(customerManager);
@@ -403,7 +412,7 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean reserveCar(int id, int customer, String location) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, carManager);
@@ -413,7 +422,7 @@ public class MiddlewareImpl implements Middleware {
 				return customerManager.reserve(id, customer, "cars", location, price);
 			}
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			reconnect(customerManager);
@@ -426,7 +435,7 @@ public class MiddlewareImpl implements Middleware {
 
 	@Override
 	public boolean reserveRoom(int id, int customer, String location) throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
 
 		try {
 			tm.enlist(id, hotelManager);
@@ -438,7 +447,7 @@ public class MiddlewareImpl implements Middleware {
 			}
 
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(hotelManager);
 			reconnect(customerManager);
@@ -452,11 +461,20 @@ public class MiddlewareImpl implements Middleware {
 	@Override
 	public boolean itinerary(int id, int customer, Vector<Integer> flights, String location, boolean car, boolean room)
 			throws RemoteException, ServerException {
-		checkTransaction(id);
+		checkWritable(id);
+
+		// An itinerary locks many items: under contention, it gives up early rather than
+		// keeping its locks while it waits for the other ones. The timeout is only set on
+		// the managers the itinerary uses, and only for its own calls.
+		Set<ResourceManager> limited = new HashSet<>();
 
 		try {
 			boolean success = true;
 
+			if (!flights.isEmpty()) {
+				setLockTimeout(id, limited, flightManager, customerManager);
+			}
+
 			Vector<Object> reservedFlights = new Vector<>();
 			boolean carReserved = false, roomReserved = false;
 
@@ -470,11 +488,13 @@ public class MiddlewareImpl implements Middleware {
 
 			if (success) {
 				if (car) {
+					setLockTimeout(id, limited, carManager, customerManager);
 					carReserved = reserveCar(id, customer, location);
 					success = carReserved;
 				}
 
 				if (room) {
+					setLockTimeout(id, limited, hotelManager, customerManager);
 					roomReserved = reserveRoom(id, customer, location);
 					success = roomReserved;
 				}
@@ -503,7 +523,7 @@ public class MiddlewareImpl implements Middleware {
 
 			return success;
 		} catch (DeadlockException e) {
-			throw new ServerException();
+			throw deadlock(id, e);
 		} catch (ConnectException e) {
 			reconnect(carManager);
 			reconnect(flightManager);
@@ -511,6 +531,8 @@ public class MiddlewareImpl implements Middleware {
 			reconnect(customerManager);
 
 			return itinerary(id, customer, flights, location, car, room);
+		} finally {
+			resetLockTimeout(id, limited);
 		}
 	}
 
@@ -519,6 +541,11 @@ public class MiddlewareImpl implements Middleware {
 		return tm.startTransaction();
 	}
 
+	@Override
+	public int startReadOnly() {
+		return tm.startTransaction(true);
+	}
+
 	@Override
 	public boolean prepare(int id) throws RemoteException, ServerException {
 		return tm.prepareTransaction(id);
@@ -608,7 +635,10 @@ public class MiddlewareImpl implements Middleware {
 		return success;
 	}
 
-	boolean prepare(String rm, int id) throws RemoteException {
+	/**
+	 * Sends a prepare request using the resource manager key.
+	 */
+	Vote prepare(String rm, int id) throws RemoteException {
 		try {
 			ResourceManager resourceManager = rms.get(rm);
 			return resourceManager.prepare(id);
@@ -640,7 +670,7 @@ public class MiddlewareImpl implements Middleware {
 			return resourceManager.abort(id);
 		} catch (ConnectException e) {
 			reconnect(rms.get(rm));
-			return abort(id);
+			return abort(rm, id);
 		}
 	}
 
@@ -694,6 +724,17 @@ public class MiddlewareImpl implements Middleware {
 		return result;
 	}
 
+	TransactionManager getTransactionManager() {
+		return tm;
+	}
+
+	/**
+	 * Returns the keys of the resource managers, used to send them requests.
+	 */
+	Set<String> getResourceManagers() {
+		return rms.keySet();
+	}
+
 	/**
 	 * Checks if the given id is a valid transaction id. If it is not valid, throws
 	 * an exception.
@@ -714,6 +755,72 @@ public class MiddlewareImpl implements Middleware {
 		}
 	}
 
+	/**
+	 * Checks that the transaction is active and can write.
+	 */
+	private void checkWritable(int id) throws ServerException {
+		checkTransaction(id);
+
+		if (tm.isReadOnly(id)) {
+			throw new InvalidTransactionException("The transaction is read-only");
+		}
+	}
+
+	/**
+	 * Aborts a transaction that was chosen as the victim of a deadlock by one of
+	 * the resource managers, or that could not get a lock within its lock timeout,
+	 * so that the locks it holds are released right away.
+	 */
+	private ServerException deadlock(int id, DeadlockException cause) {
+		boolean timeout = cause instanceof LockTimeoutException;
+		log("Transaction " + id + (timeout ? " could not get a lock in time" : " is deadlocked") + ". Aborting...");
+
+		try {
+			tm.abortTransaction(id);
+		} catch (InvalidTransactionException e) {
+			// Already aborted
+		}
+
+		if (timeout) {
+			return new InvalidTransactionException("The transaction was aborted because an item was locked for too long");
+		}
+		return new InvalidTransactionException("The transaction was aborted because of a deadlock");
+	}
+
+	/**
+	 * Sets the itinerary lock timeout of a transaction on the resource managers
+	 * that do not have it yet, and adds them to the given set. The timeout is
+	 * only a policy: failing to set it does not fail the operation.
+	 */
+	private void setLockTimeout(int id, Set<ResourceManager> limited, ResourceManager... managers) {
+		for (ResourceManager rm : managers) {
+			if (!limited.add(rm)) {
+				continue;
+			}
+
+			try {
+				rm.setLockTimeout(id, ITINERARY_LOCK_TIMEOUT);
+			} catch (RemoteException e) {
+				log("Unable to set the lock timeout of transaction " + id + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Restores the default lock timeout of a transaction on the resource managers
+	 * where the itinerary set it, so that the next operations of the transaction
+	 * wait as usual.
+	 */
+	private void resetLockTimeout(int id, Set<ResourceManager> limited) {
+		for (ResourceManager rm : limited) {
+			try {
+				rm.setLockTimeout(id, ResourceManager.DEFAULT_LOCK_TIMEOUT);
+			} catch (RemoteException e) {
+				log("Unable to reset the lock timeout of transaction " + id + ": " + e.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * Shut downs a particular resource manager.
 	 */
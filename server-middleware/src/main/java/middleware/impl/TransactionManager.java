@@ -2,23 +2,36 @@ package middleware.impl;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import common.files.BinaryInput;
+import common.files.BinaryOutput;
+import common.files.Codec;
+import common.files.LogFile;
 import common.files.SaveFile;
 import common.rm.ResourceManager;
+import common.rm.ResourceManager.Vote;
 import middleware.impl.debug.CrashInjector;
 import middleware.impl.exceptions.InvalidTransactionException;
 
@@ -27,6 +40,38 @@ public class TransactionManager {
 	public static final long TRANSACTION_TIMEOUT = 60000;
 	public static final long RESPONSE_TIMEOUT = 1000;
 
+	/**
+	 * Interval between two searches for the transactions that timed out. A
+	 * transaction times out at most this late.
+	 */
+	public static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+	/**
+	 * Maximum number of threads sending the requests of the two-phase commit,
+	 * and of requests waiting for one of them. When both are full, the thread
+	 * committing a transaction sends its requests itself.
+	 */
+	public static final int MAX_THREADS = 32;
+	public static final int MAX_QUEUED_REQUESTS = 1000;
+
+	/**
+	 * Number of transaction ids reserved at once in the decision log, so that
+	 * the ids are not reused after a restart without logging every start.
+	 */
+	public static final int RESERVED_IDS = 100;
+
+	/**
+	 * Number of records of the decision log above which it is truncated: it
+	 * starts over with the commits that are not finished.
+	 */
+	public static final int TRUNCATE_RECORDS = 1000;
+
+	/**
+	 * Number of finished transactions whose outcome is kept, to answer the
+	 * clients that use them again. The others are forgotten.
+	 */
+	public static final int KEPT_OUTCOMES = 10000;
+
 	/**
 	 * Represents the status of a transaction
 	 */
@@ -42,17 +87,140 @@ public class TransactionManager {
 		private static final long serialVersionUID = 2084803164578661556L;
 		private Set<String> rms; // The resource managers involved in the transaction
 		private Status status;
+		private boolean readOnly;
+		private transient volatile long lastUsed; // System.nanoTime() of the last operation
 
-		Transaction() {
+		Transaction(boolean readOnly) {
 			this.rms = new HashSet<>();
 			this.status = Status.ACTIVE;
+			this.readOnly = readOnly;
 		}
+
+		/**
+		 * Format of the save file of earlier versions, which saved every
+		 * transaction.
+		 */
+		private static final Codec<Transaction> CODEC = new Codec<Transaction>() {
+			@Override
+			public void write(BinaryOutput out, Transaction transaction) {
+				out.writeBoolean(transaction.readOnly);
+				out.writeByte(transaction.status.ordinal());
+				out.writeInt(transaction.rms.size());
+
+				for (String rm : transaction.rms) {
+					out.writeString(rm);
+				}
+			}
+
+			@Override
+			public Transaction read(BinaryInput in) throws IOException {
+				Transaction transaction = new Transaction(in.readBoolean());
+				int status = in.readByte();
+
+				if (status < 0 || status >= Status.values().length) {
+					throw new IOException("Unknown status " + status);
+				}
+				transaction.status = Status.values()[status];
+
+				int rms = in.readInt();
+				for (int i = 0; i < rms; i++) {
+					transaction.rms.add(in.readString());
+				}
+
+				return transaction;
+			}
+		};
 	}
 
-	private int tid;
+	/**
+	 * Record of the decision log. Only the decisions to commit are logged: a
+	 * transaction that has none after a restart is presumed aborted.
+	 */
+	private static class Decision implements Serializable {
+
+		private static final long serialVersionUID = -2741350838218545063L;
+
+		/**
+		 * Kinds of records.
+		 * 
+		 * <ul>
+		 * <li>COMMIT: the transaction commits, on the given resource managers. Forced
+		 * before the commit requests are sent.</li>
+		 * <li>END: every resource manager committed the transaction.</li>
+		 * <li>IDS: the ids below the given one may be used, and the transactions
+		 * before the oldest one are finished.</li>
+		 * </ul>
+		 */
+		private static enum Type {
+			COMMIT, END, IDS
+		}
+
+		private Type type;
+		private int id;
+		private int oldest;
+		private Set<String> rms;
+
+		Decision(Type type, int id, int oldest, Set<String> rms) {
+			this.type = type;
+			this.id = id;
+			this.oldest = oldest;
+			this.rms = rms;
+		}
+
+		private static final Codec<Decision> CODEC = new Codec<Decision>() {
+			@Override
+			public void write(BinaryOutput out, Decision decision) {
+				out.writeByte(decision.type.ordinal());
+				out.writeInt(decision.id);
+				out.writeInt(decision.oldest);
+				out.writeInt(decision.rms.size());
+
+				for (String rm : decision.rms) {
+					out.writeString(rm);
+				}
+			}
+
+			@Override
+			public Decision read(BinaryInput in) throws IOException {
+				int type = in.readByte();
+
+				if (type < 0 || type >= Type.values().length) {
+					throw new IOException("Unknown decision " + type);
+				}
+
+				Decision decision = new Decision(Type.values()[type], in.readInt(), in.readInt(),
+						new HashSet<>());
+				int rms = in.readInt();
+				for (int i = 0; i < rms; i++) {
+					decision.rms.add(in.readString());
+				}
+
+				return decision;
+			}
+		};
+	}
+
+	/**
+	 * Request of the two-phase commit sent to a resource manager. Returns the
+	 * answer of the manager.
+	 */
+	private static interface Request {
+		boolean send(String rm) throws Exception;
+	}
+
+	private volatile int tid;
 	private MiddlewareImpl middleware;
+	private ThreadPoolExecutor executor;
+	private ScheduledExecutorService timer;
 	private Map<Integer, Transaction> transactions;
-	private Map<Integer, Timer> timers;
+	private Map<Integer, Status> outcomes;
+	private Set<Integer> timers;
+	private volatile long transactionTimeout;
+
+	private LogFile<Decision> decisionLog;
+	private long generation;
+	private int reservedIds;
+	private Set<Integer> committing;
 
 	private SaveFile<Map<Integer, Transaction>> saveFile;
 	private CrashInjector crashInjector;
@@ -62,10 +230,36 @@ public class TransactionManager {
 	 */
 	public TransactionManager(MiddlewareImpl middleware) {
 		this.tid = 0;
-		this.transactions = new HashMap<>();
-		this.timers = new HashMap<>();
+		this.transactions = new ConcurrentHashMap<>();
+		this.outcomes = Collections.synchronizedMap(new LinkedHashMap<Integer, Status>() {
+			private static final long serialVersionUID = 6530124983312794522L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Status> eldest) {
+				return size() > KEPT_OUTCOMES;
+			}
+		});
+		this.timers = ConcurrentHashMap.newKeySet();
+		this.transactionTimeout = TRANSACTION_TIMEOUT;
 		this.middleware = middleware;
-		this.saveFile = new SaveFile<>("middleware", "transactions");
+
+		// The threads wait for the resource managers: there can be more than cores
+		this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS), daemonThreads("2pc"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+
+		// A single thread times out all the transactions
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("transaction-timeout"));
+		this.timer.scheduleWithFixedDelay(this::checkTimeouts, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL,
+				TimeUnit.MILLISECONDS);
+
+		this.decisionLog = new LogFile<>("middleware", "decisions", Decision.CODEC);
+		this.generation = 0;
+		this.reservedIds = 1;
+		this.committing = ConcurrentHashMap.newKeySet();
+
+		this.saveFile = new SaveFile<>("middleware", "transactions", Codec.map(Codec.INTEGERS, Transaction.CODEC));
 		this.crashInjector = new CrashInjector();
 
 		loadSave();
@@ -76,19 +270,36 @@ public class TransactionManager {
 	 * initializes a timer.
 	 */
 	public int startTransaction() {
-		tid++;
+		return startTransaction(false);
+	}
 
-		log("Starting transaction " + tid);
-		transactions.put(tid, new Transaction());
+	/**
+	 * Initializes a transaction that may only read.
+	 * 
+	 * @see ResourceManager#setReadOnly(int)
+	 */
+	public synchronized int startTransaction(boolean readOnly) {
+		int id = tid + 1;
+
+		// Registered before the id is used, so that it is never below the oldest
+		// transaction that is not finished
+		log("Starting " + (readOnly ? "read-only " : "") + "transaction " + id);
+		transactions.put(id, new Transaction(readOnly));
+		tid = id;
 		resetTimeout(tid);
 
-		save();
+		if (tid >= reservedIds) {
+			reserveIds();
+		}
+
 		return tid;
 	}
 
 	/**
 	 * Prepares a transaction before being committed. Check that every resource
-	 * managers can commit the transaction.
+	 * managers can commit the transaction. The managers where the transaction
+	 * only read release it when they vote, and are not sent the decision. A
+	 * transaction with a single manager is committed in one phase.
 	 */
 	public boolean prepareTransaction(int id) throws InvalidTransactionException {
 		Transaction transaction = transactions.get(id);
@@ -99,50 +310,46 @@ public class TransactionManager {
 
 		if (transaction.status != Status.ACTIVE && transaction.status != Status.IN_PREPARE) {
 			if (transaction.status == Status.IN_COMMIT) {
-				return commitTransaction(id);
+				// A commit in one phase was not logged
+				return committing.contains(id) ? commitTransaction(id) : commitOnePhase(id, transaction);
 			} else {
 				throw new InvalidTransactionException(
 						"Cannot prepare this transaction (status: " + transaction.status + ").");
 			}
 		}
 
-		boolean success = true;
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		int i = 1;
-
 		crashInjector.beforePrepare();
+
+		if (transaction.rms.size() == 1) {
+			return commitOnePhase(id, transaction);
+		}
+
 		log("Preparing transaction " + id);
 		setTransactionStatus(id, Status.IN_PREPARE);
 
-		try {
-			for (String rm : transaction.rms) {
-				Future<Boolean> future = executor.submit(new Callable<Boolean>() {
-					@Override
-					public Boolean call() throws Exception {
-						log("Sending prepare request to " + rm);
-						middleware.prepare(rm, id);
-						return middleware.prepare(rm, id);
-					}
-				});
-
-				// One resource manager voted NO
-				if (!future.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
-					log("Negative response received. Returning false...");
-					success = false;
-					break;
-				}
+		Set<String> readOnly = ConcurrentHashMap.newKeySet();
+		boolean success = sendToAll(transaction, true, rm -> {
+			log("Sending prepare request to " + rm);
+			Vote vote = middleware.prepare(rm, id);
 
-				crashInjector.inPrepare(i, transactions.get(id).rms.size());
-				i++;
+			if (vote == Vote.READ_ONLY) {
+				readOnly.add(rm);
 			}
-		} catch (TimeoutException | ExecutionException | InterruptedException e) {
-			// One resource manager crashed
-			success = false;
-		}
+			return vote != Vote.NO;
+		});
 
 		crashInjector.afterPrepare();
 
 		if (success) {
+			transaction.rms.removeAll(readOnly);
+
+			// Nothing was written: there is no decision to save or send
+			if (transaction.rms.isEmpty()) {
+				log("Transaction " + id + " only read");
+				setTransactionStatus(id, Status.COMMITTED);
+				return true;
+			}
+
 			return commitTransaction(id);
 		} else {
 			setTransactionStatus(id, Status.ACTIVE);
@@ -166,32 +373,24 @@ public class TransactionManager {
 					"Cannot commit this transaction (status: " + transaction.status + ").");
 		}
 
-		boolean success = true;
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		int i = 1;
-
 		crashInjector.beforeDecision();
 		log("Commiting transaction " + id);
+
+		// The decision is on disk before any resource manager commits
+		if (transaction.status == Status.IN_PREPARE && !logCommit(id, transaction)) {
+			setTransactionStatus(id, Status.ACTIVE);
+			abortTransaction(id);
+			return false;
+		}
 		setTransactionStatus(id, Status.IN_COMMIT);
 
-		for (String rm : transactions.get(id).rms) {
-			try {
-				Future<Boolean> future = executor.submit(new Callable<Boolean>() {
-					@Override
-					public Boolean call() throws Exception {
-						log("Sending commit request to " + rm);
-						return middleware.commit(rm, id);
-					}
-				});
+		boolean success = sendToAll(transaction, false, rm -> {
+			log("Sending commit request to " + rm);
+			return middleware.commit(rm, id);
+		});
 
-				success &= future.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
-				crashInjector.inDecision(i, transactions.get(id).rms.size());
-				i++;
-			} catch (TimeoutException | ExecutionException | InterruptedException e) {
-				// One resource manager crashed
-				success = false;
-				break;
-			}
+		if (success) {
+			logEnd(id);
 		}
 
 		Status status = success ? Status.COMMITTED : Status.IN_COMMIT;
@@ -201,6 +400,60 @@ public class TransactionManager {
 		return success;
 	}
 
+	/**
+	 * Commits a transaction with a single resource manager, which decides alone:
+	 * it is sent the commit without a prepare request, and nothing is logged. If
+	 * it answers that it could not commit, the transaction is aborted, as after a
+	 * negative vote. If it does not answer, it may have committed: the
+	 * transaction stays in commit, and the request is sent again until it
+	 * answers.
+	 */
+	private boolean commitOnePhase(int id, Transaction transaction) throws InvalidTransactionException {
+		crashInjector.beforeDecision();
+		log("Commiting transaction " + id + " in one phase");
+		setTransactionStatus(id, Status.IN_COMMIT);
+
+		Set<String> refused = ConcurrentHashMap.newKeySet();
+		boolean success = sendToAll(transaction, false, rm -> {
+			log("Sending commit request to " + rm);
+			boolean committed = middleware.commit(rm, id);
+
+			if (!committed) {
+				refused.add(rm);
+			}
+			return committed;
+		});
+
+		if (!success && !refused.isEmpty()) {
+			setTransactionStatus(id, Status.IN_ABORT);
+			abortTransaction(id);
+			return false;
+		} else if (!success) {
+			log("No outcome for transaction " + id + ", retrying in " + RESPONSE_TIMEOUT + " ms");
+			timer.schedule(() -> executor.execute(() -> retryCommit(id)), RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+			return false;
+		}
+
+		setTransactionStatus(id, Status.COMMITTED);
+		crashInjector.afterDecision();
+
+		return true;
+	}
+
+	/**
+	 * Sends the commit of a transaction again, unless a client did in the
+	 * meantime.
+	 */
+	private void retryCommit(int id) {
+		try {
+			if (getStatus(id) == Status.IN_COMMIT) {
+				prepareTransaction(id);
+			}
+		} catch (InvalidTransactionException e) {
+			// Finished by a client in the meantime
+		}
+	}
+
 	/**
 	 * Aborts a transaction.
 	 */
@@ -216,32 +469,17 @@ public class TransactionManager {
 					"Cannot abort this transaction (status: " + transaction.status + ").");
 		}
 
-		boolean success = true;
-		ExecutorService executor = Executors.newSingleThreadExecutor();
-		int i = 1;
-
 		crashInjector.beforeDecision();
 		log("Aborting transaction " + id);
 		setTransactionStatus(id, Status.IN_ABORT);
 
-		for (String rm : transactions.get(id).rms) {
-			try {
-				Future<Boolean> future = executor.submit(new Callable<Boolean>() {
-					@Override
-					public Boolean call() throws Exception {
-						log("Sending abort request to " + rm);
-						return middleware.abort(rm, id);
-					}
-				});
-
-				success &= future.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
-				crashInjector.inDecision(i, transactions.get(id).rms.size());
-				i++;
-			} catch (TimeoutException | ExecutionException | InterruptedException e) {
-				// One resource manager crashed
-				success = false;
-			}
-		}
+		// A manager that has nothing to abort answers false, which is enough to
+		// forget the transaction
+		boolean success = sendToAll(transaction, false, rm -> {
+			log("Sending abort request to " + rm);
+			middleware.abort(rm, id);
+			return true;
+		});
 
 		Status status = success ? Status.ABORTED : Status.IN_ABORT;
 		setTransactionStatus(id, status);
@@ -251,13 +489,27 @@ public class TransactionManager {
 	}
 
 	/**
-	 * Adds a resource manager to the set of involved managers.
+	 * Adds a resource manager to the set of involved managers. A read-only
+	 * transaction is declared to the manager the first time.
 	 */
-	public void enlist(int id, ResourceManager rm) {
+	public void enlist(int id, ResourceManager rm) throws RemoteException {
 		String rmname = rm.getClass().getInterfaces()[0].getName();
+		Transaction transaction = transactions.get(id);
 		log("Enlisting " + rmname + " for transaction " + id);
-		transactions.get(id).rms.add(rmname);
-		save();
+
+		if (transaction.readOnly && !transaction.rms.contains(rmname)) {
+			rm.setReadOnly(id);
+		}
+
+		transaction.rms.add(rmname);
+	}
+
+	/**
+	 * Returns true if the transaction may only read.
+	 */
+	public boolean isReadOnly(int id) {
+		Transaction transaction = transactions.get(id);
+		return transaction != null && transaction.readOnly;
 	}
 
 	/**
@@ -265,46 +517,58 @@ public class TransactionManager {
 	 * returns {@link Status#INVALID}
 	 */
 	public Status getStatus(int id) {
-		return transactions.containsKey(id) ? transactions.get(id).status : Status.INVALID;
+		Transaction transaction = transactions.get(id);
+
+		if (transaction != null) {
+			return transaction.status;
+		}
+
+		Status outcome = outcomes.get(id);
+		return outcome == null ? Status.INVALID : outcome;
 	}
 
 	/**
 	 * Resets the timer associated to the given transaction. Assumes that the given
-	 * id number is valid.
+	 * id number is valid. Called at every operation, it only records the time of
+	 * the operation: the transactions that timed out are searched for
+	 * periodically.
 	 */
 	public void resetTimeout(int id) {
-		if (transactions.containsKey(id)) {
-			// Cancel the previous timer
-			if (timers.containsKey(id)) {
-				timers.get(id).cancel();
-			}
+		Transaction transaction = transactions.get(id);
 
-			// Create a new timer
-			Timer timer = new Timer();
-			timer.schedule(new TimerTask() {
-				@Override
-				public void run() {
-					try {
-						if (transactions.containsKey(id)) {
-							Status status = transactions.get(id).status;
-							if (status == Status.ACTIVE) {
-								log("Timeout. Aborting transaction " + id);
-								abortTransaction(id);
-								setTransactionStatus(id, Status.TIMED_OUT);
-							}
-						} else {
-							timers.remove(id);
-						}
-					} catch (Exception e) {
-						// Ignore.
-					}
-				}
-			}, TRANSACTION_TIMEOUT);
+		if (transaction != null) {
+			transaction.lastUsed = System.nanoTime();
 
-			timers.put(id, timer);
+			if (!timers.contains(id)) {
+				timers.add(id);
+			}
 		}
 	}
 
+	/**
+	 * Returns the number of threads sending the requests of the two-phase
+	 * commit.
+	 */
+	public int getThreadCount() {
+		return executor.getPoolSize();
+	}
+
+	/**
+	 * Returns the number of requests of the two-phase commit waiting for a
+	 * thread.
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of transactions that will time out if they are not
+	 * used.
+	 */
+	public int getPendingTimeouts() {
+		return timers.size();
+	}
+
 	/**
 	 * Checks if the system can be shutdown gracefully. It is the case when no
 	 * transaction is active in the system.
@@ -318,6 +582,14 @@ public class TransactionManager {
 		return true;
 	}
 
+	/**
+	 * Sets the time after which an active transaction that is not used is
+	 * aborted, in milliseconds. {@link #TRANSACTION_TIMEOUT} by default.
+	 */
+	void setTransactionTimeout(long transactionTimeout) {
+		this.transactionTimeout = transactionTimeout;
+	}
+
 	/**
 	 * Injects a crash in the middleware.
 	 * 
@@ -328,67 +600,346 @@ public class TransactionManager {
 	}
 
 	/**
-	 * Changes the status of a transaction and saves it to disk.
+	 * Aborts the active transactions that were not used for the transaction
+	 * timeout.
+	 */
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+
+		for (int id : timers) {
+			Transaction transaction = transactions.get(id);
+
+			if (transaction == null) {
+				timers.remove(id);
+			} else if (now - transaction.lastUsed > TimeUnit.MILLISECONDS.toNanos(transactionTimeout)) {
+				timeOut(id, transaction);
+			}
+		}
+	}
+
+	private void timeOut(int id, Transaction transaction) {
+		timers.remove(id);
+
+		try {
+			if (transaction.status == Status.ACTIVE) {
+				log("Timeout. Aborting transaction " + id);
+				abortTransaction(id);
+				setTransactionStatus(id, Status.TIMED_OUT);
+			}
+		} catch (Exception e) {
+			// Ignore.
+		}
+	}
+
+	/**
+	 * Sends a request to all the resource managers of a transaction at the same
+	 * time, and waits for their answers until a single deadline: a phase takes
+	 * as long as the slowest manager, not the sum of all of them. Returns true if
+	 * every manager answered true in time. During the prepare phase, returns
+	 * false as soon as a manager votes no or fails.
+	 */
+	private boolean sendToAll(Transaction transaction, boolean prepare, Request request) {
+		List<String> rms = new ArrayList<>(transaction.rms);
+		CompletionService<Boolean> answers = new ExecutorCompletionService<>(executor);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+		boolean success = true;
+
+		for (String rm : rms) {
+			answers.submit(() -> request.send(rm));
+		}
+
+		for (int i = 1; i <= rms.size(); i++) {
+			try {
+				Future<Boolean> answer = answers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+				// One resource manager did not answer in time
+				if (answer == null) {
+					log("No response received from " + (rms.size() - i + 1) + " resource managers");
+					return false;
+				}
+
+				if (!answer.get()) {
+					success = false;
+
+					if (prepare) {
+						log("Negative response received. Returning false...");
+						return false;
+					}
+				}
+			} catch (ExecutionException e) {
+				// One resource manager crashed
+				success = false;
+
+				if (prepare) {
+					return false;
+				}
+				continue;
+			} catch (InterruptedException e) {
+				return false;
+			}
+
+			if (prepare) {
+				crashInjector.inPrepare(i, rms.size());
+			} else {
+				crashInjector.inDecision(i, rms.size());
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * Changes the status of a transaction. The status is not saved: after a
+	 * restart, a transaction is committed if its decision is in the log, and
+	 * aborted otherwise. A finished transaction is forgotten, and only its
+	 * outcome is kept.
 	 */
 	private void setTransactionStatus(int id, Status status) {
 		Transaction transaction = transactions.get(id);
 		if (transaction != null && transaction.status != status) {
 			log("Setting status of transaction " + id + " to " + status);
 			transaction.status = status;
-			save();
+		}
+
+		if (status == Status.COMMITTED || status == Status.ABORTED || status == Status.TIMED_OUT) {
+			outcomes.put(id, status);
+			transactions.remove(id);
+			timers.remove(id);
+		}
+	}
+
+	/**
+	 * Reserves the next transaction ids in the decision log.
+	 */
+	private void reserveIds() {
+		try {
+			synchronized (decisionLog) {
+				reservedIds = tid + RESERVED_IDS;
+				decisionLog.force(
+						decisionLog.append(new Decision(Decision.Type.IDS, reservedIds, oldest(), new HashSet<>())));
+			}
+		} catch (IOException e) {
+			log("Error: Unable to save to disk");
 		}
 	}
 
 	/**
-	 * Saves the state of the {@link TransactionManager} to disk. If the save file
-	 * does not exist, creates a new one.
+	 * Forces the decision to commit a transaction to disk. Returns false if it
+	 * could not be written.
 	 */
-	private boolean save() {
+	private boolean logCommit(int id, Transaction transaction) {
+		long position;
+
 		try {
-			saveFile.save(transactions);
+			synchronized (decisionLog) {
+				position = decisionLog.append(new Decision(Decision.Type.COMMIT, id, 0, transaction.rms));
+				committing.add(id);
+			}
+
+			decisionLog.force(position);
+			return true;
 		} catch (IOException e) {
+			committing.remove(id);
 			log("Error: Unable to save to disk");
 			return false;
 		}
+	}
 
-		return true;
+	/**
+	 * Logs the end of a commit, without forcing it: if it is lost, the commit
+	 * requests are sent again after a restart. Truncates the log if it is long
+	 * enough.
+	 */
+	private void logEnd(int id) {
+		try {
+			synchronized (decisionLog) {
+				committing.remove(id);
+				setTransactionStatus(id, Status.COMMITTED);
+				decisionLog.append(new Decision(Decision.Type.END, id, 0, new HashSet<>()));
+
+				if (decisionLog.records() > TRUNCATE_RECORDS) {
+					truncate();
+				}
+			}
+		} catch (IOException e) {
+			log("Error: Unable to save to disk");
+		}
+	}
+
+	/**
+	 * Starts a new generation of the decision log, and deletes the previous ones.
+	 * It starts with the reserved ids and the decisions of the transactions since
+	 * the oldest one that is not finished: the others are forgotten.
+	 */
+	private void truncate() throws IOException {
+		int oldest = oldest();
+
+		decisionLog.start(generation + 1);
+		long position = decisionLog.append(new Decision(Decision.Type.IDS, reservedIds, oldest, new HashSet<>()));
+
+		for (int id = oldest; id <= tid; id++) {
+			Transaction transaction = transactions.get(id);
+
+			if (committing.contains(id)) {
+				position = decisionLog.append(new Decision(Decision.Type.COMMIT, id, 0, transaction.rms));
+			} else if (outcomes.get(id) == Status.COMMITTED) {
+				position = decisionLog.append(new Decision(Decision.Type.END, id, 0, new HashSet<>()));
+			}
+		}
+
+		decisionLog.force(position);
+		generation++;
+
+		for (long g : decisionLog.generations()) {
+			if (g < generation) {
+				decisionLog.delete(g);
+			}
+		}
+	}
+
+	/**
+	 * Returns the oldest transaction that is not finished, or the next one if
+	 * they all are. An abort that some resource manager did not acknowledge is
+	 * not finished: it is sent again after a restart.
+	 */
+	private int oldest() {
+		// Read before the transactions, which contain any id started since
+		int oldest = tid + 1;
+
+		for (int id : transactions.keySet()) {
+			oldest = Math.min(oldest, id);
+		}
 
+		return oldest;
 	}
 
 	/**
-	 * Restores the state of the transaction manager form the save file.
-	 * {@link TransactionManager}, otherwise creates a new save file with the
-	 * {@link TransactionManager#save()} method.
+	 * Restores the state of the transaction manager from the decision log. The
+	 * commits that did not end are finished in the background. The other
+	 * transactions since the oldest one that was not finished are presumed
+	 * aborted: as the resource managers they used are not logged, they are
+	 * aborted on every manager, which releases the ones that voted yes.
+	 *
+	 * The transactions saved by earlier versions, which saved all of them in a
+	 * save file, are read once. The ones that were not committed are aborted.
 	 */
 	private void loadSave() {
+		Map<Integer, Set<String>> commits = new HashMap<>();
+		Set<Integer> ended = new HashSet<>();
+		int oldest = 1;
+
 		try {
-			Map<Integer, Transaction> data = saveFile.read();
-			for (Entry<Integer, Transaction> entry : data.entrySet()) {
-				tid = entry.getKey() > tid ? entry.getKey() : tid;
-				transactions.put(entry.getKey(), entry.getValue());
-
-				switch (entry.getValue().status) {
-				case ACTIVE:
-					resetTimeout(entry.getKey());
-					break;
-
-				case IN_PREPARE:
-				case IN_COMMIT:
-					prepareTransaction(entry.getKey());
-					break;
-
-				case IN_ABORT:
-					abortTransaction(entry.getKey());
-					break;
+			for (long g : decisionLog.generations()) {
+				for (Decision decision : decisionLog.read(g)) {
+					switch (decision.type) {
+					case COMMIT:
+						commits.put(decision.id, decision.rms);
+						break;
+					case END:
+						commits.remove(decision.id);
+						ended.add(decision.id);
+						break;
+					case IDS:
+						reservedIds = Math.max(reservedIds, decision.id);
+						oldest = decision.oldest;
+						break;
+					}
+				}
 
-				default:
-					break;
+				generation = Math.max(generation, g);
+			}
+
+			if (saveFile.exists()) {
+				for (Entry<Integer, Transaction> entry : saveFile.read().entrySet()) {
+					Transaction transaction = entry.getValue();
+					reservedIds = Math.max(reservedIds, entry.getKey() + 1);
+
+					if (transaction.status == Status.IN_COMMIT) {
+						commits.put(entry.getKey(), transaction.rms);
+					} else if (transaction.status == Status.IN_PREPARE || transaction.status == Status.ACTIVE
+							|| transaction.status == Status.IN_ABORT) {
+						transaction.status = Status.IN_ABORT;
+						transactions.put(entry.getKey(), transaction);
+					} else {
+						outcomes.put(entry.getKey(), transaction.status);
+					}
 				}
 			}
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+			log("Error: Unable to read the saved transactions");
+			return;
+		}
 
-		} catch (Exception e) {
-			save();
+		tid = reservedIds - 1;
+		for (Entry<Integer, Set<String>> commit : commits.entrySet()) {
+			Transaction transaction = new Transaction(false);
+			transaction.rms.addAll(commit.getValue());
+			transaction.status = Status.IN_COMMIT;
+			transactions.put(commit.getKey(), transaction);
+			committing.add(commit.getKey());
+		}
+
+		Set<String> rms = middleware.getResourceManagers();
+		for (int id = oldest; id <= tid; id++) {
+			if (transactions.containsKey(id) || outcomes.containsKey(id)) {
+				continue;
+			} else if (ended.contains(id)) {
+				outcomes.put(id, Status.COMMITTED);
+			} else {
+				Transaction transaction = new Transaction(false);
+				transaction.rms.addAll(rms);
+				transaction.status = Status.IN_ABORT;
+				transactions.put(id, transaction);
+			}
+		}
+
+		try {
+			synchronized (decisionLog) {
+				truncate();
+			}
+			saveFile.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+			log("Error: Unable to save to disk");
+			return;
 		}
+
+		if (!transactions.isEmpty()) {
+			log("Finishing " + transactions.size() + " recovered transactions");
+			timer.execute(this::finishRecovered);
+		}
+	}
+
+	/**
+	 * Sends the decisions of the recovered transactions again.
+	 */
+	private void finishRecovered() {
+		for (Entry<Integer, Transaction> entry : transactions.entrySet()) {
+			try {
+				if (entry.getValue().status == Status.IN_COMMIT) {
+					commitTransaction(entry.getKey());
+				} else if (entry.getValue().status == Status.IN_ABORT) {
+					abortTransaction(entry.getKey());
+				}
+			} catch (InvalidTransactionException e) {
+				// Finished by a client in the meantime
+			}
+		}
+	}
+
+	/**
+	 * Returns a factory of daemon threads, which do not keep the middleware
+	 * running.
+	 */
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
 	}
 
 	/**
@@ -0,0 +1,398 @@
+package middleware.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cars.impl.CarManagerImpl;
+import common.files.SaveFile;
+import common.rm.ResourceManager.Vote;
+import flights.FlightManager;
+import hotels.HotelManager;
+import middleware.impl.TransactionManager.Status;
+
+/**
+ * Checks the two-phase commit of the {@link TransactionManager}, and how it
+ * finishes the transactions it was running after a restart. The resource
+ * managers are exported in a local registry: a real car manager, which takes
+ * locks, and fake flight and hotel managers.
+ *
+ * The middleware saves its transactions in the save directory of the current
+ * folder.
+ */
+public class TestTransactionManager {
+
+	private static final int PORT = 20989;
+	private static final String ADDRESS = "localhost:" + PORT;
+	private static final long LOCK_TIMEOUT = 5000;
+	private static final long TIMEOUT = 200;
+
+	private static Registry registry;
+
+	private CarManagerImpl carManager;
+	private FakeManager flights;
+	private FakeManager hotels;
+
+	@Before
+	public void setUp() throws Exception {
+		delete(new File(SaveFile.SAVE_FOLDER + "/middleware"));
+		delete(new File(SaveFile.SAVE_FOLDER + "/cars"));
+
+		if (registry == null) {
+			registry = LocateRegistry.createRegistry(PORT);
+		}
+
+		carManager = new CarManagerImpl();
+		registry.rebind("cars.group20", UnicastRemoteObject.exportObject(carManager, 0));
+		flights = bind("flights.group20", FlightManager.class);
+		hotels = bind("hotels.group20", HotelManager.class);
+	}
+
+	@Test
+	public void prepareWithoutAnswerFailsByTheDeadline() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		middleware.addRooms(id, "a", 1, 1);
+		flights.prepareDelay = 10 * TransactionManager.RESPONSE_TIMEOUT;
+		hotels.prepareDelay = TransactionManager.RESPONSE_TIMEOUT * 7 / 10;
+
+		long start = System.currentTimeMillis();
+		assertFalse(middleware.prepare(id));
+		long elapsed = System.currentTimeMillis() - start;
+
+		// The prepare requests are sent at once, and waited for until a single deadline
+		assertTrue(elapsed >= TransactionManager.RESPONSE_TIMEOUT);
+		assertTrue(elapsed < TransactionManager.RESPONSE_TIMEOUT * 3 / 2);
+		assertEquals(Arrays.asList("prepare " + id), flights.decisions());
+		assertEquals(Arrays.asList("prepare " + id), hotels.decisions());
+
+		flights.prepareDelay = 0;
+		hotels.prepareDelay = 0;
+		assertTrue(middleware.abort(id));
+		assertEquals(Status.ABORTED, middleware.getTransactionManager().getStatus(id));
+		assertEquals(Arrays.asList("prepare " + id, "abort " + id), hotels.decisions());
+	}
+
+	@Test
+	public void slowManagersArePreparedInParallel() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		middleware.addRooms(id, "a", 1, 1);
+
+		// Together, they take longer than the deadline
+		flights.prepareDelay = TransactionManager.RESPONSE_TIMEOUT * 6 / 10;
+		hotels.prepareDelay = TransactionManager.RESPONSE_TIMEOUT * 6 / 10;
+
+		assertTrue(middleware.prepare(id));
+		assertEquals(Arrays.asList("prepare " + id, "commit " + id), flights.decisions());
+		assertEquals(Arrays.asList("prepare " + id, "commit " + id), hotels.decisions());
+	}
+
+	@Test
+	public void commitsShareABoundedPool() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		TransactionManager tm = middleware.getTransactionManager();
+		int threads = Thread.activeCount();
+
+		for (int i = 0; i < 4 * TransactionManager.MAX_THREADS; i++) {
+			int id = middleware.start();
+			middleware.addFlight(id, 1, 1, 1);
+			middleware.addRooms(id, "a", 1, 1);
+			assertTrue(middleware.prepare(id));
+		}
+
+		// The requests of all the commits ran on the same threads, a few more are
+		// used by the registry
+		assertTrue(tm.getThreadCount() <= TransactionManager.MAX_THREADS);
+		assertTrue(Thread.activeCount() - threads <= TransactionManager.MAX_THREADS + 10);
+		assertEquals(0, tm.getQueueDepth());
+	}
+
+	@Test
+	public void unusedTransactionTimesOut() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		middleware.getTransactionManager().setTransactionTimeout(TIMEOUT);
+		int idle = middleware.start();
+		int used = middleware.start();
+		middleware.addFlight(idle, 1, 1, 1);
+		middleware.addRooms(used, "a", 1, 1);
+
+		// Each operation postpones the timeout
+		long end = System.currentTimeMillis() + 3 * TransactionManager.TIMEOUT_CHECK_INTERVAL;
+		while (System.currentTimeMillis() < end) {
+			middleware.queryRooms(used, "a");
+			Thread.sleep(TIMEOUT / 4);
+		}
+
+		assertEquals(Status.TIMED_OUT, middleware.getTransactionManager().getStatus(idle));
+		assertEquals(Arrays.asList("abort " + idle), flights.decisions());
+		assertEquals(Status.ACTIVE, middleware.getTransactionManager().getStatus(used));
+		assertEquals(0, hotels.decisions().size());
+		assertEquals(1, middleware.getTransactionManager().getPendingTimeouts());
+
+		assertTrue(middleware.prepare(used));
+		assertEquals(0, middleware.getTransactionManager().getPendingTimeouts());
+	}
+
+	@Test
+	public void readOnlyVoterIsNotSentTheDecision() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		middleware.addRooms(id, "a", 1, 1);
+		flights.vote = Vote.READ_ONLY;
+
+		assertTrue(middleware.prepare(id));
+		assertEquals(Status.COMMITTED, middleware.getTransactionManager().getStatus(id));
+		assertEquals(Arrays.asList("prepare " + id), flights.decisions());
+		assertEquals(Arrays.asList("prepare " + id, "commit " + id), hotels.decisions());
+	}
+
+	@Test
+	public void readOnlyTransactionEndsAfterThePrepare() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		middleware.addRooms(id, "a", 1, 1);
+		flights.vote = Vote.READ_ONLY;
+		hotels.vote = Vote.READ_ONLY;
+
+		assertTrue(middleware.prepare(id));
+		assertEquals(Status.COMMITTED, middleware.getTransactionManager().getStatus(id));
+		assertEquals(Arrays.asList("prepare " + id), flights.decisions());
+		assertEquals(Arrays.asList("prepare " + id), hotels.decisions());
+	}
+
+	@Test
+	public void negativeVoteCommitsNothing() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		middleware.addRooms(id, "a", 1, 1);
+		flights.vote = Vote.NO;
+
+		assertFalse(middleware.prepare(id));
+		assertFalse(hotels.decisions().contains("commit " + id));
+		assertTrue(middleware.abort(id));
+		assertTrue(hotels.decisions().contains("abort " + id));
+	}
+
+	@Test
+	public void singleManagerCommitsInOnePhase() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+
+		assertTrue(middleware.prepare(id));
+		assertEquals(Status.COMMITTED, middleware.getTransactionManager().getStatus(id));
+		assertEquals(Arrays.asList("commit " + id), flights.decisions());
+	}
+
+	@Test
+	public void onePhaseCommitWithoutAnswerIsSentAgain() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		flights.failures = 1;
+
+		// The manager may have committed: the transaction is not aborted
+		assertFalse(middleware.prepare(id));
+		assertEquals(Status.IN_COMMIT, middleware.getTransactionManager().getStatus(id));
+
+		awaitStatus(middleware, id, Status.COMMITTED);
+		assertEquals(Arrays.asList("commit " + id, "commit " + id), flights.decisions());
+	}
+
+	@Test
+	public void onePhaseCommitRefusedIsAborted() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		middleware.addFlight(id, 1, 1, 1);
+		flights.commit = false;
+
+		assertFalse(middleware.prepare(id));
+		assertEquals(Status.ABORTED, middleware.getTransactionManager().getStatus(id));
+		assertEquals(Arrays.asList("commit " + id, "abort " + id), flights.decisions());
+	}
+
+	@Test
+	public void preparedTransactionIsAbortedAfterRestart() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int id = middleware.start();
+		assertTrue(middleware.addCars(id, "a", 1, 1));
+
+		// The middleware stops once the car manager voted, before it decides
+		assertEquals(Vote.YES, carManager.prepare(id));
+
+		// The car manager keeps the lock of the prepared transaction until it is
+		// sent the decision
+		MiddlewareImpl restarted = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int other = restarted.start();
+		carManager.setLockTimeout(other, LOCK_TIMEOUT);
+		assertTrue(carManager.addCars(other, "a", 1, 1));
+
+		restarted.abort(other);
+	}
+
+	@Test
+	public void idsAreNotReusedAfterRestart() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int first = middleware.start();
+		int last = first;
+
+		// Past the first block of reserved ids
+		for (int i = 0; i < TransactionManager.RESERVED_IDS + 5; i++) {
+			last = middleware.start();
+		}
+
+		MiddlewareImpl restarted = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		assertTrue(restarted.start() > last);
+
+		// The transactions that were active are aborted everywhere
+		awaitStatus(restarted, last, Status.ABORTED);
+		awaitStatus(restarted, first, Status.ABORTED);
+		assertTrue(flights.decisions().contains("abort " + first));
+		assertTrue(hotels.decisions().contains("abort " + last));
+	}
+
+	@Test
+	public void commitIsSentAgainAfterTruncationAndRestart() throws Exception {
+		MiddlewareImpl middleware = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		int unfinished = middleware.start();
+		middleware.addFlight(unfinished, 1, 1, 1);
+		middleware.addRooms(unfinished, "a", 1, 1);
+
+		// The decision is logged, but not acknowledged by the hotel manager
+		hotels.failures = Integer.MAX_VALUE;
+		assertFalse(middleware.prepare(unfinished));
+		assertEquals(Status.IN_COMMIT, middleware.getTransactionManager().getStatus(unfinished));
+		hotels.failures = 0;
+
+		// Enough commits to truncate the decision log
+		List<Integer> committed = new ArrayList<>();
+		for (int i = 0; i < TransactionManager.TRUNCATE_RECORDS / 2 + 10; i++) {
+			int id = middleware.start();
+			middleware.addFlight(id, 1, 1, 1);
+			middleware.addRooms(id, "a", 1, 1);
+			assertTrue(middleware.prepare(id));
+			committed.add(id);
+		}
+
+		File folder = new File(SaveFile.SAVE_FOLDER + "/middleware");
+		String[] generations = folder.list((dir, name) -> name.startsWith("decisions."));
+		assertEquals(1, generations.length);
+		assertFalse(generations[0].equals("decisions.0.log"));
+
+		MiddlewareImpl restarted = new MiddlewareImpl(ADDRESS, ADDRESS, ADDRESS);
+		awaitStatus(restarted, unfinished, Status.COMMITTED);
+		assertEquals(2, Collections.frequency(hotels.decisions(), "commit " + unfinished));
+
+		// The commits that ended after the unfinished one are not aborted
+		for (int id : committed) {
+			assertEquals(Status.COMMITTED, restarted.getTransactionManager().getStatus(id));
+			assertFalse(flights.decisions().contains("abort " + id));
+			assertFalse(hotels.decisions().contains("abort " + id));
+		}
+		assertTrue(restarted.start() > committed.get(committed.size() - 1));
+	}
+
+	/**
+	 * Waits until a transaction has the given status, for at most a few
+	 * seconds.
+	 */
+	private static void awaitStatus(MiddlewareImpl middleware, int id, Status status) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5 * TransactionManager.RESPONSE_TIMEOUT;
+
+		while (middleware.getTransactionManager().getStatus(id) != status
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(status, middleware.getTransactionManager().getStatus(id));
+	}
+
+	/**
+	 * Exports a fake resource manager in the registry.
+	 */
+	private static FakeManager bind(String name, Class<?> type) throws Exception {
+		FakeManager manager = new FakeManager();
+		Remote rm = (Remote) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, manager);
+		registry.rebind(name, UnicastRemoteObject.exportObject(rm, 0));
+		return manager;
+	}
+
+	/**
+	 * Fake resource manager, which records the requests of the two-phase commit
+	 * and answers them as the test chose. The other requests succeed.
+	 */
+	private static class FakeManager implements InvocationHandler {
+
+		private volatile Vote vote = Vote.YES;
+		private volatile long prepareDelay; // Time taken to vote, in ms
+		private volatile boolean commit = true;
+		private volatile int failures; // Number of next commit requests that fail
+		private List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+			switch (method.getName()) {
+			case "prepare":
+				requests.add("prepare " + args[0]);
+				Thread.sleep(prepareDelay);
+				return vote;
+			case "commit":
+				requests.add("commit " + args[0]);
+
+				if (failures > 0) {
+					failures--;
+					throw new RemoteException("Lost commit request");
+				}
+				return commit;
+			case "abort":
+				requests.add("abort " + args[0]);
+				return true;
+			default:
+				return method.getReturnType() == boolean.class ? true : method.getReturnType() == int.class ? 0 : null;
+			}
+		}
+
+		/**
+		 * Returns the requests of the two-phase commit received so far.
+		 */
+		List<String> decisions() {
+			synchronized (requests) {
+				return new ArrayList<>(requests);
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+}
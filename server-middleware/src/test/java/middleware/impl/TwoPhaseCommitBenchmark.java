@@ -0,0 +1,93 @@
+package middleware.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import cars.CarManager;
+import common.rm.ResourceManager.Vote;
+import flights.FlightManager;
+import hotels.HotelManager;
+
+/**
+ * Measures the latency of a commit for 1 to 3 participants. The participants
+ * are fake resource managers, exported in a local registry, that take
+ * {@link #DELAY} ms to answer each prepare and commit request. With the
+ * requests sent to all the participants at the same time, the latency does not
+ * grow with their number. A single participant is committed in one phase,
+ * without the prepare request. Also prints the threads of the transaction
+ * manager, which must not grow with the number of transactions.
+ *
+ * The middleware saves its transactions in the save directory of the current
+ * folder.
+ *
+ * Usage: <code>gradle :server-middleware:benchmark -Pbenchmark=middleware.impl.TwoPhaseCommitBenchmark</code>
+ */
+class TwoPhaseCommitBenchmark {
+
+	private static final int PORT = 20990;
+	private static final long DELAY = 20;
+	private static final int COMMITS = 50;
+
+	public static void main(String[] args) throws Exception {
+		Registry registry = LocateRegistry.createRegistry(PORT);
+		bind(registry, "cars.group20", CarManager.class);
+		bind(registry, "flights.group20", FlightManager.class);
+		bind(registry, "hotels.group20", HotelManager.class);
+
+		String address = "localhost:" + PORT;
+		MiddlewareImpl middleware = new MiddlewareImpl(address, address, address);
+
+		for (int participants = 1; participants <= 3; participants++) {
+			long total = 0;
+
+			for (int i = 0; i < COMMITS; i++) {
+				int id = middleware.start();
+				middleware.addCars(id, "a", 1, 1);
+				if (participants > 1) {
+					middleware.addFlight(id, 1, 1, 1);
+				}
+				if (participants > 2) {
+					middleware.addRooms(id, "a", 1, 1);
+				}
+
+				long start = System.nanoTime();
+				if (!middleware.prepare(id)) {
+					throw new IllegalStateException("Transaction " + id + " did not commit");
+				}
+				total += System.nanoTime() - start;
+			}
+
+			TransactionManager tm = middleware.getTransactionManager();
+			System.err.printf("%d participants: %6.1f ms per commit, %d 2PC threads, %d queued, %d live threads%n",
+					participants, total / 1e6 / COMMITS, tm.getThreadCount(), tm.getQueueDepth(), Thread.activeCount());
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Exports a fake resource manager, which answers true to every request.
+	 */
+	private static void bind(Registry registry, String name, Class<?> type) throws Exception {
+		InvocationHandler handler = (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "prepare":
+				Thread.sleep(DELAY);
+				return Vote.YES;
+			case "commit":
+			case "abort":
+				Thread.sleep(DELAY);
+				return true;
+			default:
+				return method.getReturnType() == boolean.class ? true : method.getReturnType() == int.class ? 0 : null;
+			}
+		};
+
+		Remote rm = (Remote) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+		registry.rebind(name, UnicastRemoteObject.exportObject(rm, 0));
+	}
+}